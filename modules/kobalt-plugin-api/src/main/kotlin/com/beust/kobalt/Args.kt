@@ -9,6 +9,9 @@ class Args {
     @Parameter(names = arrayOf("-bf", "--buildFile"), description = "The build file")
     var buildFile: String? = "kobalt/src/Build.kt"
 
+    @Parameter(names = arrayOf("--buildCacheServer"), description = "Run a build cache server on --port")
+    var buildCacheServer: Boolean = false
+
     @Parameter(names = arrayOf("--checkVersions"), description = "Check if there are any newer versions of the " +
             "dependencies")
     var checkVersions = false
@@ -30,6 +33,15 @@ class Args {
             "actually running them")
     var dryRun: Boolean = false
 
+    @Parameter(names = arrayOf("--failFast"), description = "Stop the tests of a project at the first failure " +
+            "(TestNG)")
+    var failFast: Boolean = false
+
+    @Parameter(names = arrayOf("--fastPackaging"), description = "Store the entries of the archives without " +
+            "compressing them and make fat jars with thinJar = true reference their dependencies instead of " +
+            "including them")
+    var fastPackaging: Boolean = false
+
     @Parameter(names = arrayOf("--force"), description = "Force a new server to be launched even if another one" +
             " is already running")
     var force: Boolean = false
@@ -43,6 +55,11 @@ class Args {
     @Parameter(names = arrayOf("-i", "--init"), description = "Invoke the templates named, separated by a comma")
     var templates: String? = null
 
+    @Parameter(names = arrayOf("--jfr"), description = "Record the build with Java Flight Recorder, including " +
+            "Kobalt's projects, tasks, resolutions, compilations, archives and tests, and write the recording to " +
+            "this file")
+    var jfr: String? = null
+
     @Parameter(names = arrayOf("--listTemplates"), description = "List the available templates")
     var listTemplates: Boolean = false
 
@@ -70,7 +87,7 @@ class Args {
     @Parameter(names = arrayOf("--pluginJarFiles"), description = "Comma-separated list of plug-in jar files")
     var pluginJarFiles: String? = null
 
-    @Parameter(names = arrayOf("--port"), description = "Port, if --server was specified")
+    @Parameter(names = arrayOf("--port"), description = "Port, if --server or --buildCacheServer was specified")
     var port: Int? = null
 
     @Parameter(names = arrayOf("--profiles"), description = "Comma-separated list of profiles to run")
@@ -86,6 +103,10 @@ class Args {
     @Parameter(names = arrayOf("--projectInfo"), description = "Display information about the current projects")
     var projectInfo: Boolean = false
 
+    @Parameter(names = arrayOf("--rerunTests"), description = "Run the tests even if their classes, resources " +
+            "and classpath didn't change since they last passed")
+    var rerunTests: Boolean = false
+
     @Parameter(names = arrayOf("--noIncrementalKotlin"), description = "Disable incremental Kotlin compilation")
     var noIncrementalKotlin: Boolean = false
 
@@ -102,10 +123,23 @@ class Args {
     @Parameter(names = arrayOf("--tasks"), description = "Display the tasks available for this build")
     var tasks: Boolean = false
 
+    @Parameter(names = arrayOf("--trace"), description = "Write a timeline of the build to this file, in the " +
+            "trace event format of chrome://tracing and Perfetto, or as one JSON span per line if its name ends " +
+            "with .jsonl")
+    var trace: String? = null
+
     @Parameter(names = arrayOf("--update"), description = "Update to the latest version of Kobalt")
     var update: Boolean = false
 
+    @Parameter(names = arrayOf("--updateMetadata"), description = "Check the remote repositories for new " +
+            "versions of ranged, versionless and SNAPSHOT dependencies even if their metadata was checked recently")
+    var updateMetadata: Boolean = false
+
     @Parameter(names = arrayOf("--version"), description = "Display the current version of Kobalt")
     var version: Boolean = false
+
+    @Parameter(names = arrayOf("--writeLocks"), description = "Resolve all the dependencies again and save them " +
+            "in the lock files of each project")
+    var writeLocks: Boolean = false
 }
 
@@ -2,6 +2,7 @@ package com.beust.kobalt
 
 import com.beust.kobalt.api.KobaltContext
 import com.beust.kobalt.api.Project
+import java.io.File
 
 /**
  * @param inputChecksum The checksum for the input to this task. It gets compared against the previous checksum
@@ -10,8 +11,17 @@ import com.beust.kobalt.api.Project
  * and the task will be run. If non null, it gets compared against the checksum of the previous run and
  * if they differ, the task gets run.
  * @param task The task to run.
+ * @param inputFiles The files and directories this task reads. Only needed if the outputs of this task
+ * can be shared through the remote build cache.
+ * @param outputFiles The files and directories this task produces, which will be stored in and restored from
+ * the remote build cache. If empty, this task doesn't use the build cache.
+ * @param keyInputs Whatever else determines the outputs of this task, such as the versions and the flags of
+ * the compilers. Part of the key of the task in the remote build cache.
  */
 class IncrementalTaskInfo(val inputChecksum: () -> String?,
         val outputChecksum: () -> String?,
         val task: (Project) -> TaskResult,
-        val context: KobaltContext)
+        val context: KobaltContext,
+        val inputFiles: () -> List<File> = { emptyList() },
+        val outputFiles: () -> List<File> = { emptyList() },
+        val keyInputs: () -> List<String> = { emptyList() })
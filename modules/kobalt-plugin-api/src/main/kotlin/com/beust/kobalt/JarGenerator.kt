@@ -3,6 +3,7 @@ package com.beust.kobalt
 import com.beust.kobalt.api.KobaltContext
 import com.beust.kobalt.api.Project
 import com.beust.kobalt.archive.Archives
+import com.beust.kobalt.archive.Jar
 import com.beust.kobalt.archive.MetaArchive
 import com.beust.kobalt.archive.Zip
 import com.beust.kobalt.maven.DependencyManager
@@ -12,11 +13,15 @@ import com.beust.kobalt.misc.kobaltLog
 import com.google.inject.Inject
 import java.io.File
 import java.io.FileInputStream
+import java.net.URI
 import java.nio.file.Paths
 import java.util.jar.Manifest
 
 class JarGenerator @Inject constructor(val dependencyManager: DependencyManager) : ArchiveGenerator {
     companion object {
+        /** The directory next to a thin jar that its dependencies are copied to */
+        const val THIN_JAR_LIB_DIR = "lib"
+
         fun findIncludedFiles(directory: String, files: List<IncludedFile>, excludes: List<Glob>,
                 throwOnError: Boolean = true)
                 : List<IncludedFile> {
@@ -96,32 +101,42 @@ class JarGenerator @Inject constructor(val dependencyManager: DependencyManager)
         //
         // If fatJar is true, add all the transitive dependencies as well: compile, runtime and dependent projects
         //
-        if (zip.fatJar) {
-            val seen = hashSetOf<String>()
-            @Suppress("UNCHECKED_CAST")
-            val allDependencies = project.compileDependencies + project.compileRuntimeDependencies +
-                context.variant.buildType.compileDependencies +
-                context.variant.buildType.compileRuntimeDependencies +
-                context.variant.productFlavor.compileDependencies +
-                context.variant.productFlavor.compileRuntimeDependencies
-            val transitiveDependencies = dependencyManager.calculateDependencies(project, context,
-                    scopes = listOf(Scope.COMPILE), passedDependencies = allDependencies)
-            transitiveDependencies.map {
-                it.jarFile.get()
-            }.forEach { file : File ->
-                if (! seen.contains(file.path)) {
-                    seen.add(file.path)
-                    if (! KFiles.Companion.isExcluded(file, zip.excludes)) {
-                        result.add(IncludedFile(specs = arrayListOf(IFileSpec.FileSpec(file.absolutePath)),
-                                expandJarFiles = true))
-                    }
-                }
+        if (zip.fatJar && ! isThinJar(context, zip)) {
+            fatJarDependencies(project, context, zip).forEach { file ->
+                result.add(IncludedFile(specs = arrayListOf(IFileSpec.FileSpec(file.absolutePath)),
+                        expandJarFiles = true))
             }
         }
 
         return result
     }
 
+    private fun isThinJar(context: KobaltContext, zip: Zip) = zip is Jar && zip.thinJar && zip.isFastPackaging(context)
+
+    private fun fatJarDependencies(project: Project, context: KobaltContext, zip: Zip) : List<File> {
+        val seen = hashSetOf<String>()
+        val result = arrayListOf<File>()
+        @Suppress("UNCHECKED_CAST")
+        val allDependencies = project.compileDependencies + project.compileRuntimeDependencies +
+            context.variant.buildType.compileDependencies +
+            context.variant.buildType.compileRuntimeDependencies +
+            context.variant.productFlavor.compileDependencies +
+            context.variant.productFlavor.compileRuntimeDependencies
+        val transitiveDependencies = dependencyManager.calculateDependencies(project, context,
+                scopes = listOf(Scope.COMPILE), passedDependencies = allDependencies)
+        transitiveDependencies.map {
+            it.jarFile.get()
+        }.forEach { file : File ->
+            if (! seen.contains(file.path)) {
+                seen.add(file.path)
+                if (! KFiles.Companion.isExcluded(file, zip.excludes)) {
+                    result.add(file)
+                }
+            }
+        }
+        return result
+    }
+
     override fun generateArchive(project: Project, context: KobaltContext, zip: Zip,
             includedFiles: List<IncludedFile>) : File {
         //
@@ -155,8 +170,41 @@ class JarGenerator @Inject constructor(val dependencyManager: DependencyManager)
                 }
             }
 
+        //
+        // A thin jar references the dependencies it would have included instead, copied to the lib/ directory
+        // next to it so the jar can be moved along with that directory
+        //
+        val finalManifest =
+            if (zip.fatJar && isThinJar(context, zip)) {
+                val libs = libEntries(fatJarDependencies(project, context, zip))
+                KFiles.syncFiles(File(KFiles.libsDir(project), THIN_JAR_LIB_DIR), libs, link = { true })
+                (manifest ?: Manifest().apply { mainAttributes.putValue("Manifest-Version", "1.0") }).apply {
+                    mainAttributes.putValue("Class-Path", libs.joinToString(" ") {
+                        URI(null, null, "$THIN_JAR_LIB_DIR/" + it.first, null).rawPath
+                    })
+                }
+            } else {
+                manifest
+            }
+
         return Archives.generateArchive(project, context, zip.name, ".jar", includedFiles,
-                true /* expandJarFiles */, manifest)
+                true /* expandJarFiles */, finalManifest, zip.isFastPackaging(context))
+    }
+
+    /**
+     * The names of the dependencies of a thin jar in its lib/ directory: their file name, prefixed with
+     * a number if another dependency has the same one.
+     */
+    private fun libEntries(dependencies: List<File>) : List<Pair<String, File>> {
+        val names = hashSetOf<String>()
+        return dependencies.map { file ->
+            var name = file.name
+            var i = 2
+            while (! names.add(name)) {
+                name = "${i++}-${file.name}"
+            }
+            Pair(name, file)
+        }
     }
 
 }
\ No newline at end of file
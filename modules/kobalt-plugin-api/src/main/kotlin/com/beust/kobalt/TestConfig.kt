@@ -6,12 +6,49 @@ import com.beust.kobalt.api.annotation.Directive
 class TestConfig(val project: Project, val isDefault : Boolean = false) {
     val testArgs = arrayListOf<String>()
     val jvmArgs = arrayListOf<String>()
-    val testIncludes = arrayListOf("**/*Test.class")
+    val testIncludes = arrayListOf(DEFAULT_INCLUDE)
     val testExcludes = arrayListOf<String>()
 
+    /** true if the test classes were selected with include() or exclude() */
+    val hasCustomIncludes get() = testIncludes != listOf(DEFAULT_INCLUDE) || testExcludes.any()
+
+    companion object {
+        const val DEFAULT_INCLUDE = "**/*Test.class"
+    }
+
     @Directive
     var name: String = ""
 
+    /**
+     * The number of JVM's the test classes are split across. They run concurrently and each of them gets a
+     * share of the test classes balanced with the time these classes took in the previous runs. Only used if
+     * no args() were specified.
+     */
+    @Directive
+    var forks: Int = 1
+
+    /**
+     * Only run the test classes that reference (directly or not) a class of this project or of the projects
+     * it depends on that changed since the previous run, along with the ones that failed then. Only used if
+     * no args() were specified.
+     */
+    @Directive
+    var selectTests: Boolean = false
+
+    /**
+     * With selectTests, run all the tests anyway after this many runs (0 to never force a full run).
+     */
+    @Directive
+    var fullRunEvery: Int = 10
+
+    /**
+     * Run the tests inside Kobalt's JVM instead of launching a new one (JUnit 5 only, without jvmArgs(), and only
+     * with --sequential). The tests get their own classloader and their system properties and output are restored
+     * after they ran.
+     */
+    @Directive
+    var inProcess: Boolean = false
+
     @Directive
     fun args(vararg arg: String) {
         testArgs.addAll(arg)
@@ -1,5 +1,6 @@
 package com.beust.kobalt.api
 
+import com.beust.kobalt.maven.aether.DescribedDependencyFilter
 import com.beust.kobalt.maven.aether.Filters.EXCLUDE_OPTIONAL_FILTER
 import com.beust.kobalt.maven.aether.KobaltMavenResolver
 import com.beust.kobalt.maven.aether.Scope
@@ -48,10 +49,19 @@ interface IDependencyManager {
 
     /**
      * Create an Aether dependency filter that uses the dependency configuration included in each
-     * IClasspathDependency.
+     * IClasspathDependency. Its description lists these exclusions.
      */
     fun createDependencyFilter(project: Project?, dependencies: List<IClasspathDependency>) : DependencyFilter {
-        return DependencyFilter { p0, p1 ->
+        fun describe(config: Dependencies.ExcludeConfig) = config.ids.sorted() +
+                config.artifacts.map { "${it.groupId}:${it.artifactId}:${it.version}" }.sorted()
+        val exclusions = (project?.excludedDependencies?.map { it.id }?.sorted() ?: emptyList<String>()) +
+                dependencies.sortedBy { it.id }.flatMap { dependency ->
+                    dependency.excluded.flatMap { describe(it) }.map { dependency.id + " -" + it }
+                }
+        val description = "exclusions [" + exclusions.joinToString(", ") + "]" +
+                (if (dependencies.isEmpty()) " (no dependencies)" else "")
+
+        return DescribedDependencyFilter(description, DependencyFilter { p0, p1 ->
             fun isNodeExcluded(node: DependencyNode, passedDep: IClasspathDependency) : Boolean {
                 val dep = create(KobaltMavenResolver.artifactToId(node.artifact))
                 return passedDep.excluded.any { ex -> ex.isExcluded(dep)}
@@ -83,6 +93,6 @@ interface IDependencyManager {
 
             if (accept) EXCLUDE_OPTIONAL_FILTER.accept(p0, p1)
             else accept
-        }
+        })
     }
-}
\ No newline at end of file
+}
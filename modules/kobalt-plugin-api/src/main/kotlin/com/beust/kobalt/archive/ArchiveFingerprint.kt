@@ -0,0 +1,67 @@
+package com.beust.kobalt.archive
+
+import com.beust.kobalt.IncludedFile
+import com.beust.kobalt.maven.Md5
+import com.beust.kobalt.misc.KFiles
+import java.io.File
+import java.security.MessageDigest
+import java.util.jar.Manifest
+import javax.xml.bind.DatatypeConverter
+
+/**
+ * The fingerprint of everything that goes into an archive: the path of each entry with the size and the md5
+ * of its file (including the dependency jar files of a fat jar), the manifest and the packaging options.
+ *
+ * The md5 of the files are cached in the archive index by path, size and timestamp, so computing the
+ * fingerprint of an archive whose files didn't change only needs to look at their attributes.
+ */
+class ArchiveFingerprint(previousHashes: List<ArchiveIndex.FileHash>?) {
+    private val previousHashes = previousHashes?.associateBy { it.path } ?: emptyMap()
+
+    /** The hashes used by the last fingerprint, to be saved in the archive index */
+    val hashes = arrayListOf<ArchiveIndex.FileHash>()
+
+    fun compute(directory: String, includedFiles: List<IncludedFile>, manifest: Manifest?, options: String)
+            : String {
+        val md5 = MessageDigest.getInstance("MD5")
+        fun update(s: String) = md5.update((s + "\n").toByteArray())
+
+        update(options)
+        manifest?.let {
+            it.mainAttributes.map { "${it.key}: ${it.value}" }.sorted().forEach { update(it) }
+            it.entries.flatMap { (name, attributes) ->
+                attributes.map { "$name ${it.key}: ${it.value}" }
+            }.sorted().forEach { update(it) }
+        }
+        includedFiles.forEach { root ->
+            update("to: ${root.to} expand: ${root.expandJarFiles}")
+            root.allFromFiles(directory).forEach { relFile ->
+                val file = if (relFile.isAbsolute) relFile // e.g. jar file when building a fat jar
+                    else File(KFiles.joinDir(directory, root.from, relFile.path))
+                if (file.isFile) {
+                    update(relFile.path + " " + hash(file))
+                } else if (file.isDirectory) {
+                    // e.g. classes folder (of another project) when building a fat jar
+                    KFiles.findRecursively(file).sorted().forEach {
+                        update(relFile.path + "/" + it + " " + hash(File(file, it)))
+                    }
+                } else {
+                    update(relFile.path + " missing")
+                }
+            }
+        }
+        return DatatypeConverter.printHexBinary(md5.digest()).toLowerCase()
+    }
+
+    private fun hash(file: File) : String {
+        val path = file.absolutePath
+        val size = file.length()
+        val lastModified = file.lastModified()
+        val previous = previousHashes[path]
+        val result =
+            if (previous != null && previous.size == size && previous.lastModified == lastModified) previous
+            else ArchiveIndex.FileHash(path, size, lastModified, Md5.toMd5(file))
+        hashes.add(result)
+        return "$size ${result.md5}"
+    }
+}
@@ -0,0 +1,42 @@
+package com.beust.kobalt.archive
+
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.kobaltLog
+import com.google.gson.Gson
+import com.google.gson.JsonSyntaxException
+import java.io.File
+import java.io.FileReader
+
+/**
+ * The entries of an archive that were created from loose files, along with the file each of them came from.
+ * It's saved in kobaltBuild/archives/<archive>.json so that the next generation of that archive can copy the
+ * unchanged entries from the previous archive instead of compressing them again.
+ *
+ * It also contains the fingerprint of the inputs of the archive (see ArchiveFingerprint) and the file hashes
+ * it was computed from, which decide whether the archive needs to be generated again.
+ */
+class ArchiveIndex(val entries: List<Entry>, val fingerprint: String? = null, val hashes: List<FileHash>? = null) {
+    class Entry(val name: String, val crc: Long, val size: Long, val source: String, val lastModified: Long)
+
+    data class FileHash(val path: String, val size: Long, val lastModified: Long, val md5: String)
+
+    companion object {
+        const val ARCHIVES_DIR = "archives"
+
+        fun file(project: Project, archiveName: String)
+                = File(KFiles.joinDir(KFiles.buildDir(project).path, ARCHIVES_DIR, "$archiveName.json"))
+
+        fun read(file: File) : ArchiveIndex? {
+            if (! file.exists()) return null
+            try {
+                return FileReader(file).use { Gson().fromJson(it, ArchiveIndex::class.java) }
+            } catch(ex: JsonSyntaxException) {
+                kobaltLog(2, "  Ignoring corrupted archive index $file: ${ex.message}")
+                return null
+            }
+        }
+    }
+
+    fun save(file: File) = KFiles.saveFile(file, Gson().toJson(this))
+}
@@ -6,9 +6,9 @@ import com.beust.kobalt.api.Project
 import com.beust.kobalt.api.annotation.ExportedProjectProperty
 import com.beust.kobalt.misc.JarUtils
 import com.beust.kobalt.misc.KFiles
-import com.beust.kobalt.misc.kobaltLog
 import java.io.File
-import java.util.*
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
 
 class Archives {
     companion object {
@@ -26,58 +26,51 @@ class Archives {
                 suffix: String,
                 includedFiles: List<IncludedFile>,
                 expandJarFiles : Boolean = false,
-                manifest: java.util.jar.Manifest? = null) : File {
+                manifest: java.util.jar.Manifest? = null,
+                fastPackaging: Boolean = false) : File {
             val fullArchiveName = context.variant.archiveName(project, archiveName, suffix)
             val archiveDir = File(KFiles.libsDir(project))
             val result = File(archiveDir.path, fullArchiveName)
             context.logger.log(project.name, 3, "Creating $result")
-            if (! Features.USE_TIMESTAMPS || isOutdated(project.directory, includedFiles, result)) {
+            val indexFile = ArchiveIndex.file(project, fullArchiveName)
+            val previousIndex = ArchiveIndex.read(indexFile)
+            val fingerprint = ArchiveFingerprint(previousIndex?.hashes)
+            val inputs = fingerprint.compute(project.directory, includedFiles, manifest,
+                    "expandJarFiles: $expandJarFiles fastPackaging: $fastPackaging")
+            if (! Features.USE_TIMESTAMPS || ! result.exists() || previousIndex?.fingerprint != inputs) {
+                // Write the new archive next to the previous one, which it can copy unchanged entries from
+                val temp = File(result.path + ".tmp")
+                val layerDir = File(KFiles.joinDir(KFiles.buildDir(project).path, ArchiveIndex.ARCHIVES_DIR, "layers",
+                        fullArchiveName))
                 try {
-                    MetaArchive(result, manifest).use { metaArchive ->
-                        JarUtils.addFiles(project.directory, includedFiles, metaArchive, expandJarFiles)
-                        context.logger.log(project.name, 2, "Added ${includedFiles.size} files to $result")
-                        context.logger.log(project.name, 1, "  Created $result")
-                    }
+                    val index = MetaArchive(temp, manifest, result, previousIndex,
+                            compress = ! fastPackaging).use { metaArchive ->
+                        JarUtils.addFiles(project.directory, includedFiles, metaArchive, expandJarFiles,
+                                dependencyLayer = if (expandJarFiles) DependencyLayer(layerDir) else null)
+                        metaArchive
+                    }.index
+                    Files.move(temp.toPath(), result.toPath(), StandardCopyOption.REPLACE_EXISTING)
+                    ArchiveIndex(index.entries, inputs, fingerprint.hashes).save(indexFile)
+                    context.logger.log(project.name, 2, "Added ${includedFiles.size} files to $result")
+                    context.logger.log(project.name, 1, "  Created $result")
                 } catch (e: Throwable) {
                     // make sure that incomplete archive is deleted
                     // otherwise incremental build does not work on next run
+                    temp.delete()
                     result.delete()
+                    indexFile.delete()
                     throw e
                 }
 
             } else {
                 context.logger.log(project.name, 3, "  $result is up to date")
+                if (previousIndex.hashes != fingerprint.hashes) {
+                    // Files were only touched: save their new timestamps so they're not hashed again next time
+                    ArchiveIndex(previousIndex.entries, inputs, fingerprint.hashes).save(indexFile)
+                }
             }
 
             return result
         }
-
-        private fun isOutdated(directory: String, includedFiles: List<IncludedFile>, output: File): Boolean {
-            if (! output.exists()) return true
-
-            val lastModified = output.lastModified()
-            includedFiles.forEach { root ->
-                val allFiles = root.allFromFiles(directory)
-                allFiles.forEach { relFile ->
-                    val file = if (relFile.isAbsolute)
-                        relFile // e.g. jar file or classes folder (of another project) when building a fat jar
-                    else
-                        File(KFiles.joinDir(directory, root.from, relFile.path))
-                    if (file.isFile) {
-                        if (file.lastModified() > lastModified) {
-                            kobaltLog(3, "    TS - Outdated $file and $output "
-                                    + Date(file.lastModified()) + " " + Date(output.lastModified()))
-                            return true
-                        }
-                    } else if (file.isDirectory) {
-                        // e.g. classes folder (of another project) when building a fat jar
-                        val includedFile = IncludedFile(From(""), To(""), listOf(IFileSpec.GlobSpec("**")))
-                        if (isOutdated(file.absolutePath, listOf(includedFile), output))
-                            return true
-                    }
-                }
-            }
-            return false
-        }
     }
 }
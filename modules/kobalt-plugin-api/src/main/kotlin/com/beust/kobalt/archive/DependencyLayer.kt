@@ -0,0 +1,63 @@
+package com.beust.kobalt.archive
+
+import com.beust.kobalt.misc.kobaltLog
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import javax.xml.bind.DatatypeConverter
+import org.apache.commons.compress.archivers.zip.ZipFile as ApacheZipFile
+
+/**
+ * The dependency jar files of a fat jar, merged once in a single jar file (the "layer") that is then spliced
+ * into the fat jar with MetaArchive.addArchive(). The layer is kept in [directory] and named after the
+ * fingerprint of the jar files it contains, so it's only generated again when the classpath changes.
+ */
+class DependencyLayer(val directory: File) {
+    companion object {
+        fun fingerprint(jarFiles: List<File>) = MessageDigest.getInstance("MD5").let { md5 ->
+            jarFiles.forEach {
+                md5.update((it.absolutePath + " " + it.length() + " " + it.lastModified() + "\n").toByteArray())
+            }
+            DatatypeConverter.printHexBinary(md5.digest()).toLowerCase()
+        }
+    }
+
+    /**
+     * @return the layer containing these jar files, merged in this order: the first entry with a given
+     * name wins and the entries that MetaArchive wouldn't add are dropped.
+     */
+    fun layer(jarFiles: List<File>) : File {
+        val result = File(directory, fingerprint(jarFiles) + ".jar")
+        if (result.exists()) {
+            kobaltLog(2, "  Reusing the dependency layer $result")
+            return result
+        }
+
+        directory.mkdirs()
+        val temp = File.createTempFile("layer", ".tmp", directory)
+        try {
+            val seen = hashSetOf<String>()
+            ZipArchiveOutputStream(temp).use { zos ->
+                zos.setEncoding("UTF-8")
+                jarFiles.forEach { jarFile ->
+                    ApacheZipFile(jarFile).use { jar ->
+                        for (entry in jar.entries) {
+                            if (seen.add(entry.name) && MetaArchive.okToAdd(entry.name)) {
+                                zos.addRawArchiveEntry(entry, jar.getRawInputStream(entry))
+                            }
+                        }
+                    }
+                }
+            }
+            // Only keep the latest layer
+            directory.listFiles { f -> f.name.endsWith(".jar") }.forEach { it.delete() }
+            Files.move(temp.toPath(), result.toPath(), StandardCopyOption.ATOMIC_MOVE)
+            kobaltLog(2, "  Created the dependency layer $result from ${jarFiles.size} jar files")
+        } finally {
+            temp.delete()
+        }
+        return result
+    }
+}
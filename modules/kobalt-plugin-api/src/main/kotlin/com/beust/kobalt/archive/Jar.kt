@@ -9,6 +9,13 @@ import com.beust.kobalt.api.annotation.Directive
 open class Jar(override val project: Project,
         override var name : String = Archives.defaultArchiveName(project) + ".jar",
         override var fatJar: Boolean = false) : Zip(project, name, fatJar), AttributeHolder {
+    /**
+     * With fast packaging, don't copy the dependencies of a fat jar into it but into the lib/ directory
+     * next to it, and reference them with the Class-Path attribute of its manifest.
+     */
+    @Directive
+    var thinJar: Boolean = false
+
     @Directive
     fun manifest(init: Manifest.(p: Manifest) -> Unit) : Manifest {
         val m = Manifest(this)
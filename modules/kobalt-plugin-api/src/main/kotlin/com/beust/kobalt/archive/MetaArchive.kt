@@ -1,26 +1,112 @@
 package com.beust.kobalt.archive
 
 import com.beust.kobalt.Glob
+import com.beust.kobalt.misc.BuildTrace
 import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.KobaltExecutor
 import org.apache.commons.compress.archivers.ArchiveEntry
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream
-import java.io.Closeable
-import java.io.File
-import java.io.FileInputStream
-import java.io.FileOutputStream
+import java.io.*
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 import java.util.jar.Manifest
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.ZipEntry
 import org.apache.commons.compress.archivers.zip.ZipFile as ApacheZipFile
 
 /**
  * Abstraction of a zip/jar/war archive that automatically manages the addition of expanded jar files.
  * Uses ZipArchiveOutputStream for fast inclusion of expanded jar files.
+ *
+ * Loose files are deflated concurrently by a pool of threads shared by all the archives and written as raw
+ * entries in the order in which they were added, so the content of the archive doesn't depend on the scheduling
+ * of these threads. Files bigger than [STREAM_THRESHOLD] are not held in memory: they are compressed while
+ * they are written. If [compress] is false, they are stored instead (fast packaging).
+ *
+ * If the previous version of this archive and its index are passed, the entries whose file didn't change are
+ * copied raw from that archive instead of being compressed again. Entry times are the times of their files
+ * (or a fixed date for directories and the manifest), so the result is identical to a full generation.
+ *
+ * Each archive is an "archive" span of BuildTrace, with the number of entries reused from the previous archive,
+ * compressed and copied from other archives.
  */
-class MetaArchive(outputFile: File, val manifest: Manifest?) : Closeable {
+class MetaArchive(outputFile: File, val manifest: Manifest?, previous: File? = null,
+        previousIndex: ArchiveIndex? = null, val compress: Boolean = true) : Closeable {
     companion object {
         const val MANIFEST_MF = "META-INF/MANIFEST.MF"
+
+        private val THREAD_COUNT = Runtime.getRuntime().availableProcessors()
+
+        /** Files bigger than this are compressed by the thread that writes the archive */
+        const val STREAM_THRESHOLD = 1024 * 1024L
+
+        /** Maximum size of the files waiting to be written, to bound the memory used by deflated files */
+        private const val MAX_PENDING_BYTES = 32 * 1024 * 1024L
+
+        private const val BUFFER_SIZE = 50 * 1024
+
+        /** The threads that deflate the loose files of all the archives, stopped when they're idle */
+        private val executor by lazy {
+            KobaltExecutor("Zip", THREAD_COUNT).apply {
+                allowCoreThreadTimeOut(true)
+            }
+        }
+
+        /** The time of the entries that don't come from a file */
+        val ENTRY_TIME = GregorianCalendar(1980, Calendar.FEBRUARY, 1).timeInMillis
+
+        fun okToAdd(name: String) : Boolean {
+            val result = !KFiles.isExcluded(name,
+                    Glob("META-INF/*.SF", "META-INF/*.DSA", "META-INF/*.RSA", MANIFEST_MF))
+//            if (name.startsWith("META-INF")) println((if (result) "ADDING" else "NOT ADDING") + " $name")
+            return result
+        }
     }
 
+    /**
+     * An entry ready to be written: directories have no data, files have either been deflated, are
+     * copied from the previous archive or are [streamed] from their file.
+     */
+    private class PreparedEntry(val entry: ZipArchiveEntry, val deflated: ByteArray?, val source: File? = null,
+            val lastModified: Long = 0, val previousEntry: ZipArchiveEntry? = null, val streamed: Boolean = false)
+
+    /** An entry not written yet and the size of its file */
+    private class Pending(val future: Future<PreparedEntry>, val size: Long)
+
+    private val previousZip = previous?.let {
+        try {
+            if (it.exists() && previousIndex != null) ApacheZipFile(it) else null
+        } catch(ex: IOException) {
+            null
+        }
+    }
+
+    /** The compression method of the loose files */
+    private val method = if (compress) ZipEntry.DEFLATED else ZipEntry.STORED
+
+    private val previousEntries = previousIndex?.entries?.associateBy { it.name } ?: emptyMap()
+
+    private val indexEntries = arrayListOf<ArchiveIndex.Entry>()
+
+    /** The index of this archive, complete once it's closed */
+    val index: ArchiveIndex
+        get() = ArchiveIndex(indexEntries)
+
+    private val span = BuildTrace.startSpan((previous ?: outputFile).name, "archive")
+    private var reusedCount = 0
+    private var deflatedCount = 0
+    private var copiedCount = 0
+
+    /** Entries not written yet, in the order in which they were added */
+    private val pending = ArrayDeque<Pending>()
+    private var pendingBytes = 0L
+
     private val zos= ZipArchiveOutputStream(outputFile).apply {
         encoding = "UTF-8"
     }
@@ -29,14 +115,17 @@ class MetaArchive(outputFile: File, val manifest: Manifest?) : Closeable {
         // If no manifest was passed, create an empty one so it's the first one in the archive
         val m = manifest ?: Manifest()
         val manifestFile = File.createTempFile("kobalt", "tmpManifest")
-        addEntry(ZipArchiveEntry("META-INF/"), null)
+        addEntry(directoryEntry("META-INF/"), null)
         if (manifest != null) {
             FileOutputStream(manifestFile).use { fos ->
                 m.write(fos)
             }
         }
-        val entry = zos.createArchiveEntry(manifestFile, MetaArchive.MANIFEST_MF)
+        val entry = ZipArchiveEntry(manifestFile, MetaArchive.MANIFEST_MF).apply {
+            time = ENTRY_TIME
+        }
         addEntry(entry, FileInputStream(manifestFile))
+        manifestFile.delete()
     }
 
 
@@ -47,15 +136,158 @@ class MetaArchive(outputFile: File, val manifest: Manifest?) : Closeable {
 
     private fun addFile2(f: File, entryFile: File, path: String?) {
         val file = f.normalize()
-        FileInputStream(file).use { inputStream ->
-            val actualPath = KFiles.fixSlashes(if (path != null) path + entryFile.path else entryFile.path)
-            ZipArchiveEntry(actualPath).let { entry ->
-                maybeCreateParentDirectories(File(actualPath))
-                maybeAddEntry(entry) {
-                    addEntry(entry, inputStream)
+        val actualPath = KFiles.fixSlashes(if (path != null) path + entryFile.path else entryFile.path)
+        ZipArchiveEntry(actualPath).let { entry ->
+            maybeCreateParentDirectories(File(actualPath))
+            maybeAddEntry(entry) {
+                val record = previousEntries[actualPath]
+                val previousEntry = previousZip?.getEntry(actualPath)
+                val size = file.length()
+                if (record != null && previousEntry?.method == method && record.source == file.path
+                        && record.lastModified == file.lastModified() && record.size == size) {
+                    enqueue(CompletableFuture.completedFuture(reuse(entry, file, previousEntry)))
+                } else if (size > STREAM_THRESHOLD) {
+                    enqueue(CompletableFuture.completedFuture(prepare(entry, file, record, previousEntry,
+                            streamed = true)))
+                } else {
+                    enqueue(executor.submit(Callable { prepare(entry, file, record, previousEntry) }), size)
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs on one of the threads of the pool, or on the calling thread if the file is [streamed]. The file was
+     * modified since the previous archive, but it can still be copied from it if it was only touched.
+     */
+    private fun prepare(entry: ZipArchiveEntry, file: File, record: ArchiveIndex.Entry?,
+            previousEntry: ZipArchiveEntry?, streamed: Boolean = false) : PreparedEntry {
+        if (record != null && previousEntry?.method == method && record.source == file.path
+                && record.size == file.length()) {
+            if (crc(file) == record.crc) return reuse(entry, file, previousEntry)
+        }
+        return if (streamed) {
+            // Known sizes (and crc if the entry is stored) keep ZipArchiveOutputStream from adding a Zip64 extra
+            // field to the local header, so the entry is identical to the one of an incremental archive
+            val lastModified = file.lastModified()
+            PreparedEntry(entry.apply {
+                method = this@MetaArchive.method
+                time = lastModified
+                size = file.length()
+                if (method == ZipEntry.STORED) crc = crc(file)
+            }, null, file, lastModified, streamed = true)
+        } else {
+            deflate(entry, file)
+        }
+    }
+
+    private fun crc(file: File) : Long {
+        val crc = CRC32()
+        FileInputStream(file).use { ins ->
+            val buffer = ByteArray(BUFFER_SIZE)
+            var n = ins.read(buffer)
+            while (n >= 0) {
+                crc.update(buffer, 0, n)
+                n = ins.read(buffer)
+            }
+        }
+        return crc.value
+    }
+
+    private fun reuse(entry: ZipArchiveEntry, file: File, previousEntry: ZipArchiveEntry) : PreparedEntry {
+        val lastModified = file.lastModified()
+        return PreparedEntry(entry.apply {
+            method = previousEntry.method
+            time = lastModified
+            size = previousEntry.size
+            compressedSize = previousEntry.compressedSize
+            crc = previousEntry.crc
+        }, null, file, lastModified, previousEntry)
+    }
+
+    /**
+     * Runs on one of the threads of the pool: compress the file in memory (or just read it if it's stored)
+     * and fill in the sizes and the crc, so the entry can then be written with addRawArchiveEntry().
+     */
+    private fun deflate(entry: ZipArchiveEntry, file: File) : PreparedEntry {
+        val lastModified = file.lastModified()
+        val crc = CRC32()
+        var size = 0L
+        val bytes = ByteArrayOutputStream()
+        val deflater = if (compress) Deflater(Deflater.DEFAULT_COMPRESSION, true) else null
+        try {
+            (if (deflater != null) DeflaterOutputStream(bytes, deflater, BUFFER_SIZE) else bytes).use { out ->
+                FileInputStream(file).use { ins ->
+                    val buffer = ByteArray(BUFFER_SIZE)
+                    var n = ins.read(buffer)
+                    while (n >= 0) {
+                        crc.update(buffer, 0, n)
+                        out.write(buffer, 0, n)
+                        size += n
+                        n = ins.read(buffer)
+                    }
                 }
             }
+        } finally {
+            deflater?.end()
         }
+        return PreparedEntry(entry.apply {
+            method = this@MetaArchive.method
+            time = lastModified
+            this.size = size
+            compressedSize = bytes.size().toLong()
+            this.crc = crc.value
+        }, bytes.toByteArray(), file, lastModified)
+    }
+
+    /**
+     * @param size the size of the file of this entry if it's deflated in memory, which is the upper bound
+     * of the memory it uses until it's written.
+     */
+    private fun enqueue(entry: Future<PreparedEntry>, size: Long = 0) {
+        pending.add(Pending(entry, size))
+        pendingBytes += size
+        while (pending.isNotEmpty() && (pending.peek().future.isDone || pendingBytes > MAX_PENDING_BYTES)) {
+            write(pending.poll())
+        }
+    }
+
+    private fun flush() {
+        while (pending.isNotEmpty()) {
+            write(pending.poll())
+        }
+    }
+
+    private fun write(next: Pending) {
+        pendingBytes -= next.size
+        val prepared = try {
+            next.future.get()
+        } catch(ex: ExecutionException) {
+            throw ex.cause ?: ex
+        }
+        with(prepared) {
+            if (previousEntry != null) {
+                zos.addRawArchiveEntry(entry, previousZip!!.getRawInputStream(previousEntry))
+                reusedCount++
+            } else if (deflated != null) {
+                zos.addRawArchiveEntry(entry, ByteArrayInputStream(deflated))
+                deflatedCount++
+            } else if (streamed) {
+                // ZipArchiveOutputStream compresses it and fills in the compressed size (and the crc if it's
+                // deflated) of the entry
+                addEntry(entry, FileInputStream(source))
+                deflatedCount++
+            } else {
+                addEntry(entry, null)
+            }
+            if (source != null) {
+                indexEntries.add(ArchiveIndex.Entry(entry.name, entry.crc, entry.size, source.path, lastModified))
+            }
+        }
+    }
+
+    private fun directoryEntry(name: String) = ZipArchiveEntry(name).apply {
+        time = ENTRY_TIME
     }
 
     private val createdDirs = hashSetOf<String>()
@@ -78,16 +310,18 @@ class MetaArchive(outputFile: File, val manifest: Manifest?) : Closeable {
             current = current.parentFile
         }
         toCreate.forEach { dir ->
-            addEntry(ZipArchiveEntry(dir), null)
+            enqueue(CompletableFuture.completedFuture(PreparedEntry(directoryEntry(dir), null)))
         }
     }
 
     fun addArchive(jarFile: File) {
+        flush()
         ApacheZipFile(jarFile).use { jar ->
             val jarEntries = jar.entries
             for (entry in jarEntries) {
                 maybeAddEntry(entry) {
                     zos.addRawArchiveEntry(entry, jar.getRawInputStream(entry))
+                    copiedCount++
                 }
             }
         }
@@ -95,19 +329,23 @@ class MetaArchive(outputFile: File, val manifest: Manifest?) : Closeable {
 
 
 
-    private fun okToAdd(name: String) : Boolean {
-        val result = !KFiles.isExcluded(name,
-                Glob("META-INF/*.SF", "META-INF/*.DSA", "META-INF/*.RSA", MANIFEST_MF))
-//        if (name.startsWith("META-INF")) println((if (result) "ADDING" else "NOT ADDING") + " $name")
-        return result
+    override fun close() {
+        try {
+            flush()
+        } finally {
+            previousZip?.close()
+            zos.close()
+            span.attribute("reused", reusedCount)
+                    .attribute("compressed", deflatedCount)
+                    .attribute("copied", copiedCount)
+                    .stop()
+        }
     }
 
-    override fun close() = zos.close()
-
     private fun addEntry(entry: ArchiveEntry, inputStream: FileInputStream?) {
         zos.putArchiveEntry(entry)
         inputStream?.use { ins ->
-            ins.copyTo(zos, 50 * 1024)
+            ins.copyTo(zos, BUFFER_SIZE)
         }
         zos.closeArchiveEntry()
     }
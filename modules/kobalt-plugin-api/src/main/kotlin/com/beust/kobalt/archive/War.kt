@@ -1,10 +1,24 @@
 package com.beust.kobalt.archive
 
 import com.beust.kobalt.api.Project
+import com.beust.kobalt.api.annotation.Directive
 import com.beust.kobalt.glob
 
 class War(override val project: Project, override var name: String = Archives.defaultArchiveName(project) + ".war")
         : Jar(project, name), AttributeHolder {
+    /**
+     * Maintain the content of this war in kobaltBuild/exploded-war/<war name>, only copying the files that
+     * changed since the last assemble. The war file is then created from that directory.
+     */
+    @Directive
+    var exploded: Boolean = false
+
+    /**
+     * Set to false with exploded = true to only maintain the exploded directory.
+     */
+    @Directive
+    var archive: Boolean = true
+
     init {
         include(from("src/main/webapp"), to(""), glob("**"))
         include(from("kobaltBuild/classes"), to("WEB-INF/classes"), glob("**"))
@@ -1,6 +1,7 @@
 package com.beust.kobalt.archive
 
 import com.beust.kobalt.*
+import com.beust.kobalt.api.KobaltContext
 import com.beust.kobalt.api.Project
 import com.beust.kobalt.api.annotation.Directive
 
@@ -8,6 +9,15 @@ open class Zip(open val project: Project, open var name: String = Archives.defau
         open var fatJar: Boolean = false): AttributeHolder, IncludeFromTo()  {
     val excludes = arrayListOf<Glob>()
 
+    /**
+     * Store the entries without compressing them, for archives that are only built to be run locally.
+     * Can also be enabled for all the archives with --fastPackaging.
+     */
+    @Directive
+    var fastPackaging: Boolean = false
+
+    fun isFastPackaging(context: KobaltContext) = fastPackaging || context.args.fastPackaging
+
     @Directive
     fun exclude(vararg files: String) {
         files.forEach { excludes.add(Glob(it)) }
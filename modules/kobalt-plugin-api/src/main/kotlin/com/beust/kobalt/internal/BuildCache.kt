@@ -0,0 +1,231 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.Args
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.internal.build.BuildSources
+import com.beust.kobalt.internal.build.IBuildSources
+import com.beust.kobalt.internal.build.SingleFileBuildSources
+import com.beust.kobalt.maven.Md5
+import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.KobaltExecutors
+import com.beust.kobalt.misc.kobaltLog
+import com.beust.kobalt.misc.warn
+import com.google.inject.Inject
+import com.google.inject.Singleton
+import okhttp3.MediaType
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.RequestBody
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+import java.util.zip.Deflater
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+import javax.xml.bind.DatatypeConverter
+
+/**
+ * Client side of the remote build cache configured with <buildCache> in ~/.kobalt/settings.xml.
+ *
+ * The protocol is deliberately minimal: an entry is a zip file of the outputs of an incremental task, with
+ * paths relative to the project directory, and it's fetched with `GET <url>/<key>` and stored with
+ * `PUT <url>/<key>`. The key is calculated from the content of the inputs of the task (not their timestamps),
+ * the build file and the settings of the task (e.g. compiler flags) so that it's the same on all the machines
+ * building the same commit.
+ *
+ * Errors talking to the cache are never fatal: they are reported and the task simply runs locally.
+ */
+@Singleton
+class BuildCache @Inject constructor(val settings: KobaltSettings, val executors: KobaltExecutors,
+        val args: Args = Args()) {
+    companion object {
+        /** How the paths of the files of the local repository start in the keys */
+        private const val LOCAL_REPO_PREFIX = "<localRepo>/"
+
+        /** How the paths of the files of the other projects of the build start in the keys */
+        private const val BUILD_PREFIX = "<build>/"
+    }
+
+    private val buildSources: IBuildSources by lazy {
+        val file = File(args.buildFile ?: ".").absoluteFile
+        if (file.isDirectory) BuildSources(file) else SingleFileBuildSources(file)
+    }
+
+    private val buildRoot: File by lazy { buildSources.root.absoluteFile.normalize() }
+
+    /** The hash of the content of the build file(s) */
+    private val buildFileHash: String by lazy {
+        buildSources.findSourceFiles().filter(File::isFile).sorted().joinToString(" ") { Md5.toMd5(it) }
+    }
+
+    private val config = settings.buildCache
+
+    val isEnabled = config?.url != null
+
+    private val baseUrl = config?.url?.let { if (it.endsWith("/")) it else it + "/" }
+
+    private val client: OkHttpClient by lazy {
+        val timeout = config?.timeout?.toLong() ?: 10L
+        OkHttpClient.Builder()
+                .proxy(settings.proxyConfigs?.firstOrNull()?.toProxy())
+                .connectTimeout(timeout, TimeUnit.SECONDS)
+                .readTimeout(timeout, TimeUnit.SECONDS)
+                .writeTimeout(timeout, TimeUnit.SECONDS)
+                .build()
+    }
+
+    /**
+     * @return the key for this task, these input files and these [keyInputs] (see IncrementalTaskInfo), or null
+     * if it can't be calculated (no inputs). The content of the build file is part of the key too. Files inside
+     * the project directory are identified by their path relative to it, files of the other projects of the
+     * build by their path relative to the root of the build and jar files in the local repository by their path
+     * relative to the repository, so that the key doesn't depend on where things are installed. Any other file
+     * is identified by its full path, so two inputs can never share a path.
+     */
+    fun cacheKey(project: Project, taskName: String, inputFiles: List<File>,
+            keyInputs: List<String> = emptyList()) : String? {
+        val root = projectRoot(project)
+        val files = sortedMapOf<String, File>()
+        inputFiles.filter(File::exists).forEach { input ->
+            if (input.isDirectory) {
+                KFiles.findRecursively(input).map { File(input, it) }.forEach { files.put(keyPath(root, it), it) }
+            } else {
+                files.put(keyPath(root, input), input)
+            }
+        }
+        if (files.isEmpty()) return null
+
+        val md5 = MessageDigest.getInstance("MD5")
+        md5.update(taskName.toByteArray())
+        md5.update(buildFileHash.toByteArray())
+        keyInputs.forEach { md5.update((it + "\n").toByteArray()) }
+        files.forEach { path, file ->
+            md5.update(path.toByteArray())
+            md5.update(Md5.toMd5(file).toByteArray())
+        }
+        return DatatypeConverter.printHexBinary(md5.digest()).toLowerCase()
+    }
+
+    /**
+     * Download the entry for this key, if any, and replace the output files with its content.
+     * @return true if the outputs were restored from the cache.
+     */
+    fun load(project: Project, key: String, outputFiles: List<File>) : Boolean {
+        val root = projectRoot(project)
+        if (! canCache(root, outputFiles)) return false
+
+        val url = baseUrl + key
+        try {
+            client.newCall(Request.Builder().url(url).get().build()).execute().use { response ->
+                if (response.code() == 404) {
+                    kobaltLog(2, "    Build cache miss for $key")
+                    return false
+                } else if (! response.isSuccessful) {
+                    warn("Couldn't read from the build cache $url: ${response.code()} ${response.message()}")
+                    return false
+                }
+
+                val entry = File.createTempFile("kobalt-cache", ".zip")
+                try {
+                    response.body()!!.byteStream().use { ins ->
+                        FileOutputStream(entry).use { ins.copyTo(it) }
+                    }
+                    outputFiles.forEach { it.deleteRecursively() }
+                    unzip(entry, root)
+                } finally {
+                    entry.delete()
+                }
+                kobaltLog(2, "    Build cache hit for $key")
+                return true
+            }
+        } catch(ex: IOException) {
+            warn("Couldn't read from the build cache $url: ${ex.message}")
+            return false
+        }
+    }
+
+    /**
+     * Upload the output files under this key. The upload is performed asynchronously so it doesn't
+     * slow down the build, and skipped entirely if the cache is read only.
+     */
+    fun store(project: Project, key: String, outputFiles: List<File>) {
+        val root = projectRoot(project)
+        if ((config?.readOnly ?: true) || ! canCache(root, outputFiles)) return
+
+        // Zip the outputs right away since the following tasks might modify them
+        val entry = File.createTempFile("kobalt-cache", ".zip")
+        zip(root, outputFiles, entry)
+        executors.miscExecutor.submit {
+            val url = baseUrl + key
+            try {
+                val body = RequestBody.create(MediaType.parse("application/zip"), entry)
+                client.newCall(Request.Builder().url(url).put(body).build()).execute().use { response ->
+                    if (response.isSuccessful) {
+                        kobaltLog(2, "    Uploaded ${entry.length()} bytes to the build cache for $key")
+                    } else {
+                        warn("Couldn't upload to the build cache $url: ${response.code()} ${response.message()}")
+                    }
+                }
+            } catch(ex: IOException) {
+                warn("Couldn't upload to the build cache $url: ${ex.message}")
+            } finally {
+                entry.delete()
+            }
+        }
+    }
+
+    private fun projectRoot(project: Project) = File(project.directory).absoluteFile.normalize()
+
+    private fun keyPath(root: File, file: File) : String {
+        val abs = file.absoluteFile.normalize()
+        val localRepo = settings.localCache.absoluteFile.normalize()
+        return KFiles.fixSlashes(
+            if (abs.startsWith(root)) abs.relativeTo(root).path
+            else if (abs.startsWith(buildRoot)) BUILD_PREFIX + abs.relativeTo(buildRoot).path
+            else if (abs.startsWith(localRepo)) LOCAL_REPO_PREFIX + abs.relativeTo(localRepo).path
+            else abs.path)
+    }
+
+    /**
+     * Only outputs that live inside the project directory can be restored on another machine.
+     */
+    private fun canCache(root: File, outputFiles: List<File>)
+            = outputFiles.any() && outputFiles.all { it.absoluteFile.normalize().startsWith(root) }
+
+    private fun zip(root: File, outputFiles: List<File>, to: File) {
+        ZipOutputStream(FileOutputStream(to)).use { zos ->
+            zos.setLevel(Deflater.BEST_SPEED)
+            outputFiles.filter(File::exists).forEach { output ->
+                val files = if (output.isDirectory) KFiles.findRecursively(output).map { File(output, it) }
+                    else listOf(output)
+                files.forEach { file ->
+                    zos.putNextEntry(ZipEntry(keyPath(root, file)).apply { time = file.lastModified() })
+                    FileInputStream(file).use { it.copyTo(zos) }
+                    zos.closeEntry()
+                }
+            }
+        }
+    }
+
+    private fun unzip(from: File, root: File) {
+        ZipInputStream(FileInputStream(from)).use { zis ->
+            var entry = zis.nextEntry
+            while (entry != null) {
+                val target = File(root, entry.name).normalize()
+                if (! target.startsWith(root)) {
+                    throw IOException("Illegal entry in build cache archive: ${entry.name}")
+                }
+                if (! entry.isDirectory) {
+                    target.parentFile.mkdirs()
+                    FileOutputStream(target).use { zis.copyTo(it) }
+                    target.setLastModified(entry.time)
+                }
+                entry = zis.nextEntry
+            }
+        }
+    }
+}
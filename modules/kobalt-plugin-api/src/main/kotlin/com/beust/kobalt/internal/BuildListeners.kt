@@ -5,37 +5,48 @@ import com.beust.kobalt.AsciiArt
 import com.beust.kobalt.api.*
 import com.beust.kobalt.misc.kobaltLog
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
 
 /**
- * Record timings and statuses for tasks and projects and display them at the end of the build.
+ * Record timings and statuses for tasks and projects and display them at the end of the build. With --profiling,
+ * the resources used by each task are measured by a TaskProfiler.
  */
 class BuildListeners : IBuildListener, IBuildReportContributor {
-    class ProfilerInfo(val taskName: String, val durationMillis: Long)
+    class ProfilerInfo(val taskName: String, val durationMillis: Long, val usage: TaskProfiler.Usage? = null)
     class ProjectInfo(val projectName: String, var durationMillis: Long = 0,
             var shortMessage: String? = null, var longMessage: String? = null)
 
     private val startTimes = ConcurrentHashMap<String, Long>()
-    private val timings = arrayListOf<ProfilerInfo>()
-    private val projectInfos = hashMapOf<String, ProjectInfo>()
+    private val samples = ConcurrentHashMap<String, TaskProfiler.Sample>()
+    private val timings = ConcurrentLinkedQueue<ProfilerInfo>()
+    private val projectInfos = ConcurrentHashMap<String, ProjectInfo>()
+    private val projectStartTimes = ConcurrentHashMap<String, Long>()
     private var hasFailures = false
     private val args: Args get() = Kobalt.INJECTOR.getInstance(Args::class.java)
+    private val profiler by lazy { TaskProfiler() }
     private var buildStartTime: Long? = null
 
+    /** The parallel runner only passes the name of the task, which several projects can be running */
+    private fun fullName(project: Project, taskName: String) =
+            if (taskName.startsWith(project.name + ":")) taskName else project.name + ":" + taskName
+
     // IBuildListener
     override fun taskStart(project: Project, context: KobaltContext, taskName: String) {
-        startTimes.put(taskName, System.currentTimeMillis())
-        if (! projectInfos.containsKey(project.name)) {
-            projectInfos.put(project.name, ProjectInfo(project.name))
-        }
+        val name = fullName(project, taskName)
+        if (args.profiling) samples.put(name, profiler.start())
+        startTimes.put(name, System.currentTimeMillis())
+        projectInfos.putIfAbsent(project.name, ProjectInfo(project.name))
     }
 
     // IBuildListener
     override fun taskEnd(project: Project, context: KobaltContext, taskName: String, info: IBuildListener.TaskEndInfo) {
         val success = info.success
         if (! success) hasFailures = true
-        startTimes[taskName]?.let {
+        val name = fullName(project, taskName)
+        val usage = samples.remove(name)?.let { profiler.stop(it) }
+        startTimes.remove(name)?.let {
             val taskTime = System.currentTimeMillis() - it
-            timings.add(ProfilerInfo(taskName, taskTime))
+            timings.add(ProfilerInfo(name, taskTime, usage))
             projectInfos[project.name]?.let {
                 it.durationMillis += taskTime
                 if (info.shortMessage != null && it.shortMessage == null) it.shortMessage = info.shortMessage
@@ -44,11 +55,13 @@ class BuildListeners : IBuildListener, IBuildReportContributor {
         }
     }
 
-    private val projectStatuses = arrayListOf<Pair<Project, String>>()
+    private val projectStatuses = ConcurrentLinkedQueue<Pair<Project, String>>()
 
     // IBuildListener
+    @Synchronized
     override fun projectStart(project: Project, context: KobaltContext) {
         if (buildStartTime == null) buildStartTime = System.currentTimeMillis()
+        projectStartTimes.put(project.name, System.currentTimeMillis())
     }
 
     // IBuildListener
@@ -68,9 +81,33 @@ class BuildListeners : IBuildListener, IBuildReportContributor {
 
         val profiling = args.profiling
         if (profiling) {
-            kobaltLog(1, "\n" + AsciiArt.horizontalSingleLine + " Timings (in seconds)")
+            fun millis(millis: Long) = if (millis < 0) String.format("%10s", "-") else formatMillisRight(millis, 10)
+            fun megabytes(bytes: Long) = if (bytes < 0) String.format("%10s", "-")
+                else String.format("%10.1f", bytes / (1024.0 * 1024))
+
+            kobaltLog(1, "\n" + AsciiArt.horizontalSingleLine + " Timings (in seconds, CPU, allocations, locks and"
+                    + " waits of the thread running the task)")
+            kobaltLog(1, listOf("wall", "cpu", "alloc MB", "gc", "locks", "waits", "forks cpu")
+                    .joinToString("") { String.format("%10s", it) })
             timings.sortedByDescending { it.durationMillis }.forEach {
-                kobaltLog(1, formatMillisRight(it.durationMillis, 10) + " " + it.taskName)
+                val usage = it.usage
+                val columns = if (usage == null) "" else listOf(millis(usage.cpuMillis),
+                        megabytes(usage.allocatedBytes), millis(usage.gcMillis), millis(usage.blockedMillis),
+                        millis(usage.waitedMillis), millis(usage.forkCpuMillis)).joinToString("")
+                kobaltLog(1, formatMillisRight(it.durationMillis, 10) + columns + " " + it.taskName)
+            }
+
+            // How long each project waited for the projects it depends on (or for a free thread) before starting
+            buildStartTime?.let { buildStart ->
+                val waits = projectStartTimes.entries.map { Pair(it.key, it.value - buildStart) }
+                        .filter { it.second > 0 }
+                if (waits.any()) {
+                    kobaltLog(1, "\n" + AsciiArt.horizontalSingleLine
+                            + " Waiting for other projects before starting (in seconds)")
+                    waits.sortedByDescending { it.second }.forEach {
+                        kobaltLog(1, formatMillisRight(it.second, 10) + " " + it.first)
+                    }
+                }
             }
             kobaltLog(1, "\n")
 
@@ -0,0 +1,151 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.KobaltException
+import java.io.BufferedInputStream
+import java.io.DataInputStream
+import java.io.File
+import java.io.FileInputStream
+
+/**
+ * What Kobalt needs to know about a class file, read directly from its bytes without loading it: its name,
+ * its super class, its interfaces, the classes it references (from its constant pool and its type
+ * descriptors) and the runtime annotations of the class and of its fields and methods. The names use dots
+ * (e.g. "com.beust.Foo$Bar").
+ */
+class ClassFileInfo(val name: String, val superName: String?, val interfaces: List<String>, val access: Int,
+        val references: Set<String>, val annotations: Set<String>) {
+    val isAbstract get() = access and (ACC_ABSTRACT or ACC_INTERFACE) != 0
+
+    companion object {
+        const val ACC_INTERFACE = 0x0200
+        const val ACC_ABSTRACT = 0x0400
+
+        private const val MAGIC = 0xCAFEBABE.toInt()
+        private val DESCRIPTOR_TYPE = Regex("L([\\w/$]+);")
+
+        fun read(file: File) : ClassFileInfo =
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use {
+                try {
+                    read(it)
+                } catch(ex: Exception) {
+                    throw KobaltException("Couldn't read the class file $file: ${ex.message}", ex)
+                }
+            }
+
+        fun read(ins: DataInputStream) : ClassFileInfo {
+            if (ins.readInt() != MAGIC) throw IllegalArgumentException("Not a class file")
+            ins.readUnsignedShort() // minor version
+            ins.readUnsignedShort() // major version
+
+            val count = ins.readUnsignedShort()
+            val utf8 = arrayOfNulls<String>(count)
+            // Index of a class entry -> index of its name
+            val classes = hashMapOf<Int, Int>()
+            var i = 1
+            while (i < count) {
+                val tag = ins.readUnsignedByte()
+                when (tag) {
+                    1 -> utf8[i] = ins.readUTF()
+                    7 -> classes[i] = ins.readUnsignedShort()
+                    8, 16, 19, 20 -> ins.skipFully(2)
+                    15 -> ins.skipFully(3)
+                    3, 4, 9, 10, 11, 12, 17, 18 -> ins.skipFully(4)
+                    5, 6 -> {
+                        // Longs and doubles take two entries
+                        ins.skipFully(8)
+                        i++
+                    }
+                    else -> throw IllegalArgumentException("Unknown constant pool tag $tag")
+                }
+                i++
+            }
+
+            val classNames = hashMapOf<Int, String>()
+            classes.forEach { (index, nameIndex) -> utf8[nameIndex]?.let { classNames[index] = it } }
+            fun className(index: Int) = classNames[index]?.replace('/', '.')
+
+            val access = ins.readUnsignedShort()
+            val name = className(ins.readUnsignedShort())!!
+            val superName = className(ins.readUnsignedShort())
+            val interfaces = (1..ins.readUnsignedShort()).map { className(ins.readUnsignedShort())!! }
+
+            val references = hashSetOf<String>()
+            classNames.values.forEach {
+                if (it.startsWith("[")) {
+                    // Array class: [Lcom/beust/Foo;
+                    DESCRIPTOR_TYPE.find(it)?.let { references.add(it.groupValues[1]) }
+                } else {
+                    references.add(it)
+                }
+            }
+            // The types of the fields, methods and annotations only appear in descriptors
+            utf8.forEach { s ->
+                if (s != null && s.contains(';')) {
+                    DESCRIPTOR_TYPE.findAll(s).forEach { references.add(it.groupValues[1]) }
+                }
+            }
+
+            val annotations = hashSetOf<String>()
+            fun readAttributes() {
+                repeat(ins.readUnsignedShort()) {
+                    val attributeName = utf8[ins.readUnsignedShort()]
+                    val length = ins.readInt()
+                    if (attributeName == "RuntimeVisibleAnnotations") {
+                        repeat(ins.readUnsignedShort()) {
+                            readAnnotation(ins, utf8)?.let { annotations.add(it) }
+                        }
+                    } else {
+                        ins.skipFully(length)
+                    }
+                }
+            }
+            // Fields, then methods: access flags, name, descriptor and attributes
+            repeat(2) {
+                repeat(ins.readUnsignedShort()) {
+                    ins.skipFully(6)
+                    readAttributes()
+                }
+            }
+            readAttributes()
+
+            return ClassFileInfo(name, superName, interfaces, access,
+                    references.map { it.replace('/', '.') }.filter { it != name }.toSet(), annotations)
+        }
+
+        /**
+         * @return the type of the annotation, after skipping its values.
+         */
+        private fun readAnnotation(ins: DataInputStream, utf8: Array<String?>) : String? {
+            val type = utf8[ins.readUnsignedShort()]
+            repeat(ins.readUnsignedShort()) {
+                ins.skipFully(2) // name
+                skipElementValue(ins, utf8)
+            }
+            return type?.let { DESCRIPTOR_TYPE.matchEntire(it)?.groupValues?.get(1)?.replace('/', '.') }
+        }
+
+        private fun skipElementValue(ins: DataInputStream, utf8: Array<String?>) {
+            val tag = ins.readUnsignedByte().toChar()
+            when (tag) {
+                'e' -> ins.skipFully(4)
+                '@' -> readAnnotation(ins, utf8)
+                '[' -> repeat(ins.readUnsignedShort()) { skipElementValue(ins, utf8) }
+                else -> ins.skipFully(2)
+            }
+        }
+
+        private fun DataInputStream.skipFully(n: Int) {
+            var left = n
+            while (left > 0) {
+                val skipped = skipBytes(left)
+                if (skipped > 0) {
+                    left -= skipped
+                } else {
+                    // skipBytes() can give up before the end of the stream, readByte() can't
+                    readByte()
+                    left--
+                }
+            }
+        }
+    }
+}
@@ -200,8 +200,10 @@ class CompilerUtils @Inject constructor(val files: KFiles, val dependencyManager
                 .map { File(project.directory, it.path) }
                 .filter(File::exists)
                 .forEach {
-                    context.logger.log(project.name, 2, "Copying from $it to $absOutputDir")
-                        KFiles.copyRecursively(it, absOutputDir, replaceExisting = true)
+                    // Only the resources that changed are copied. Stale files can't be deleted since the
+                    // directory also contains the classes
+                    val stats = KFiles.syncDirectory(it, absOutputDir)
+                    context.logger.log(project.name, 2, "Copying from $it to $absOutputDir: $stats")
                 }
         } else {
             context.logger.log(project.name, 2, "No resources to copy for $sourceSet")
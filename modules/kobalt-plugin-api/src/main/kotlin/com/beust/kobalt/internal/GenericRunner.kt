@@ -2,21 +2,64 @@ package com.beust.kobalt.internal
 
 import com.beust.kobalt.*
 import com.beust.kobalt.api.*
+import com.beust.kobalt.misc.BuildTrace
 import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.KobaltExecutor
+import com.beust.kobalt.misc.warn
 import com.google.common.annotations.VisibleForTesting
 import com.google.inject.Inject
 import java.io.File
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+
+/**
+ * The results of one of the forks that run the tests of a project, see TestConfig.forks. The counts are null
+ * if the runner couldn't find them.
+ */
+class ForkResult(val exitCode: Int, val passed: Int? = null, val failed: Int? = null, val skipped: Int? = null,
+        val failedTests: List<String> = emptyList(), val classDurations: Map<String, Long> = emptyMap(),
+        val failedClasses: Set<String> = emptySet()) {
+    val success get() = exitCode == 0 && (failed ?: 0) == 0
+}
+
+/**
+ * Implemented by the test runners that can split the test classes of a project across several JVM's when
+ * TestConfig.forks is greater than 1 (or when only the affected tests are run, see TestConfig.selectTests).
+ */
+interface IForkingTestRunner {
+    /**
+     * @return false if the tests of this project can't be split, e.g. because they're described by a suite file.
+     */
+    fun canFork(project: Project, context: KobaltContext, testConfig: TestConfig) = true
+
+    /**
+     * @return the arguments that only run [testClasses], writing the reports (if any) to [outputDir].
+     */
+    fun forkArgs(project: Project, context: KobaltContext, testConfig: TestConfig, testClasses: List<String>,
+            outputDir: File) : List<String>
+
+    /**
+     * @return the results of a fork, from its reports in [outputDir] or its [output].
+     */
+    fun forkResult(project: Project, outputDir: File, output: File, exitCode: Int) : ForkResult
+}
 
 /**
  * Base class for testing frameworks that are invoked from a main class with arguments. Test runners can
  * subclass this class and override mainClass, args and the name of the dependency that should trigger this runner.
  */
 abstract class GenericTestRunner: ITestRunnerContributor {
+    companion object {
+        const val FORKS_DIR = "test-forks"
+        const val FORK_OUTPUT = "output.txt"
+    }
+
     abstract val dependencyName : String
     abstract val mainClass: String
     abstract val annotationPackage: String
     abstract val runnerName: String
+    /** The messages of the test results when launch() doesn't return the number of tests */
     open var shortMessage: String? = null
     open var longMessage: String? = null
 
@@ -45,6 +88,19 @@ abstract class GenericTestRunner: ITestRunnerContributor {
         return result
     }
 
+    /**
+     * Super classes (or prefixes of their names) that make a class a test class even if it has no annotation
+     * from annotationPackage, e.g. the specs of Spek.
+     */
+    open val testSuperclasses: List<String> = emptyList()
+
+    /**
+     * @return the classes that match the test includes and excludes and that are actual test classes: not
+     * abstract and with annotations from annotationPackage on the class or on its members or on those of one
+     * of its super classes, or extending one of the testSuperclasses. The class files are read directly and
+     * what was found in them is cached in a TestClassIndex. The classes that failed last time come first, then
+     * the longest ones (see TestHistory).
+     */
     protected fun findTestClasses(project: Project, context: KobaltContext, testConfig: TestConfig): List<String> {
         val testClassDir = KFiles.joinDir(project.buildDirectory, KFiles.TEST_CLASSES_DIR)
         val path = testClassDir.apply {
@@ -57,50 +113,33 @@ abstract class GenericTestRunner: ITestRunnerContributor {
             .map {
                 File(KFiles.joinDir(project.directory, testClassDir, it.path))
             }
+        val prefix = KFiles.joinDir(project.directory, testClassDir)
         val result = testClasses.map {
-            val prefix = KFiles.joinDir(project.directory, testClassDir)
             val className = it.toString().substring(prefix.length + 1)
                     .replace("/", ".").replace("\\", ".").replace(".class", "")
             Pair(it, className)
         }
-//            .filter {
-//                val result = acceptClass(it.first, it.second, testClasspath, File(testClassDir))
-//                result
-//            }
 
-        context.logger.log(project.name, 2, "Found ${result.size} test classes")
-        return filterTestClasses(project, context, result.map { it.second })
-    }
+        val index = TestClassIndex(project)
+        fun classFile(className: String) = File(prefix, className.replace('.', File.separatorChar) + ".class")
+        fun hasTests(entry: TestClassIndex.Entry, depth: Int) : Boolean {
+            if (entry.annotations.any { it.startsWith(annotationPackage) }) return true
+            val superName = entry.superName
+            if (superName == null || superName == "java.lang.Object") return false
+            if (testSuperclasses.any { superName.startsWith(it) }) return true
+            // A super class from a jar file (or too deep a hierarchy): can't tell, keep it
+            val superEntry = index.entry(classFile(superName)) ?: return true
+            return depth > 20 || hasTests(superEntry, depth + 1)
+        }
+        val accepted = result.filter {
+            val entry = index.entry(it.first)
+            entry == null || (! entry.isAbstract && hasTests(entry, 0))
+        }
+        index.save()
 
-    /**
-     * Accept the given class if it contains an annotation of the current test runner's package. Annotations
-     * are looked up on both the classes and methods.
-     */
-//    private fun acceptClass(cf: File, className: String, testClasspath: List<IClasspathDependency>,
-//            testClassDir: File): Boolean {
-//        val cp = (testClasspath.map { it.jarFile.get() } + listOf(testClassDir)).map { it.toURI().toURL() }
-//        try {
-//            val cls = URLClassLoader(cp.toTypedArray()).loadClass(className)
-//            val ann = cls.annotations.filter {
-//                val qn = it.annotationClass.qualifiedName
-//                qn != null && qn.contains(annotationPackage)
-//            }
-//            if (ann.any()) {
-//                return true
-//            } else {
-//                val ann2 = cls.declaredMethods.flatMap { it.declaredAnnotations.toList() }.filter { it.toString()
-//                        .contains(annotationPackage)}
-//                if (ann2.any()) {
-//                    val a0 = ann2[0]
-//                    return true
-//                }
-//            }
-//        } catch(ex: Throwable) {
-//            println("Exception: " + ex.message)
-//            return false
-//        }
-//        return false
-//    }
+        context.logger.log(project.name, 2, "Found ${accepted.size} test classes (${result.size} class files)")
+        return TestHistory.read(project).order(filterTestClasses(project, context, accepted.map { it.second }))
+    }
 
     private fun toClassPaths(paths: List<String>): ArrayList<String> =
             paths.map { if (it.endsWith("class")) it else it + "class" }.toCollection(ArrayList())
@@ -117,45 +156,240 @@ abstract class GenericTestRunner: ITestRunnerContributor {
         val testConfig = project.testConfigs.firstOrNull { it.name == configName }
 
         var errorCode = -1
-        if (testConfig != null) {
-            val args = args(project, context, classpath, testConfig)
-            if (args.size > 0) {
+        val forking = this as? IForkingTestRunner
+        val canFork = testConfig != null && testConfig.testArgs.isEmpty() && forking != null
+                && forking.canFork(project, context, testConfig)
+        if (testConfig != null && testConfig.selectTests && ! canFork) {
+            val reason = if (testConfig.testArgs.any()) "testArgs is set"
+                else if (forking == null) "$runnerName can't run a selection of the test classes"
+                else "$runnerName can't split the tests of this project (e.g. testng.xml)"
+            warn("Running all the tests of ${project.name} since selectTests is ignored: $reason")
+        }
+        if (testConfig != null && (testConfig.forks > 1 || testConfig.selectTests) && canFork && forking != null) {
+            val allTestClasses = findTestClasses(project, context, testConfig)
+            val selector = if (testConfig.selectTests) TestSelector(project, context, testConfig, classpath) else null
+            val testClasses = selector?.select(allTestClasses) ?: allTestClasses
+            if (selector != null && testClasses.isEmpty()) {
+                selector.save(true, testClasses)
+                context.logger.log(project.name, 1, "  No test affected by the changes")
+                return TestResult(true, "No affected tests")
+            } else if (selector != null || testClasses.size > 1) {
+                val result = runForks(forking, project, context, classpath, testConfig, testClasses)
+                selector?.save(result.success, testClasses)
+                return result
+            }
+        }
+        if (testConfig == null) {
+            throw KobaltException("Couldn't find a test configuration named \"$configName\"")
+        }
 
-                val java = jvm.javaExecutable
-                val jvmArgs = calculateAllJvmArgs(project, context, testConfig, classpath,
-                        Kobalt.INJECTOR.getInstance (PluginInfo::class.java))
-                val allArgs = arrayListOf<String>().apply {
-                    add(java!!.absolutePath)
-                    addAll(jvmArgs)
-                    add(mainClass)
-                    addAll(args)
+        // The messages of the runners that don't report their results (see launch())
+        var short = shortMessage
+        var long = longMessage
+        val args = args(project, context, classpath, testConfig)
+        val launched =
+            if (args.size > 0) {
+                BuildTrace.trace("${project.name} tests", "test", mapOf("runner" to runnerName)) {
+                    launch(project, context, testConfig, classpath, args)
                 }
-
-                val pb = ProcessBuilder(allArgs)
-                pb.directory(File(project.directory))
-                pb.inheritIO()
-                context.logger.log(project.name, 2, "Running tests with classpath size ${classpath.size}")
-                context.logger.log(project.name, 2, "Launching " + allArgs.joinToString(" "))
-                val process = pb.start()
-                errorCode = process.waitFor()
-                result = result || errorCode == 0
             } else {
-                context.logger.log(project.name, 1, "  No tests to run")
-                result = true
+                null
             }
+        if (launched != null) {
+            errorCode = if (launched.success) 0 else Math.max(launched.exitCode, 1)
+            launched.passed?.let { passed ->
+                short = shortMessage(passed, launched.failed ?: 0, launched.skipped ?: 0)
+                long =
+                    if (launched.success) null
+                    else if (launched.failedTests.any()) longMessage(launched.failedTests)
+                    else "$runnerName exited with code ${launched.exitCode}"
+            }
+            result = result || errorCode == 0
         } else {
-            throw KobaltException("Couldn't find a test configuration named \"$configName\"")
+            context.logger.log(project.name, 1, "  No tests to run")
+            errorCode = 0
+            result = true
         }
 
         onFinish(project)
+        if (testConfig.testArgs.isEmpty()) {
+            // The classes passed by args(), if it passes a list of classes
+            val launchedClasses = if (canFork && launched != null) findTestClasses(project, context, testConfig)
+                else emptyList()
+            updateHistory(project, launched ?: ForkResult(0), launchedClasses)
+        }
 
         if (errorCode == 0) {
             context.logger.log(project.name, 1, "All tests passed")
         } else {
-            context.logger.log(project.name, 1, longMessage!!)
+            context.logger.log(project.name, 1, long ?: "$runnerName exited with code $errorCode")
         }
 
-        return TestResult(result, shortMessage, longMessage)
+        return TestResult(result, short, long)
+    }
+
+    /**
+     * Record the durations and the failed classes of [launched] (see TestHistory.update()).
+     */
+    private fun updateHistory(project: Project, launched: ForkResult, launchedClasses: List<String>) {
+        val history = TestHistory.read(project)
+        val updated = history.update(launched, launchedClasses)
+        if (updated !== history) updated.save(project)
+    }
+
+    /**
+     * Run the tests in a new JVM and wait for it to finish.
+     *
+     * @return the results of the tests if the runner could find them, or at least the exit code of the JVM.
+     */
+    protected open fun launch(project: Project, context: KobaltContext, testConfig: TestConfig,
+            classpath: List<IClasspathDependency>, args: List<String>) : ForkResult
+        = ForkResult(startTests(project, context, testConfig, classpath, mainClass, args).waitFor())
+
+    /**
+     * Start a JVM that runs [mainClass] with [args] and the output of Kobalt.
+     */
+    protected fun startTests(project: Project, context: KobaltContext, testConfig: TestConfig,
+            classpath: List<IClasspathDependency>, mainClass: String, args: List<String>) : Process {
+        val java = jvm.javaExecutable
+        val jvmArgs = calculateAllJvmArgs(project, context, testConfig, classpath,
+                Kobalt.INJECTOR.getInstance (PluginInfo::class.java))
+        val allArgs = arrayListOf<String>().apply {
+            add(java!!.absolutePath)
+            addAll(jvmArgs)
+            add(mainClass)
+            addAll(args)
+        }
+
+        val pb = ProcessBuilder(allArgs)
+        pb.directory(File(project.directory))
+        pb.inheritIO()
+        context.logger.log(project.name, 2, "Running tests with classpath size ${classpath.size}")
+        context.logger.log(project.name, 2, "Launching " + allArgs.joinToString(" "))
+        return pb.start()
+    }
+
+    /**
+     * Run the test classes in TestConfig.forks JVM's at the same time (or in a single one if there are fewer
+     * classes than forks) and merge their results.
+     */
+    private fun runForks(forking: IForkingTestRunner, project: Project, context: KobaltContext,
+            classpath: List<IClasspathDependency>, testConfig: TestConfig, testClasses: List<String>) : TestResult {
+        val history = TestHistory.read(project)
+        val shards = TestHistory.partition(testClasses, testConfig.forks, history.durations,
+                history.failedClasses)
+        val jvmArgs = calculateAllJvmArgs(project, context, testConfig, classpath,
+                Kobalt.INJECTOR.getInstance(PluginInfo::class.java))
+        context.logger.log(project.name, 1, "  Running ${testClasses.size} test classes in ${shards.size} forks")
+
+        val executor = KobaltExecutor("Test", shards.size)
+        val span = BuildTrace.currentSpan()
+        val results = try {
+            shards.mapIndexed { index, classes ->
+                executor.submit(Callable {
+                    BuildTrace.trace("${project.name} test fork $index", "test", mapOf("classes" to classes.size),
+                            span) {
+                        runFork(forking, project, context, testConfig, jvmArgs, index, classes)
+                    }
+                })
+            }.map {
+                try {
+                    it.get()
+                } catch(ex: ExecutionException) {
+                    throw ex.cause ?: ex
+                }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+
+        // A fork that failed without saying which classes failed: assume they all did
+        val failedClasses = shards.zip(results).flatMap { (classes, result) ->
+            val failed = classes.filter { result.failedClasses.contains(it) }
+            if (failed.any() || result.success) failed else classes
+        }
+        history.update(results.flatMap { it.classDurations.entries }.associate { Pair(it.key, it.value) },
+                testClasses, failedClasses).save(project)
+
+        val success = results.all { it.success }
+        val counted = results.all { it.passed != null && it.failed != null }
+        val passed = results.sumBy { it.passed ?: 0 }
+        val failed = results.sumBy { it.failed ?: 0 }
+        val skipped = results.sumBy { it.skipped ?: 0 }
+        val short =
+            if (counted) {
+                shortMessage(passed, failed, skipped)
+            } else {
+                if (success) "${results.size} forks passed"
+                else "${results.count { ! it.success }} of ${results.size} forks failed"
+            }
+        val long =
+            if (success) null
+            else longMessage(results.withIndex().flatMap { (index, result) ->
+                if (result.failedTests.any()) result.failedTests
+                else if (! result.success) listOf("fork $index exited with code ${result.exitCode}, see "
+                        + File(forkDir(project, index), FORK_OUTPUT))
+                else emptyList()
+            })
+
+        if (success) {
+            context.logger.log(project.name, 1, "All tests passed")
+        } else {
+            context.logger.log(project.name, 1, long!!)
+        }
+        return TestResult(success, short, long)
+    }
+
+    private fun shortMessage(passed: Int, failed: Int, skipped: Int)
+            = if (failed == 0) "$passed tests"
+              else "$failed failed" + (if (skipped > 0) ", $skipped skipped" else "") + " tests"
+
+    private fun longMessage(failedTests: List<String>) = "Failed tests:\n  " + failedTests.joinToString("\n  ")
+
+    private fun forkDir(project: Project, index: Int)
+            = File(KFiles.joinDir(project.directory, project.buildDirectory, FORKS_DIR, "fork-$index"))
+
+    private fun runFork(forking: IForkingTestRunner, project: Project, context: KobaltContext,
+            testConfig: TestConfig, jvmArgs: List<String>, index: Int, classes: List<String>) : ForkResult {
+        val outputDir = forkDir(project, index).apply {
+            deleteRecursively()
+            mkdirs()
+        }
+        val allArgs = arrayListOf<String>().apply {
+            add(jvm.javaExecutable!!.absolutePath)
+            addAll(jvmArgs)
+            add(mainClass)
+            addAll(forking.forkArgs(project, context, testConfig, classes, outputDir))
+        }
+        context.logger.log(project.name, 2, "Launching fork $index: " + allArgs.joinToString(" "))
+
+        val start = System.currentTimeMillis()
+        val process = ProcessBuilder(allArgs)
+                .directory(File(project.directory))
+                .redirectErrorStream(true)
+                .start()
+        val output = File(outputDir, FORK_OUTPUT)
+        output.bufferedWriter().use { writer ->
+            process.inputStream.bufferedReader().useLines { lines ->
+                lines.forEach { line ->
+                    writer.write(line)
+                    writer.newLine()
+                    context.logger.log(project.name, 2, "  [fork $index] $line")
+                }
+            }
+        }
+        val exitCode = process.waitFor()
+        val time = System.currentTimeMillis() - start
+
+        val result = forking.forkResult(project, outputDir, output, exitCode)
+        context.logger.log(project.name, 2, "  Fork $index ran ${classes.size} classes in $time ms")
+
+        // Runners that don't report the duration of each class: split the time of the fork evenly
+        val missing = classes.filter { ! result.classDurations.containsKey(it) }
+        if (missing.isEmpty()) return result
+        val durations = result.classDurations + missing.associate { Pair(it, time / classes.size) }
+        return ForkResult(result.exitCode, result.passed, result.failed, result.skipped, result.failedTests,
+                durations, result.failedClasses)
     }
 
     /*
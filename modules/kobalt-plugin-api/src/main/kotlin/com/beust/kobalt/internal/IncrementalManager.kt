@@ -6,6 +6,7 @@ import com.beust.kobalt.TaskResult
 import com.beust.kobalt.Variant
 import com.beust.kobalt.api.Kobalt
 import com.beust.kobalt.api.Project
+import com.beust.kobalt.misc.BuildTrace
 import com.beust.kobalt.misc.KFiles
 import com.beust.kobalt.misc.kobaltLog
 import com.google.gson.Gson
@@ -21,9 +22,14 @@ import java.util.*
 
 /**
  * Manage the file .kobalt/buildInfo.json, which keeps track of input and output checksums to manage
- * incremental builds.
+ * incremental builds. Tasks that are out of date can also have their outputs restored from the remote
+ * build cache, if one is configured.
  */
-class IncrementalManager @Inject constructor(val args: Args, @Assisted val fileName : String) {
+class IncrementalManager @Inject constructor(val args: Args, @Assisted val fileName : String,
+        val buildCache: BuildCache?) {
+
+    /** Without remote build cache */
+    constructor(args: Args, fileName: String) : this(args, fileName, null)
 
     private data class TaskInfo(val taskName: String, var inputChecksum: String? = null,
             var outputChecksum: String? = null)
@@ -103,6 +109,8 @@ class IncrementalManager @Inject constructor(val args: Args, @Assisted val fileN
             val taskName = project.name + ":" + shortTaskName
             var upToDate = false
             var taskOutputChecksum : String? = null
+            // The incremental decision, recorded in the span of the task (--trace, --jfr)
+            var decision = "out of date"
 
             if (! args.forceIncremental &&
                     (args.noIncremental || (Kobalt.context?.internalContext?.buildFileOutOfDate as Boolean))) {
@@ -110,6 +118,7 @@ class IncrementalManager @Inject constructor(val args: Args, @Assisted val fileN
                 // If the user turned off incremental builds or if the build file was modified, always run this task
                 //
                 logIncremental(LEVEL, "Incremental builds are turned off, running $taskName")
+                decision = "turned off"
                 upToDate = false
 //            } else if (iti.context.internalContext.previousTaskWasIncrementalSuccess(project.name)) {
 //                //
@@ -154,9 +163,23 @@ class IncrementalManager @Inject constructor(val args: Args, @Assisted val fileN
 
             if (!upToDate) {
                 //
-                // The task is out of date, invoke the task on the IncrementalTaskInfo object
+                // The task is out of date, try to fetch its outputs from the build cache and if they
+                // can't be found there, invoke the task on the IncrementalTaskInfo object
                 //
-                val result = iti.task(project)
+                val outputFiles = if (buildCache?.isEnabled == true) iti.outputFiles() else emptyList()
+                val cacheKey =
+                    if (outputFiles.any()) buildCache?.cacheKey(project, taskName, iti.inputFiles(), iti.keyInputs())
+                    else null
+                val result =
+                    if (cacheKey != null && buildCache!!.load(project, cacheKey, outputFiles)) {
+                        logIncremental(LEVEL, "Incremental task $taskName restored from the build cache")
+                        decision = "restored from the build cache"
+                        TaskResult()
+                    } else {
+                        iti.task(project).apply {
+                            if (success && cacheKey != null) buildCache!!.store(project, cacheKey, outputFiles)
+                        }
+                    }
                 if (result.success) {
                     logIncremental(LEVEL, "Incremental task $taskName done running, saving checksums")
                     iti.inputChecksum()?.let {
@@ -169,13 +192,16 @@ class IncrementalManager @Inject constructor(val args: Args, @Assisted val fileN
                         logIncremental(LEVEL, "          output checksum \"$it\" saved")
                     }
                 }
+                BuildTrace.currentSpan()?.attribute("incremental", decision)
                 result
             } else {
                 //
                 // Identical input and output checksums, don't run the task
                 //
                 logIncremental(LEVEL, "Incremental task \"$taskName\" is up to date, not running it")
+                decision = "up to date"
                 iti.context.internalContext.setIncrementalSuccess(project.name)
+                BuildTrace.currentSpan()?.attribute("incremental", decision)
                 TaskResult()
             }
         }
@@ -0,0 +1,181 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.kotlin.ParentLastClassLoader
+import java.io.File
+import java.io.FileOutputStream
+import java.io.OutputStream
+import java.io.PrintStream
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Proxy
+import java.net.URLClassLoader
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Run JUnit 5 tests inside Kobalt's JVM (see TestConfig.inProcess).
+ *
+ * The jar files of the test framework (JUnit platform, engines, opentest4j, ...) are loaded by a classloader
+ * that only sees the JDK and that is shared by all the projects using the same jar files. The rest of the
+ * classpath of the project is loaded child first by a ParentLastClassLoader on top of it, so neither the tests
+ * nor the framework see Kobalt's own classes. The launcher is only called through reflection for the same reason.
+ *
+ * Only one project runs its tests in process at a time: the system properties that the tests changed are
+ * restored once they're done and what the tests (and the threads they start) print goes to [output] instead of
+ * Kobalt's output.
+ */
+class JUnit5InProcess(val output: File) {
+    class Result(val passed: Int, val failed: List<String>, val skipped: Int, val classDurations: Map<String, Long>)
+
+    companion object {
+        private val FRAMEWORK_JARS = listOf("junit-platform-", "junit-jupiter-", "junit-vintage-", "junit-4",
+                "opentest4j-", "apiguardian-api-", "hamcrest-core-")
+
+        /** Jar files of the framework -> their classloader */
+        private val frameworkClassLoaders = ConcurrentHashMap<List<String>, ClassLoader>()
+
+        private val LOCK = Any()
+
+        /** Set for the thread running the tests and inherited by the threads it starts */
+        private val IN_TESTS = InheritableThreadLocal<Boolean>()
+
+        fun isFrameworkJar(file: File) = file.isFile && file.name.endsWith(".jar")
+                && FRAMEWORK_JARS.any { file.name.startsWith(it) }
+    }
+
+    /**
+     * Send what the threads running tests print to [tests] and the rest to [others].
+     */
+    private class RoutingOutputStream(val tests: OutputStream, val others: OutputStream) : OutputStream() {
+        private fun target() = if (IN_TESTS.get() == true) tests else others
+        override fun write(b: Int) = target().write(b)
+        override fun write(b: ByteArray, off: Int, len: Int) = target().write(b, off, len)
+        override fun flush() {
+            tests.flush()
+            others.flush()
+        }
+    }
+
+    /**
+     * Run [testClasses], or all the tests found in [classpathRoots] if it's empty.
+     */
+    fun run(classpath: List<File>, testClasses: List<String>, classpathRoots: List<File> = emptyList()) : Result {
+        val (framework, others) = classpath.partition { isFrameworkJar(it) }
+        val frameworkClassLoader = frameworkClassLoaders.getOrPut(framework.map { it.absolutePath }) {
+            URLClassLoader(framework.map { it.toURI().toURL() }.toTypedArray(),
+                    ClassLoader.getSystemClassLoader().parent)
+        }
+        val classLoader = ParentLastClassLoader(others.map { it.toURI().toURL() }, frameworkClassLoader).apply {
+            // Like -ea
+            setDefaultAssertionStatus(true)
+        }
+
+        synchronized(LOCK) {
+            val thread = Thread.currentThread()
+            val contextClassLoader = thread.contextClassLoader
+            val properties = System.getProperties().clone() as Properties
+            val out = System.out
+            val err = System.err
+            output.parentFile.mkdirs()
+            return PrintStream(FileOutputStream(output), true).use { capture ->
+                try {
+                    thread.contextClassLoader = classLoader
+                    System.setOut(PrintStream(RoutingOutputStream(capture, out), true))
+                    System.setErr(PrintStream(RoutingOutputStream(capture, err), true))
+                    IN_TESTS.set(true)
+                    execute(classLoader, testClasses, classpathRoots)
+                } finally {
+                    IN_TESTS.remove()
+                    System.setOut(out)
+                    System.setErr(err)
+                    restoreProperties(properties)
+                    thread.contextClassLoader = contextClassLoader
+                    classLoader.close()
+                }
+            }
+        }
+    }
+
+    /**
+     * Undo the changes made to the system properties since [saved] was copied from them. The properties object
+     * itself is kept, along with the properties set meanwhile by Kobalt's other threads.
+     */
+    private fun restoreProperties(saved: Properties) {
+        val current = System.getProperties()
+        current.stringPropertyNames().filter { ! saved.containsKey(it) }.forEach { current.remove(it) }
+        saved.stringPropertyNames().forEach { name ->
+            val value = saved.getProperty(name)
+            if (current.getProperty(name) != value) current.setProperty(name, value)
+        }
+    }
+
+    private fun execute(classLoader: ClassLoader, testClasses: List<String>, classpathRoots: List<File>) : Result {
+        fun load(name: String) = Class.forName(name, true, classLoader)
+
+        val selectors = load("org.junit.platform.engine.discovery.DiscoverySelectors")
+        val selected =
+            if (testClasses.any()) {
+                val selectClass = selectors.getMethod("selectClass", String::class.java)
+                testClasses.map { selectClass.invoke(null, it) }
+            } else {
+                @Suppress("UNCHECKED_CAST")
+                selectors.getMethod("selectClasspathRoots", java.util.Set::class.java)
+                        .invoke(null, classpathRoots.map { it.toPath() }.toSet()) as List<Any>
+            }
+        val builderClass = load("org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder")
+        val builder = builderClass.getMethod("request").invoke(null)
+        builderClass.getMethod("selectors", java.util.List::class.java).invoke(builder, selected)
+        val request = builderClass.getMethod("build").invoke(builder)
+
+        var passed = 0
+        var skipped = 0
+        val failed = arrayListOf<String>()
+        val starts = IdentityHashMap<Any, Long>()
+        val classDurations = hashMapOf<String, Long>()
+        fun call(o: Any, method: String) = o.javaClass.getMethod(method).invoke(o)
+        /** The class and the method of a test, null for the containers */
+        fun testMethod(id: Any) : Pair<String, String>? {
+            val source = (call(id, "getSource") as Optional<*>).orElse(null)
+            return if (source != null && source.javaClass.simpleName == "MethodSource") {
+                Pair(call(source, "getClassName").toString(), call(source, "getMethodName").toString())
+            } else {
+                null
+            }
+        }
+        fun testName(id: Any) = testMethod(id)?.let { it.first + "." + it.second }
+
+        val listenerClass = load("org.junit.platform.launcher.TestExecutionListener")
+        val listener = Proxy.newProxyInstance(classLoader, arrayOf(listenerClass), InvocationHandler {
+                proxy, method, args ->
+            when (method.name) {
+                "executionStarted" -> starts[args[0]] = System.currentTimeMillis()
+                "executionFinished" -> testName(args[0])?.let { name ->
+                    starts.remove(args[0])?.let { start ->
+                        val className = testMethod(args[0])!!.first
+                        classDurations[className] = (classDurations[className] ?: 0L) +
+                                System.currentTimeMillis() - start
+                    }
+                    val result = args[1]
+                    when (call(result, "getStatus").toString()) {
+                        "SUCCESSFUL" -> passed++
+                        else -> failed.add(name + ": " + (call(result, "getThrowable") as Optional<*>)
+                                .map { it.toString() }.orElse(""))
+                    }
+                }
+                "executionSkipped" -> testName(args[0])?.let { skipped++ }
+                "hashCode" -> return@InvocationHandler System.identityHashCode(proxy)
+                "equals" -> return@InvocationHandler proxy === args[0]
+                "toString" -> return@InvocationHandler "Kobalt test listener"
+            }
+            null
+        })
+        val listeners = java.lang.reflect.Array.newInstance(listenerClass, 1)
+        java.lang.reflect.Array.set(listeners, 0, listener)
+
+        val launcher = load("org.junit.platform.launcher.core.LauncherFactory").getMethod("create").invoke(null)
+        load("org.junit.platform.launcher.Launcher").getMethod("execute",
+                load("org.junit.platform.launcher.LauncherDiscoveryRequest"), listeners.javaClass)
+                .invoke(launcher, request, listeners)
+
+        return Result(passed, failed, skipped, classDurations)
+    }
+}
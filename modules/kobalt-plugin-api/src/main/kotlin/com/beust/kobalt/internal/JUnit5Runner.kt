@@ -2,11 +2,9 @@ package com.beust.kobalt.internal
 
 import com.beust.jcommander.JCommander
 import com.beust.jcommander.Parameter
+import com.beust.kobalt.KobaltException
 import com.beust.kobalt.TestConfig
-import com.beust.kobalt.api.IAffinity
-import com.beust.kobalt.api.IClasspathDependency
-import com.beust.kobalt.api.KobaltContext
-import com.beust.kobalt.api.Project
+import com.beust.kobalt.api.*
 import com.beust.kobalt.misc.KFiles
 import com.beust.kobalt.misc.KobaltLogger
 import com.google.inject.Inject
@@ -26,10 +24,10 @@ import java.nio.file.Paths
 /**
  * Runner for JUnit 5 tests. This class also contains a main() entry point since JUnit 5 no longer supplies one.
  */
-class JUnit5Runner @Inject constructor(kFiles: KFiles) : GenericTestRunner() {
+class JUnit5Runner @Inject constructor(kFiles: KFiles) : GenericTestRunner(), IForkingTestRunner {
 
     override val dependencyName = "jupiter"
-    override val annotationPackage = "org.junit.jupiter.api"
+    override val annotationPackage = "org.junit.jupiter"
     override val mainClass = "com.beust.kobalt.internal.JUnit5RunnerKt"
     override val runnerName = "JUnit 5"
 
@@ -43,6 +41,15 @@ class JUnit5Runner @Inject constructor(kFiles: KFiles) : GenericTestRunner() {
     }
 
     override fun args(project: Project, context: KobaltContext, classpath: List<IClasspathDependency>, testConfig: TestConfig): List<String> {
+        // JUnit 5 finds the test classes itself, whatever their name, unless include() or exclude() were used.
+        // In that case, pass the classes in the order of the TestHistory if they could be found
+        val testClasses = if (testConfig.hasCustomIncludes) findTestClasses(project, context, testConfig)
+            else emptyList()
+        return if (testClasses.any()) forkArgs(project, context, testConfig, testClasses, File(""))
+            else directoryArgs(project)
+    }
+
+    private fun directoryArgs(project: Project) : List<String> {
         val testClassDir = KFiles.joinDir(project.buildDirectory, KFiles.TEST_CLASSES_DIR)
         val classDir = KFiles.joinDir(project.buildDirectory, KFiles.CLASSES_DIR)
         val args = listOf("--testClassDir", testClassDir,
@@ -52,6 +59,111 @@ class JUnit5Runner @Inject constructor(kFiles: KFiles) : GenericTestRunner() {
     }
 
     override val extraClasspath = kFiles.kobaltJar
+
+    /**
+     * Run the tests inside Kobalt's JVM if TestConfig.inProcess is set and nothing needs a JVM of its own:
+     * no jvmArgs() and no plug-in contributing JVM flags. Since the output and the system properties of that
+     * JVM are shared, this is only done if the projects are built one at a time (--sequential).
+     */
+    override fun launch(project: Project, context: KobaltContext, testConfig: TestConfig,
+            classpath: List<IClasspathDependency>, args: List<String>) : ForkResult {
+        val pluginInfo = Kobalt.INJECTOR.getInstance(PluginInfo::class.java)
+        if (! testConfig.inProcess || testConfig.jvmArgs.any() || pluginInfo.testJvmFlagContributors.any()
+                || pluginInfo.testJvmFlagInterceptors.any()) {
+            return super.launch(project, context, testConfig, classpath, args)
+        }
+        if (! context.args.sequential) {
+            context.logger.log(project.name, 2, "  Projects are built in parallel, running the tests in a new JVM "
+                    + "(use ${com.beust.kobalt.Args.SEQUENTIAL} to run them in process)")
+            return super.launch(project, context, testConfig, classpath, args)
+        }
+        val files = inProcessClasspath(project, context, classpath)
+        if (files == null) {
+            return super.launch(project, context, testConfig, classpath, args)
+        }
+
+        // The classes found by args() if any, otherwise the tests are discovered in the class directories
+        val classesIndex = args.indexOf(CLASSES)
+        val testClasses = if (classesIndex >= 0) args[classesIndex + 1].split(',') else emptyList()
+        val classpathRoots = listOf(KFiles.TEST_CLASSES_DIR, KFiles.CLASSES_DIR).map {
+            File(KFiles.joinDir(project.directory, project.buildDirectory, it))
+        }
+        val output = File(KFiles.joinDir(project.directory, project.buildDirectory, "test-output",
+                IN_PROCESS_OUTPUT))
+        context.logger.log(project.name, 1, "  Running "
+                + (if (testClasses.any()) "${testClasses.size} test classes" else "the tests")
+                + " in process, output in $output")
+        val result = JUnit5InProcess(output).run(files, testClasses, classpathRoots)
+        result.failed.forEach {
+            context.logger.log(project.name, 1, "  $FAILED$it")
+        }
+        return ForkResult(if (result.failed.any()) 1 else 0, result.passed, result.failed.size,
+                result.skipped, result.failed, result.classDurations,
+                result.failed.map { className(it.substringBefore(": ")) }.toSet())
+    }
+
+    /**
+     * @return the files of [classpath] with the JUnit Platform launcher added if the project doesn't depend on
+     * it, or null if it couldn't be resolved.
+     */
+    private fun inProcessClasspath(project: Project, context: KobaltContext, classpath: List<IClasspathDependency>)
+            : List<File>? {
+        fun file(dependency: IClasspathDependency) = dependency.jarFile.get().let {
+            if (it.isAbsolute) it else File(project.directory, it.path)
+        }
+        val files = classpath.map(::file)
+        if (files.any { it.name.startsWith(LAUNCHER) }) return files
+
+        val version = files.map { ENGINE_JAR.matchEntire(it.name) }.firstOrNull { it != null }?.groupValues?.get(1)
+        if (version == null) {
+            context.logger.log(project.name, 2, "  No JUnit Platform engine found, running the tests in a new JVM")
+            return null
+        }
+        try {
+            return (files + context.dependencyManager.transitiveClosure(listOf(context.dependencyManager.create(
+                    "org.junit.platform:$LAUNCHER:$version"))).map(::file)).distinct()
+        } catch(ex: KobaltException) {
+            context.logger.log(project.name, 2, "  Couldn't resolve the JUnit Platform launcher, running the tests"
+                    + " in a new JVM: ${ex.message}")
+            return null
+        }
+    }
+
+    override fun forkArgs(project: Project, context: KobaltContext, testConfig: TestConfig,
+            testClasses: List<String>, outputDir: File)
+            = directoryArgs(project) + listOf(CLASSES, testClasses.joinToString(","))
+
+    /**
+     * Parse the "FAILED:" lines and the final "TEST RESULTS:" line displayed by main().
+     */
+    override fun forkResult(project: Project, outputDir: File, output: File, exitCode: Int) : ForkResult {
+        val failedTests = arrayListOf<String>()
+        var counts: List<Int>? = null
+        output.forEachLine { line ->
+            if (line.startsWith(FAILED) || line.startsWith(ABORTED)) {
+                failedTests.add(line.substringAfter(": ").substringBefore(", reason:"))
+            } else {
+                RESULTS.matchEntire(line)?.let { counts = it.groupValues.drop(1).map(String::toInt) }
+            }
+        }
+        val failedClasses = failedTests.map { className(it) }.toSet()
+        return counts?.let {
+            ForkResult(exitCode, it[0], it[1] + it[3], it[2], failedTests, failedClasses = failedClasses)
+        } ?: ForkResult(exitCode, failedTests = failedTests, failedClasses = failedClasses)
+    }
+
+    /** The class of a test named "Class.method" */
+    private fun className(testName: String) = testName.substringBeforeLast('.')
+
+    companion object {
+        private const val FAILED = "FAILED: "
+        private const val ABORTED = "ABORTED: "
+        private const val LAUNCHER = "junit-platform-launcher"
+        private const val IN_PROCESS_OUTPUT = "junit5-output.txt"
+        private const val CLASSES = "--classes"
+        private val ENGINE_JAR = Regex("junit-platform-engine-(.+)\\.jar")
+        private val RESULTS = Regex("TEST RESULTS: (\\d+) PASSED, (\\d+) FAILED, (\\d+) SKIPPED, (\\d+) ABORTED")
+    }
 }
 
 private class Args {
@@ -63,6 +175,9 @@ private class Args {
 
     @Parameter(names = arrayOf("--classDir"))
     var classDir: String = "kobaltBuild/classes"
+
+    @Parameter(names = arrayOf("--classes"), description = "Only run these classes (comma separated)")
+    var classes: String? = null
 }
 
 fun main(argv: Array<String>) {
@@ -72,13 +187,21 @@ fun main(argv: Array<String>) {
 
     val testClassDir = File(args.testClassDir).absolutePath
     val classDir = File(args.classDir).absolutePath
-    val request : LauncherDiscoveryRequest = LauncherDiscoveryRequestBuilder()
-            .selectors(DiscoverySelectors.selectClasspathRoots(setOf(
-                    Paths.get(testClassDir),
-                    Paths.get(classDir)
-            )))
-            .selectors(DiscoverySelectors.selectDirectory(testClassDir))
-            .build()
+    val classes = args.classes
+    val request : LauncherDiscoveryRequest =
+        if (classes != null) {
+            LauncherDiscoveryRequestBuilder()
+                    .selectors(classes.split(",").map { DiscoverySelectors.selectClass(it) })
+                    .build()
+        } else {
+            LauncherDiscoveryRequestBuilder()
+                    .selectors(DiscoverySelectors.selectClasspathRoots(setOf(
+                            Paths.get(testClassDir),
+                            Paths.get(classDir)
+                    )))
+                    .selectors(DiscoverySelectors.selectDirectory(testClassDir))
+                    .build()
+        }
 
     fun testName(id: TestIdentifier) : String? {
         val result =
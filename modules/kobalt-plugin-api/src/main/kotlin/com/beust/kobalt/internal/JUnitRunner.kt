@@ -4,12 +4,9 @@ import com.beust.kobalt.TestConfig
 import com.beust.kobalt.api.IClasspathDependency
 import com.beust.kobalt.api.KobaltContext
 import com.beust.kobalt.api.Project
-import com.beust.kobalt.maven.DependencyManager
-import com.google.inject.Inject
-import java.lang.reflect.Modifier
-import java.net.URLClassLoader
+import java.io.File
 
-open class JUnitRunner() : GenericTestRunner() {
+open class JUnitRunner() : GenericTestRunner(), IForkingTestRunner {
 
     override val mainClass = "org.junit.runner.JUnitCore"
     override val annotationPackage = "org.junit"
@@ -19,13 +16,43 @@ open class JUnitRunner() : GenericTestRunner() {
     override fun args(project: Project, context: KobaltContext, classpath: List<IClasspathDependency>,
             testConfig: TestConfig) = findTestClasses(project, context, testConfig)
 
-    @Inject
-    lateinit var dependencyManager: DependencyManager
+    /** JUnit 3 tests */
+    override val testSuperclasses = listOf("junit.framework.TestCase")
+
+    override fun forkArgs(project: Project, context: KobaltContext, testConfig: TestConfig,
+            testClasses: List<String>, outputDir: File) = testClasses
+
+    /**
+     * Parse the summary displayed by JUnitCore: "OK (n tests)" or "Tests run: n,  Failures: f", preceded by
+     * one "i) testMethod(TestClass)" line per failure.
+     */
+    override fun forkResult(project: Project, outputDir: File, output: File, exitCode: Int) : ForkResult {
+        var run: Int? = null
+        var failed: Int? = null
+        val failedTests = arrayListOf<String>()
+        val failedClasses = hashSetOf<String>()
+        output.forEachLine { line ->
+            OK.matchEntire(line)?.let {
+                run = it.groupValues[1].toInt()
+                failed = 0
+            }
+            SUMMARY.matchEntire(line)?.let {
+                run = it.groupValues[1].toInt()
+                failed = it.groupValues[2].toInt()
+            }
+            FAILURE.matchEntire(line)?.let {
+                failedTests.add(it.groupValues[3] + "." + it.groupValues[2])
+                failedClasses.add(it.groupValues[3])
+            }
+        }
+        val passed = run?.let { r -> failed?.let { r - it } }
+        return ForkResult(exitCode, passed, failed, null, failedTests, failedClasses = failedClasses)
+    }
 
-    override fun filterTestClasses(project: Project, context: KobaltContext, classes: List<String>) : List<String> {
-        val deps = dependencyManager.testDependencies(project, context)
-        val cl = URLClassLoader(deps.map { it.jarFile.get().toURI().toURL() }.toTypedArray())
-        return classes.filter { !Modifier.isAbstract(cl.loadClass(it).modifiers) }
+    companion object {
+        private val OK = Regex("OK \\((\\d+) tests?\\)")
+        private val SUMMARY = Regex("Tests run: (\\d+),\\s+Failures: (\\d+)")
+        private val FAILURE = Regex("(\\d+)\\) ([^(\\s]+)\\(([\\w.$]+)\\)")
     }
 
 }
@@ -6,6 +6,7 @@ import com.beust.kobalt.api.CompilerActionInfo
 import com.beust.kobalt.api.KobaltContext
 import com.beust.kobalt.api.Project
 import com.beust.kobalt.maven.DependencyManager
+import com.beust.kobalt.misc.BuildTrace
 import com.google.inject.Inject
 import java.io.File
 import java.util.*
@@ -33,7 +34,11 @@ class JvmCompiler @Inject constructor(val dependencyManager: DependencyManager)
         val addedFlags = contributorFlags + ArrayList(info.compilerArgs)
 
         validateClasspath(allDependencies.map { it.jarFile.get().absolutePath })
-        return action.compile(project, info.copy(dependencies = allDependencies, compilerArgs = addedFlags))
+        val suffixes = info.suffixesBeingCompiled.joinToString(",")
+        return BuildTrace.trace("compile ${project?.name ?: ""} $suffixes", "compiler",
+                mapOf("sourceFiles" to info.sourceFiles.size, "outputDir" to info.outputDir)) {
+            action.compile(project, info.copy(dependencies = allDependencies, compilerArgs = addedFlags))
+        }
     }
 
     private fun validateClasspath(cp: List<String>) {
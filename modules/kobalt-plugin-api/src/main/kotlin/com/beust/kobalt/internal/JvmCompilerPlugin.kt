@@ -90,8 +90,38 @@ open class JvmCompilerPlugin @Inject constructor(
                     scopes = listOf(Scope.TEST))
             val compileDependencies = dependencyManager.calculateDependencies(project, context,
                     scopes = listOf(Scope.COMPILE, Scope.COMPILEONLY))
-            val allDependencies = (testDependencies + compileDependencies).distinct()
-            return testContributor.run(project, context, configName, allDependencies.toList())
+            val allDependencies = (testDependencies + compileDependencies).distinct().toList()
+
+            //
+            // Skip the tests if they passed the last time and nothing they depend on changed since then
+            //
+            val testConfig = project.testConfigs.firstOrNull { it.name == configName }
+            val cacheFile = TestCache.file(project, if (configName.isEmpty()) TASK_TEST else TASK_TEST + configName)
+            val fingerprint = testConfig?.let {
+                val jvmArgs =
+                    if (testContributor is GenericTestRunner) {
+                        testContributor.calculateAllJvmArgs(project, context, testConfig, allDependencies,
+                                context.pluginInfo)
+                    } else {
+                        testConfig.jvmArgs
+                    }
+                TestCache.fingerprint(project, context, testContributor.javaClass.name, testConfig,
+                        allDependencies, jvmArgs)
+            }
+            val previous = TestCache.read(cacheFile)
+            if (fingerprint != null && ! context.args.rerunTests && previous?.fingerprint == fingerprint) {
+                context.logger.log(project.name, 1, "  Tests are up to date, not running them again (use "
+                        + "--rerunTests to force)")
+                return TaskResult(true, testResult = previous.toTestResult())
+            }
+
+            cacheFile.delete()
+            val result = testContributor.run(project, context, configName, allDependencies)
+            if (fingerprint != null && result.success) {
+                val testResult = result.testResult
+                TestCache(fingerprint, testResult?.shortMessage, testResult?.longMessage).save(cacheFile)
+            }
+            return result
         } else {
             context.logger.log(project.name, 2,
                 "Couldn't find a test runner for project ${project.name}, did you specify dependenciesTest{}?")
@@ -121,7 +151,14 @@ open class JvmCompilerPlugin @Inject constructor(
                 Md5.toMd5Directories(listOf(KFiles.makeOutputTestDir(project)))
             },
             task = { project -> doTaskCompileTest(project)},
-            context = context
+            context = context,
+            inputFiles = {
+                context.testSourceDirectories(project).map { File(project.directory, it.path) } +
+                        compileClasspath(project, isTest = true)
+            },
+            outputFiles = { listOf(File(project.directory, KFiles.joinDir(project.buildDirectory,
+                    KFiles.TEST_CLASSES_DIR))) },
+            keyInputs = { compilerKeyInputs(project) }
         )
     }
 
@@ -139,10 +176,48 @@ open class JvmCompilerPlugin @Inject constructor(
                     Md5.toMd5Directories(listOf(File(project.directory, project.classesDir(context))))
                 },
                 task = { project -> doTaskCompile(project) },
-                context = context
+                context = context,
+                inputFiles = {
+                    context.sourceDirectories(project).map { File(project.directory, it.path) } +
+                            compileClasspath(project, isTest = false)
+                },
+                outputFiles = { listOf(File(project.directory, project.classesDir(context))) },
+                keyInputs = { compilerKeyInputs(project) }
         )
     }
 
+    /**
+     * What determines the output of the compilers besides the files they read: their names and flags, the
+     * default version of Kotlin and the version of the JVM.
+     */
+    private fun compilerKeyInputs(project: Project) : List<String> {
+        val flagContributors = context.pluginInfo.compilerFlagContributors.sortedBy { it.flagPriority }
+        val compilers = context.pluginInfo.compilerContributors.flatMap { it.compilersFor(project, context) }
+        return compilers.flatMap { compiler ->
+            listOf(compiler.name) + flagContributors.fold(listOf<String>()) { flags, contributor ->
+                flags + contributor.compilerFlagsFor(project, context, flags, compiler.sourceSuffixes)
+            }
+        } + "kotlin ${context.settings.kobaltCompilerVersion}" + "java ${System.getProperty("java.version")}"
+    }
+
+    /**
+     * The jar files and directories the compilation depends on, used to calculate the key of the
+     * compile tasks in the build cache.
+     */
+    private fun compileClasspath(project: Project, isTest: Boolean) : List<File> {
+        val compileDependencies = dependencyManager.calculateDependencies(project, context,
+                scopes = listOf(Scope.COMPILE, Scope.COMPILEONLY))
+        val dependencies =
+            if (isTest) {
+                compileDependencies + dependencyManager.calculateDependencies(project, context,
+                        dependencyFilter = dependencyManager.createDependencyFilter(project, project.testDependencies),
+                        scopes = listOf(Scope.TEST))
+            } else {
+                compileDependencies
+            }
+        return dependencies.distinct().map { it.jarFile.get() }
+    }
+
     private fun doTaskCompile(project: Project) = doTaskCompile(project, isTest = false)
 
     private fun doTaskCompileTest(project: Project) = doTaskCompile(project, isTest = true)
@@ -8,6 +8,7 @@ import com.beust.kobalt.misc.KFiles
 import com.beust.kobalt.misc.kobaltLog
 import com.google.inject.Inject
 import com.google.inject.Singleton
+import org.eclipse.aether.repository.RepositoryPolicy
 import java.io.File
 import java.io.FileInputStream
 import javax.xml.bind.JAXBContext
@@ -45,6 +46,15 @@ class KobaltSettingsXml {
 
     @XmlElement(name = "autoUpdate") @JvmField
     var autoUpdate: Boolean = false
+
+    @XmlElement(name = "buildCache") @JvmField
+    var buildCache: BuildCacheXml? = null
+
+    @XmlElement(name = "metadataUpdatePolicy") @JvmField
+    var metadataUpdatePolicy: String = RepositoryPolicy.UPDATE_POLICY_DAILY
+
+    @XmlElement(name = "repositoryPolicies") @JvmField
+    var repositoryPolicies: RepositoryPoliciesXml? = null
 }
 
 class ProxiesXml {
@@ -66,6 +76,43 @@ class ProxyXml {
     var nonProxyHosts: String = ""
 }
 
+/**
+ * <buildCache>: where incremental tasks fetch and store their outputs, see BuildCache.
+ */
+class BuildCacheXml {
+    /** Base URL of the remote cache, entries are accessed with GET and PUT on <url>/<key> */
+    @XmlElement @JvmField
+    var url: String? = null
+
+    /** If true, entries are only downloaded, never uploaded (typically for developer machines) */
+    @XmlElement @JvmField
+    var readOnly: Boolean = false
+
+    /** Connection and read timeout, in seconds */
+    @XmlElement @JvmField
+    var timeout: Int = 10
+
+    /** Where `kobaltw --buildCacheServer` stores its entries */
+    @XmlElement @JvmField
+    var serverDirectory: String = homeDir(KFiles.KOBALT_DOT_DIR, "buildCacheServer")
+}
+
+class RepositoryPoliciesXml {
+    @XmlElement @JvmField
+    var repositoryPolicy: List<RepositoryPolicyXml> = arrayListOf()
+}
+
+/**
+ * Override <metadataUpdatePolicy> for the repositories whose URL starts with <url>.
+ */
+class RepositoryPolicyXml {
+    @XmlElement @JvmField
+    var url: String = ""
+
+    @XmlElement @JvmField
+    var updatePolicy: String = RepositoryPolicy.UPDATE_POLICY_DAILY
+}
+
 class DefaultReposXml {
     @XmlElement @JvmField
     var repo: List<String> = arrayListOf()
@@ -101,6 +148,38 @@ class KobaltSettings @Inject constructor(val xmlFile: KobaltSettingsXml) {
 
     val defaultRepos = xmlFile.defaultRepos?.repo
 
+    /**
+     * The remote build cache, null if none was configured.
+     */
+    val buildCache = xmlFile.buildCache
+
+    /**
+     * How long the metadata downloaded from a repository (maven-metadata.xml, used to resolve version ranges,
+     * versionless ids and SNAPSHOTs) is trusted before being checked again, in Maven Resolver's format:
+     * "never", "always", "daily" or "interval:<minutes>". Maven Resolver records when each repository was last
+     * checked in the local repository, so this is shared by all the projects and Kobalt processes using it.
+     */
+    fun metadataUpdatePolicy(repoUrl: String) : String {
+        val policy = xmlFile.repositoryPolicies?.repositoryPolicy
+                ?.filter { it.url.isNotBlank() && repoUrl.startsWith(it.url) }
+                ?.maxBy { it.url.length }
+                ?.updatePolicy
+                ?: xmlFile.metadataUpdatePolicy
+        return if (isValidUpdatePolicy(policy)) policy
+            else {
+                kobaltLog(1, "Unknown update policy \"$policy\" for $repoUrl, using "
+                        + RepositoryPolicy.UPDATE_POLICY_DAILY)
+                RepositoryPolicy.UPDATE_POLICY_DAILY
+            }
+    }
+
+    private fun isValidUpdatePolicy(policy: String) = when(policy) {
+            RepositoryPolicy.UPDATE_POLICY_NEVER, RepositoryPolicy.UPDATE_POLICY_ALWAYS,
+                    RepositoryPolicy.UPDATE_POLICY_DAILY -> true
+            else -> policy.startsWith(RepositoryPolicy.UPDATE_POLICY_INTERVAL + ":")
+                    && policy.substringAfter(":").toIntOrNull() != null
+        }
+
     val proxyConfigs = with(xmlFile.proxies?.proxy) {
         fun toIntOr(s: String, defaultValue: Int) = try {   //TODO can be extracted to some global Utils
             s.toInt()
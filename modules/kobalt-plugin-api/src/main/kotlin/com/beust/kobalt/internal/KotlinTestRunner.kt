@@ -10,6 +10,7 @@ import com.beust.kobalt.api.Project
 class KotlinTestRunner : JUnitRunner() {
     override val dependencyName = "io.kotlintest"
     override val runnerName = "Kotlin Test"
+    override val testSuperclasses = listOf("io.kotlintest")
 
     /**
      * KotlinTestRunner runs tests in the init{} initializer, so ignore all the extra
@@ -1,13 +1,17 @@
 package com.beust.kobalt.internal
 
 import com.beust.kobalt.Args
-import com.beust.kobalt.KobaltException
 import com.beust.kobalt.misc.*
+import com.google.common.annotations.VisibleForTesting
 import com.google.inject.Inject
 import com.google.inject.Singleton
+import java.io.*
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
 
 interface ILogger {
     fun log(tag: CharSequence, level: Int, message: CharSequence, newLine: Boolean = true)
@@ -16,70 +20,131 @@ interface ILogger {
 /**
  * This class manages logs for parallel builds. These logs come from multiple projects interwoven as
  * they are being scheduled on different threads. This class maintains a "current" project which has
- * its logs always displayed instantaneously while logs from other projects are being stored for later display.
+ * its logs always displayed as they come while logs from other projects are being stored for later display.
  * Once the current project is done, this class will catch up all the finished project logs and then
  * pick the next current project to be displayed live.
  *
- * Yes, this code was pretty painful to write and I'm pretty sure it can be made less ugly.
+ * The threads of the build only append their lines to the lock-free queue of their project and post the
+ * start and the end of the projects as events. Everything else, including which project is current and the
+ * display, happens on a single writer thread. Lines above the log level are never stored and once more than
+ * [maxBufferedChars] characters are waiting, the writer moves the lines of the projects that are not displayed
+ * to a temporary file per project, read back when their turn comes.
  */
 @Singleton
 class ParallelLogger @Inject constructor(val args: Args) : ILogger {
     enum class Type { LOG, WARN, ERROR }
 
     class LogLine(val name: CharSequence? = null, val level: Int, val message: CharSequence, val type: Type,
-            val newLine: Boolean)
-    private val logLines = ConcurrentHashMap<CharSequence, ArrayList<LogLine>>()
+            val newLine: Boolean, val time: Long = 0)
 
-    private val runningProjects = ConcurrentLinkedQueue<String>()
-    var startTime: Long? = null
+    companion object {
+        private const val DEFAULT_MAX_BUFFERED_CHARS = 4L * 1024 * 1024
+        private val PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50)
+    }
+
+    /**
+     * The lines of a project waiting to be displayed: first the ones in [spill], if any, then the ones in [lines].
+     * Only the writer thread touches [spill].
+     */
+    private class Buffer(val name: String) {
+        val lines = ConcurrentLinkedQueue<LogLine>()
+        var spill: File? = null
+        var spillOutput: DataOutputStream? = null
+        var spilledLines = 0
+    }
+
+    private sealed class Event {
+        class Started(val name: String) : Event()
+        class Stopped(val name: String) : Event()
+        class Shutdown : Event()
+    }
+
+    /**
+     * Above this many characters waiting in memory, the lines of the projects not displayed go to disk.
+     */
+    @VisibleForTesting
+    var maxBufferedChars = DEFAULT_MAX_BUFFERED_CHARS
+
+    /**
+     * Where the writer thread sends the lines.
+     */
+    @VisibleForTesting
+    var output: (LogLine) -> Unit = { displayLine(it) }
+
+    private val buffers = ConcurrentHashMap<String, Buffer>()
+    private val events = ConcurrentLinkedQueue<Event>()
+    private val bufferedChars = AtomicLong()
+    private var startTime = System.currentTimeMillis()
 
+    @Volatile
+    private var writer: Thread? = null
+
+    /** Only written by the writer thread, read by the others to know when to wake it up */
+    @Volatile
+    private var currentName: String? = null
+
+    // The state of the writer thread
+    private val runningProjects = ArrayDeque<String>()
+    private val stoppedProjects = hashSetOf<String>()
+
+    @Synchronized
     fun onProjectStarted(name: String) {
-        if (startTime == null) {
+        if (writer == null) {
             startTime = System.currentTimeMillis()
+            writer = Thread({ write() }, "Kobalt log writer").apply {
+                isDaemon = true
+                start()
+            }
         }
-        runningProjects.add(name)
-        logLines[name] = arrayListOf()
-        if (currentName == null) {
-            currentName = name
-        }
+        post(Event.Started(name))
     }
 
-    val stoppedProjects = ConcurrentHashMap<String, String>()
-
     fun onProjectStopped(name: String) {
         debug("onProjectStopped($name)")
-        stoppedProjects[name] = name
-
-        if (name == currentName && runningProjects.any()) {
-            emptyProjectLog(name)
-            var nextProject = runningProjects.peek()
-            while (nextProject != null && stoppedProjects.containsKey(nextProject)) {
-                val sp = runningProjects.remove()
-                emptyProjectLog(sp)
-                nextProject = runningProjects.peek()
-            }
-            currentName = nextProject
-        } else {
-            debug("Non current project $name stopping, not doing anything")
+        post(Event.Stopped(name))
+    }
+
+    /**
+     * Display all the lines still waiting and stop the writer thread.
+     */
+    @Synchronized
+    fun shutdown() {
+        writer?.let {
+            post(Event.Shutdown())
+            it.join()
         }
+        writer = null
+        kobaltLog(1, "")
+    }
+
+    override fun log(tag: CharSequence, level: Int, message: CharSequence, newLine: Boolean) {
+        if (args.sequential || writer == null) {
+            kobaltLog(level, message, newLine)
+        } else if (level <= KobaltLogger.LOG_LEVEL && ! KobaltLogger.isQuiet) {
+            val name = tag.toString()
+            val line = LogLine(name, level, message, Type.LOG, newLine, System.currentTimeMillis() - startTime)
+            bufferedChars.addAndGet(message.length.toLong())
+            buffer(name).lines.add(line)
+            if (name == currentName) writer?.let { LockSupport.unpark(it) }
+        }
+    }
+
+    private fun post(event: Event) {
+        events.add(event)
+        writer?.let { LockSupport.unpark(it) }
     }
 
+    private fun buffer(name: String) = buffers.getOrPut(name) { Buffer(name) }
+
     private fun debug(s: CharSequence) {
         if (args.log >= 3) {
-            val time = System.currentTimeMillis() - startTime!!
+            val time = System.currentTimeMillis() - startTime
             kobaltLog(1, "                    ### [$time] $s")
         }
     }
 
-    val LOCK = Any()
-    var currentName: String? = null
-        set(newName) {
-            field = newName
-        }
-
     private fun displayLine(ll: LogLine) {
-        val time = System.currentTimeMillis() - startTime!!
-        val m = (if (args.dev) "### [$time] " else "") + ll.message
+        val m = (if (args.dev) "### [${ll.time}] " else "") + ll.message
         when(ll.type) {
             Type.LOG -> kobaltLog(ll.level, m, ll.newLine)
             Type.WARN -> kobaltWarn(m)
@@ -87,44 +152,128 @@ class ParallelLogger @Inject constructor(val args: Args) : ILogger {
         }
     }
 
-    private fun emptyProjectLog(name: CharSequence?) {
-        val lines = logLines[name]
-        if (lines != null && lines.any()) {
-            debug("emptyProjectLog($name)")
-            lines.forEach {
-                displayLine(it)
+    /**
+     * The loop of the writer thread.
+     */
+    private fun write() {
+        while (true) {
+            var event = events.poll()
+            while (event != null) {
+                when (event) {
+                    is Event.Started -> onStarted(event.name)
+                    is Event.Stopped -> onStopped(event.name)
+                    is Event.Shutdown -> {
+                        onShutdown()
+                        return
+                    }
+                }
+                event = events.poll()
+            }
+            val current = currentName?.let { buffers[it] }
+            if (current != null) emptyProjectLog(current)
+            if (bufferedChars.get() > maxBufferedChars) spill()
+            if (events.isEmpty() && (current == null || current.lines.isEmpty())) {
+                LockSupport.parkNanos(this, PARK_NANOS)
             }
-            lines.clear()
-            debug("Done emptyProjectLog($name)")
-//            logLines.remove(name)
-        } else if (lines == null) {
-            throw KobaltException("Didn't call onStartProject() for $name")
         }
     }
 
-    private fun addLogLine(name: CharSequence, ll: LogLine) {
-        if (name != currentName) {
-            val list = logLines[name] ?: arrayListOf()
-            logLines[name] = list
-            list.add(ll)
-        } else {
-            emptyProjectLog(name)
-            displayLine(ll)
+    private fun onStarted(name: String) {
+        runningProjects.add(name)
+        buffer(name)
+        if (currentName == null) {
+            currentName = name
         }
     }
 
-    override fun log(tag: CharSequence, level: Int, message: CharSequence, newLine: Boolean) {
-        if (args.sequential) {
-            kobaltLog(level, message, newLine)
+    private fun onStopped(name: String) {
+        stoppedProjects.add(name)
+        if (name == currentName) {
+            while (runningProjects.any() && stoppedProjects.contains(runningProjects.peek())) {
+                buffers[runningProjects.remove()]?.let { emptyProjectLog(it) }
+            }
+            currentName = runningProjects.peek()
         } else {
-            addLogLine(tag, LogLine(tag, level, message, Type.LOG, newLine))
+            debug("Non current project $name stopping, not doing anything")
         }
     }
 
-    fun shutdown() {
-        runningProjects.forEach {
-            emptyProjectLog(it)
+    private fun onShutdown() {
+        runningProjects.forEach { name ->
+            buffers[name]?.let { emptyProjectLog(it) }
         }
-        kobaltLog(1, "")
+        // Lines logged with a tag that never started
+        buffers.values.forEach { emptyProjectLog(it) }
+        buffers.clear()
+        runningProjects.clear()
+        stoppedProjects.clear()
+        currentName = null
+    }
+
+    private fun emptyProjectLog(buffer: Buffer) {
+        buffer.spill?.let { file ->
+            debug("emptyProjectLog(${buffer.name}) from $file")
+            buffer.spillOutput!!.close()
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { ins ->
+                repeat(buffer.spilledLines) { output(readLine(buffer.name, ins)) }
+            }
+            file.delete()
+            buffer.spill = null
+            buffer.spillOutput = null
+            buffer.spilledLines = 0
+        }
+        var line = buffer.lines.poll()
+        while (line != null) {
+            bufferedChars.addAndGet(- line.message.length.toLong())
+            output(line)
+            line = buffer.lines.poll()
+        }
+    }
+
+    /**
+     * Move the lines of the projects that are not being displayed to their temporary file, the biggest first,
+     * until at most half of [maxBufferedChars] are left in memory.
+     */
+    private fun spill() {
+        val candidates = buffers.values.filter { it.name != currentName }
+                .sortedByDescending { b -> b.lines.sumBy { it.message.length } }
+        for (buffer in candidates) {
+            if (bufferedChars.get() <= maxBufferedChars / 2) break
+            val out = buffer.spillOutput ?: run {
+                val file = File.createTempFile("kobalt-log-", ".bin").apply { deleteOnExit() }
+                buffer.spill = file
+                DataOutputStream(BufferedOutputStream(FileOutputStream(file))).apply { buffer.spillOutput = this }
+            }
+            var line = buffer.lines.poll()
+            while (line != null) {
+                writeLine(out, line)
+                buffer.spilledLines++
+                bufferedChars.addAndGet(- line.message.length.toLong())
+                line = buffer.lines.poll()
+            }
+            out.flush()
+            debug("Spilled the log of ${buffer.name} to ${buffer.spill}")
+        }
+    }
+
+    private fun writeLine(out: DataOutputStream, line: LogLine) {
+        with(out) {
+            writeByte(line.type.ordinal)
+            writeInt(line.level)
+            writeBoolean(line.newLine)
+            writeLong(line.time)
+            val bytes = line.message.toString().toByteArray(Charsets.UTF_8)
+            writeInt(bytes.size)
+            write(bytes)
+        }
+    }
+
+    private fun readLine(name: String, ins: DataInputStream) : LogLine {
+        val type = Type.values()[ins.readByte().toInt()]
+        val level = ins.readInt()
+        val newLine = ins.readBoolean()
+        val time = ins.readLong()
+        val bytes = ByteArray(ins.readInt()).apply { ins.readFully(this) }
+        return LogLine(name, level, String(bytes, Charsets.UTF_8), type, newLine, time)
     }
 }
@@ -7,6 +7,7 @@ import com.beust.kobalt.api.ITask
 import com.beust.kobalt.api.Kobalt
 import com.beust.kobalt.api.Project
 import com.beust.kobalt.api.ProjectBuildStatus
+import com.beust.kobalt.misc.BuildTrace
 import com.beust.kobalt.misc.kobaltLog
 import com.google.common.collect.ListMultimap
 import com.google.common.collect.TreeMultimap
@@ -34,7 +35,10 @@ class ParallelProjectRunner(val tasksByNames: (Project) -> ListMultimap<String,
                     if (other is ProjectTask) other.project.name == project.name
                     else false
 
-            override fun call(): TaskResult2<ProjectTask> {
+            override fun call(): TaskResult2<ProjectTask>
+                    = BuildTrace.trace(project.name, "project") { runProject() }
+
+            private fun runProject(): TaskResult2<ProjectTask> {
                 val context = Kobalt.context!!
                 runBuildListenersForProject(project, context, true)
                 val tasksByNames = tasksByNames(project)
@@ -54,7 +58,10 @@ class ParallelProjectRunner(val tasksByNames: (Project) -> ListMultimap<String,
                             runBuildListenersForTask(project, context, task.name, start = true)
                             logger.log(project.name, 1,
                                     AsciiArt.taskColor(AsciiArt.horizontalSingleLine + " ${project.name}:${task.name}"))
-                            val thisResult = if (dryRun) TaskResult2(true, value = task) else task.call()
+                            val thisResult = if (dryRun) TaskResult2(true, value = task)
+                                else BuildTrace.trace("${project.name}:${task.name}", "task") { span ->
+                                    task.call().apply { span.attribute("success", success) }
+                                }
                             if (lastResult.success) {
                                 lastResult = thisResult
                             }
@@ -7,6 +7,7 @@ import com.beust.kobalt.api.ITask
 import com.beust.kobalt.api.Kobalt
 import com.beust.kobalt.api.Project
 import com.beust.kobalt.api.ProjectBuildStatus
+import com.beust.kobalt.misc.BuildTrace
 import com.beust.kobalt.misc.Strings
 import com.beust.kobalt.misc.kobaltError
 import com.google.common.collect.ListMultimap
@@ -49,44 +50,46 @@ class SequentialProjectRunner(val tasksByNames: (Project) -> ListMultimap<String
                         + Strings.pluralize(fp.size, "project")
                         + " " + fp.joinToString(","))
             } else {
-                runBuildListenersForProject(project, context, true)
-
-                // There can be multiple tasks by the same name (e.g. PackagingPlugin and AndroidPlugin both
-                // define "install"), so use a multimap
-                val tasksByNames = tasksByNames(project)
-
-                klog(3, "Tasks:")
-                tasksByNames.keys().forEach {
-                    klog(3, "  $it: " + tasksByNames.get(it))
-                }
-
-                val graph = createTaskGraph(project.name, taskInfos, tasksByNames,
-                        dependsOn, reverseDependsOn, runBefore, runAfter, alwaysRunAfter,
-                        ITask::name,
-                        { task: ITask -> task.plugin.accept(project) })
-
-                //
-                // Now that we have a full graph, run it
-                //
-                klog(2, "About to run graph:\n  ${graph.dump()}  ")
-
-                val factory = object : IThreadWorkerFactory<ITask> {
-                    override fun createWorkers(nodes: Collection<ITask>)
-                            = nodes.map { TaskWorker(listOf(it), args.dryRun, pluginInfo) }
-                }
-
-                val executor = DynamicGraphExecutor(graph, factory)
-                val thisResult = executor.run()
-                if (! thisResult.success) {
-                    klog(2, "Marking project ${project.name} as failed")
-                    failedProjects.add(project.name)
-                }
-
-                runBuildListenersForProject(project, context, false,
-                        if (thisResult.success) ProjectBuildStatus.SUCCESS else ProjectBuildStatus.FAILED)
-
-                if (result.success) {
-                    result = thisResult
+                BuildTrace.trace(projectName, "project") {
+                    runBuildListenersForProject(project, context, true)
+
+                    // There can be multiple tasks by the same name (e.g. PackagingPlugin and AndroidPlugin both
+                    // define "install"), so use a multimap
+                    val tasksByNames = tasksByNames(project)
+
+                    klog(3, "Tasks:")
+                    tasksByNames.keys().forEach {
+                        klog(3, "  $it: " + tasksByNames.get(it))
+                    }
+
+                    val graph = createTaskGraph(project.name, taskInfos, tasksByNames,
+                            dependsOn, reverseDependsOn, runBefore, runAfter, alwaysRunAfter,
+                            ITask::name,
+                            { task: ITask -> task.plugin.accept(project) })
+
+                    //
+                    // Now that we have a full graph, run it
+                    //
+                    klog(2, "About to run graph:\n  ${graph.dump()}  ")
+
+                    val factory = object : IThreadWorkerFactory<ITask> {
+                        override fun createWorkers(nodes: Collection<ITask>)
+                                = nodes.map { TaskWorker(listOf(it), args.dryRun, pluginInfo) }
+                    }
+
+                    val executor = DynamicGraphExecutor(graph, factory)
+                    val thisResult = executor.run()
+                    if (! thisResult.success) {
+                        klog(2, "Marking project ${project.name} as failed")
+                        failedProjects.add(project.name)
+                    }
+
+                    runBuildListenersForProject(project, context, false,
+                            if (thisResult.success) ProjectBuildStatus.SUCCESS else ProjectBuildStatus.FAILED)
+
+                    if (result.success) {
+                        result = thisResult
+                    }
                 }
             }
         }
@@ -7,5 +7,6 @@ package com.beust.kobalt.internal
 class SpekRunner : JUnitRunner() {
     override val dependencyName = "org.jetbrains.spek"
     override val runnerName = "Spek"
+    override val testSuperclasses = listOf("org.jetbrains.spek")
 }
 
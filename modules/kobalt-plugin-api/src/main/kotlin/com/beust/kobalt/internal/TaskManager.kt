@@ -5,6 +5,7 @@ import com.beust.kobalt.api.*
 import com.beust.kobalt.api.annotation.IncrementalTask
 import com.beust.kobalt.api.annotation.Task
 import com.beust.kobalt.misc.Topological
+import com.beust.kobalt.misc.BuildTrace
 import com.beust.kobalt.misc.kobaltLog
 import com.google.common.collect.ArrayListMultimap
 import com.google.common.collect.ListMultimap
@@ -317,7 +318,9 @@ class TaskWorker(val tasks: List<ITask>, val dryRun: Boolean, val pluginInfo: Pl
         tasks.forEach {
             val name = it.project.name + ":" + it.name
             BaseProjectRunner.runBuildListenersForTask(it.project, context, name, start = true)
-            val tr = if (dryRun) TaskResult() else it.call()
+            val tr = if (dryRun) TaskResult() else BuildTrace.trace(name, "task") { span ->
+                it.call().apply { span.attribute("success", success) }
+            }
             BaseProjectRunner.runBuildListenersForTask(it.project, context, name, start = false, success = tr.success)
             success = success and tr.success
             tr.errorMessage?.let {
@@ -0,0 +1,110 @@
+package com.beust.kobalt.internal
+
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentLinkedQueue
+import javax.management.NotificationEmitter
+import javax.management.NotificationListener
+import javax.management.openmbean.CompositeData
+
+/**
+ * Measure the resources used by a task for --profiling: the CPU time and the bytes allocated by the thread
+ * running it (not by the thread pools it hands work to), the GC pauses that happened while it ran, the time
+ * its thread spent blocked on locks held by other threads (e.g. other projects) or waiting for other threads,
+ * and the CPU time of the processes it forked (compilers, tests).
+ *
+ * A value that the JVM or the OS can't measure is -1. The CPU time of the forked processes is read from
+ * /proc/self/stat, so it's only available on Linux and it includes all the processes that ended while the task
+ * was running, even the ones forked by other projects.
+ */
+class TaskProfiler {
+    class Sample(val time: Long, val cpuNanos: Long, val allocatedBytes: Long, val blockedMillis: Long,
+            val waitedMillis: Long, val forkCpuMillis: Long)
+
+    class Usage(val wallMillis: Long, val cpuMillis: Long, val allocatedBytes: Long, val gcMillis: Long,
+            val blockedMillis: Long, val waitedMillis: Long, val forkCpuMillis: Long)
+
+    companion object {
+        private const val GC_NOTIFICATION = "com.sun.management.gc.notification"
+
+        /** The unit of the times in /proc, which is 100 on all the Linux kernels Kobalt runs on */
+        private const val CLOCK_TICK_MILLIS = 10L
+
+        private val PROC_STAT = File("/proc/self/stat")
+
+        private val threads = ManagementFactory.getThreadMXBean()
+
+        /** Available on HotSpot and OpenJ9 */
+        private val allocations = (threads as? com.sun.management.ThreadMXBean)?.takeIf {
+            it.isThreadAllocatedMemorySupported
+        }
+
+        /** The GC pauses since the first profiler was created, as (start, end) in milliseconds since the epoch */
+        private val pauses = ConcurrentLinkedQueue<Pair<Long, Long>>()
+
+        private val gcListener: Unit by lazy {
+            val jvmStart = ManagementFactory.getRuntimeMXBean().startTime
+            val listener = NotificationListener { notification, _ ->
+                if (notification.type == GC_NOTIFICATION) {
+                    val info = (notification.userData as CompositeData).get("gcInfo") as CompositeData
+                    pauses.add(Pair(jvmStart + info.get("startTime") as Long, jvmStart + info.get("endTime") as Long))
+                }
+            }
+            ManagementFactory.getGarbageCollectorMXBeans().filterIsInstance<NotificationEmitter>().forEach {
+                it.addNotificationListener(listener, null, null)
+            }
+            if (threads.isThreadCpuTimeSupported) threads.isThreadCpuTimeEnabled = true
+            if (threads.isThreadContentionMonitoringSupported) threads.isThreadContentionMonitoringEnabled = true
+            allocations?.isThreadAllocatedMemoryEnabled = true
+        }
+
+        /**
+         * @return the CPU time of the children of this process that were waited for, in milliseconds.
+         */
+        private fun forkCpuMillis() : Long {
+            try {
+                if (! PROC_STAT.exists()) return -1
+                // The command between parentheses can contain spaces, the fields after it start with the state
+                val fields = PROC_STAT.readText().substringAfterLast(") ").split(" ")
+                return (fields[13].toLong() + fields[14].toLong()) * CLOCK_TICK_MILLIS
+            } catch(ex: Exception) {
+                return -1
+            }
+        }
+
+        /** @return how long the [start, end] interval overlaps the GC pauses */
+        fun gcOverlapMillis(start: Long, end: Long, pauses: Collection<Pair<Long, Long>>) =
+                pauses.map { Math.max(0, Math.min(end, it.second) - Math.max(start, it.first)) }.sum()
+    }
+
+    init {
+        gcListener
+    }
+
+    /**
+     * Sample the thread calling this method, to be passed to stop() on the same thread once the task is done.
+     */
+    fun start() : Sample {
+        val id = Thread.currentThread().id
+        val info = threads.getThreadInfo(id)
+        val contention = threads.isThreadContentionMonitoringEnabled && info != null
+        return Sample(System.currentTimeMillis(),
+                if (threads.isThreadCpuTimeEnabled) threads.currentThreadCpuTime else -1,
+                allocations?.getThreadAllocatedBytes(id) ?: -1,
+                if (contention) info.blockedTime else -1,
+                if (contention) info.waitedTime else -1,
+                forkCpuMillis())
+    }
+
+    fun stop(start: Sample) : Usage {
+        val end = start()
+        fun delta(from: Long, to: Long) = if (from < 0 || to < 0) -1 else to - from
+        return Usage(end.time - start.time,
+                delta(start.cpuNanos, end.cpuNanos).let { if (it < 0) it else it / 1_000_000 },
+                delta(start.allocatedBytes, end.allocatedBytes),
+                gcOverlapMillis(start.time, end.time, pauses),
+                delta(start.blockedMillis, end.blockedMillis),
+                delta(start.waitedMillis, end.waitedMillis),
+                delta(start.forkCpuMillis, end.forkCpuMillis))
+    }
+}
@@ -0,0 +1,82 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.TestConfig
+import com.beust.kobalt.TestResult
+import com.beust.kobalt.api.IClasspathDependency
+import com.beust.kobalt.api.KobaltContext
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.maven.Md5
+import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.kobaltLog
+import com.google.gson.Gson
+import com.google.gson.JsonSyntaxException
+import java.io.File
+import java.io.FileReader
+import java.security.MessageDigest
+import javax.xml.bind.DatatypeConverter
+
+/**
+ * The result of the last successful run of a test task along with the fingerprint of everything that run
+ * depended on, so that the task can be skipped if that fingerprint didn't change. Saved in
+ * kobaltBuild/test-results/<task>.json.
+ */
+class TestCache(val fingerprint: String, val shortMessage: String?, val longMessage: String?) {
+    companion object {
+        const val TEST_RESULTS_DIR = "test-results"
+
+        fun file(project: Project, taskName: String) = File(KFiles.joinDir(project.directory,
+                project.buildDirectory, TEST_RESULTS_DIR, "$taskName.json"))
+
+        fun read(file: File) : TestCache? {
+            if (! file.exists()) return null
+            try {
+                return FileReader(file).use { Gson().fromJson(it, TestCache::class.java) }
+            } catch(ex: JsonSyntaxException) {
+                kobaltLog(2, "  Ignoring corrupted test result $file: ${ex.message}")
+                return null
+            }
+        }
+
+        /**
+         * The fingerprint of a test run: the content of the class and resource directories, the path, size and
+         * timestamp of the dependency jar files, the runner, its JVM flags and the test configuration.
+         */
+        fun fingerprint(project: Project, context: KobaltContext, runner: String, testConfig: TestConfig,
+                classpath: List<IClasspathDependency>, jvmArgs: List<String>) : String {
+            val md5 = MessageDigest.getInstance("MD5")
+            fun update(s: String?) = md5.update((s + "\n").toByteArray())
+
+            update(runner)
+            update(jvmArgs.joinToString(" "))
+            with(testConfig) {
+                listOf(name, testArgs, jvmArgs, testIncludes, testExcludes, forks, selectTests, fullRunEvery,
+                        inProcess).forEach { update(it.toString()) }
+            }
+
+            val directories = listOf(KFiles.CLASSES_DIR, KFiles.TEST_CLASSES_DIR).map {
+                File(KFiles.joinDir(project.directory, project.buildDirectory, it))
+            } + (context.variant.resourceDirectories(project, SourceSet.MAIN)
+                    + context.variant.resourceDirectories(project, SourceSet.TEST)).map {
+                File(project.directory, it.path)
+            }
+            directories.forEach { dir ->
+                update(dir.path)
+                update(Md5.toMd5Directories(listOf(dir), { file ->
+                    (file.relativeTo(dir).path + " " + Md5.toMd5(file)).toByteArray()
+                }))
+            }
+
+            // The class directories of other projects are only checked with their timestamps
+            val hashed = directories.map { it.absoluteFile.normalize() }
+            classpath.map { it.jarFile.get() }.filter { ! hashed.contains(it.absoluteFile.normalize()) }.forEach {
+                update(Md5.toMd5Directories(listOf(it)))
+            }
+
+            return DatatypeConverter.printHexBinary(md5.digest()).toLowerCase()
+        }
+    }
+
+    fun toTestResult() = TestResult(true, shortMessage, longMessage)
+
+    fun save(file: File) = KFiles.saveFile(file, Gson().toJson(this))
+}
@@ -0,0 +1,70 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.KobaltException
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.maven.Md5
+import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.kobaltLog
+import com.google.gson.Gson
+import com.google.gson.JsonSyntaxException
+import java.io.File
+import java.io.FileReader
+
+/**
+ * The super class, access flags and annotations of the test class files of a project, read from their bytes
+ * with ClassFileInfo. The entries are saved in kobaltBuild/test-results/test-classes.json by class file and
+ * only read again when the md5 of their class file changes.
+ */
+class TestClassIndex(val project: Project) {
+    class Entry(val path: String, val size: Long, val lastModified: Long, val md5: String, val name: String,
+            val superName: String?, val access: Int, val annotations: List<String>) {
+        val isAbstract get() = access and (ClassFileInfo.ACC_ABSTRACT or ClassFileInfo.ACC_INTERFACE) != 0
+    }
+
+    private class Entries(val entries: List<Entry>)
+
+    private val file = File(KFiles.joinDir(project.directory, project.buildDirectory, TestCache.TEST_RESULTS_DIR,
+            "test-classes.json"))
+
+    private val previous = read()?.entries?.associateBy { it.path } ?: emptyMap()
+
+    private val entries = hashMapOf<String, Entry?>()
+
+    /**
+     * @return the entry of [classFile], or null if it doesn't exist or couldn't be read.
+     */
+    fun entry(classFile: File) : Entry? = entries.getOrPut(classFile.path) {
+        if (! classFile.isFile) return@getOrPut null
+
+        val size = classFile.length()
+        val lastModified = classFile.lastModified()
+        val cached = previous[classFile.path]
+        if (cached != null && cached.size == size && cached.lastModified == lastModified) return@getOrPut cached
+
+        val md5 = Md5.toMd5(classFile)
+        if (cached != null && cached.md5 == md5) {
+            Entry(cached.path, size, lastModified, md5, cached.name, cached.superName, cached.access,
+                    cached.annotations)
+        } else try {
+            ClassFileInfo.read(classFile).let {
+                Entry(classFile.path, size, lastModified, md5, it.name, it.superName, it.access,
+                        it.annotations.toList())
+            }
+        } catch(ex: KobaltException) {
+            kobaltLog(2, "  " + ex.message)
+            null
+        }
+    }
+
+    fun save() = KFiles.saveFile(file, Gson().toJson(Entries(entries.values.filterNotNull())))
+
+    private fun read() : Entries? {
+        if (! file.exists()) return null
+        try {
+            return FileReader(file).use { Gson().fromJson(it, Entries::class.java) }
+        } catch(ex: JsonSyntaxException) {
+            kobaltLog(2, "  Ignoring corrupted test class index $file: ${ex.message}")
+            return null
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.kobaltLog
+import com.google.gson.Gson
+import com.google.gson.JsonSyntaxException
+import java.io.File
+import java.io.FileReader
+
+/**
+ * How long each test class of a project took the last time it ran, in milliseconds, and the classes that
+ * failed the last time they ran. Used to run the failed classes first and then the longest ones, and to
+ * balance the test classes across forks. Saved in .kobalt/testHistory/<project>.json.
+ */
+class TestHistory(val durations: Map<String, Long> = emptyMap(), val failedClasses: List<String> = emptyList()) {
+    companion object {
+        const val TEST_HISTORY_DIR = "testHistory"
+
+        fun file(project: Project) = File(KFiles.joinDir(KFiles.KOBALT_DOT_DIR, TEST_HISTORY_DIR,
+                project.name + ".json"))
+
+        fun read(project: Project) : TestHistory {
+            val file = file(project)
+            if (! file.exists()) return TestHistory()
+            try {
+                return FileReader(file).use { Gson().fromJson(it, TestHistory::class.java) } ?: TestHistory()
+            } catch(ex: JsonSyntaxException) {
+                kobaltLog(2, "  Ignoring corrupted test history $file: ${ex.message}")
+                return TestHistory()
+            }
+        }
+
+        /**
+         * @return [classes] with the ones in [failedClasses] first, then the others, the longest first. Classes
+         * that never ran are assumed to take the average duration of the others.
+         */
+        fun order(classes: List<String>, durations: Map<String, Long>,
+                failedClasses: Collection<String> = emptySet()) : List<String> {
+            val duration = durationOf(classes, durations)
+            val failed = failedClasses.toHashSet()
+            return classes.sortedWith(compareByDescending<String> { failed.contains(it) }
+                    .thenByDescending { duration(it) }
+                    .thenBy { it })
+        }
+
+        /**
+         * Split [classes] in at most [forks] lists whose total durations are as close as possible: the longest
+         * classes are assigned first, each to the least loaded fork. The [failedClasses] are assigned before
+         * the others so that each fork runs them first. Classes that never ran are assumed to take the average
+         * duration of the others.
+         */
+        fun partition(classes: List<String>, forks: Int, durations: Map<String, Long>,
+                failedClasses: Collection<String> = emptySet()) : List<List<String>> {
+            val duration = durationOf(classes, durations)
+            val count = Math.max(1, Math.min(forks, classes.size))
+            val result = List(count) { arrayListOf<String>() }
+            val loads = LongArray(count)
+            order(classes, durations, failedClasses).forEach { c ->
+                val index = loads.indices.minBy { loads[it] }!!
+                result[index].add(c)
+                loads[index] += duration(c)
+            }
+            return result
+        }
+
+        private fun durationOf(classes: List<String>, durations: Map<String, Long>) : (String) -> Long {
+            val known = classes.mapNotNull { durations[it] }
+            val default = if (known.any()) known.average().toLong() else 1L
+            return { durations[it] ?: default }
+        }
+    }
+
+    /**
+     * @return [classes] with the ones that failed last time first, then the others, the longest first.
+     */
+    fun order(classes: List<String>) = order(classes, durations, failedClasses)
+
+    /**
+     * @return a new history with the durations of the classes that just ran and with the [ranClasses] that
+     * didn't fail this time removed from the failed classes.
+     */
+    fun update(newDurations: Map<String, Long>, ranClasses: Collection<String> = newDurations.keys,
+            failed: Collection<String> = emptyList())
+        = TestHistory(durations + newDurations, (failedClasses - ranClasses + failed).distinct())
+
+    /**
+     * @return a new history with the [result] of a run of [launchedClasses], the classes the runner was given
+     * (empty if it found them itself). If the run failed without saying which classes failed, they are all
+     * assumed to have failed. If no class is known at all, only a successful run changes the history.
+     */
+    fun update(result: ForkResult, launchedClasses: Collection<String>) : TestHistory {
+        val ranClasses = (launchedClasses + result.classDurations.keys + result.failedClasses).distinct()
+        val failed = if (result.success || result.failedClasses.any()) result.failedClasses else ranClasses
+        return if (ranClasses.any()) update(result.classDurations, ranClasses, failed)
+            else if (result.success && failedClasses.any()) update(emptyMap(), failedClasses)
+            else this
+    }
+
+    fun save(project: Project) = KFiles.saveFile(file(project), Gson().toJson(this))
+}
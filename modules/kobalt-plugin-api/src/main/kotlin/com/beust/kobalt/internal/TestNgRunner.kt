@@ -1,8 +1,8 @@
 package com.beust.kobalt.internal
 
 import com.beust.kobalt.AsciiArt
+import com.beust.kobalt.KobaltException
 import com.beust.kobalt.TestConfig
-import com.beust.kobalt.TestResult
 import com.beust.kobalt.api.IClasspathDependency
 import com.beust.kobalt.api.KobaltContext
 import com.beust.kobalt.api.Project
@@ -13,17 +13,16 @@ import org.testng.remote.strprotocol.JsonMessageSender
 import org.testng.remote.strprotocol.MessageHelper
 import org.testng.remote.strprotocol.MessageHub
 import org.testng.remote.strprotocol.TestResultMessage
-import org.w3c.dom.Attr
-import org.w3c.dom.NodeList
-import org.xml.sax.InputSource
+import org.xml.sax.Attributes
+import org.xml.sax.helpers.DefaultHandler
 import java.io.File
-import java.io.FileReader
 import java.io.IOException
-import javax.xml.parsers.DocumentBuilderFactory
-import javax.xml.xpath.XPathConstants
-import javax.xml.xpath.XPathFactory
+import java.net.ServerSocket
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import javax.xml.parsers.SAXParserFactory
 
-class TestNgRunner : GenericTestRunner() {
+class TestNgRunner : GenericTestRunner(), IForkingTestRunner {
 
     override val mainClass = "org.testng.TestNG"
     override val dependencyName = "testng"
@@ -52,7 +51,7 @@ class TestNgRunner : GenericTestRunner() {
 
         if (testConfig.testArgs.size == 0) {
             // No arguments, so we'll do it ourselves. Either testng.xml or the list of classes
-            val testngXml = File(project.directory, KFiles.joinDir("src", "test", "resources", "testng.xml"))
+            val testngXml = testngXml(project)
             if (testngXml.exists()) {
                 add(testngXml.absolutePath)
             } else {
@@ -73,71 +72,227 @@ class TestNgRunner : GenericTestRunner() {
         }
     }
 
+    private fun testngXml(project: Project)
+            = File(project.directory, KFiles.joinDir("src", "test", "resources", "testng.xml"))
+
+    override fun canFork(project: Project, context: KobaltContext, testConfig: TestConfig)
+            = ! testngXml(project).exists()
+
+    override fun forkArgs(project: Project, context: KobaltContext, testConfig: TestConfig,
+            testClasses: List<String>, outputDir: File) = arrayListOf<String>().apply {
+        if (KobaltLogger.isQuiet) {
+            add("-log")
+            add("0")
+        }
+        add("-d")
+        add(outputDir.absolutePath)
+        add("-testclass")
+        add(testClasses.joinToString(","))
+    }
+
+    override fun forkResult(project: Project, outputDir: File, output: File, exitCode: Int) : ForkResult {
+        val file = File(outputDir, "testng-results.xml")
+        return if (file.exists()) readResults(file, exitCode) else ForkResult(exitCode)
+    }
+
     /**
-     * Extract test results from testng-results.xml and initialize shortMessage.
+     * @return the results in testng-results.xml, if TestNG wrote it.
      */
-    override fun onFinish(project: Project) {
-        File(defaultOutput(project), "testng-results.xml").let { file ->
-            val ins = InputSource(FileReader(file))
-            val doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(ins)
-
-            val root = doc.documentElement
-            var failed = 0
-            var skipped = 0
-            var passed = 0
-            val xp = XPathFactory.newInstance().newXPath()
-            val testMethods = xp.compile("/testng-results/suite/test/class/test-method[@status='FAIL']")
-                    .evaluate(doc, XPathConstants.NODESET)
-                    as NodeList
-            val failedMethods = arrayListOf<String>()
-            repeat(testMethods.length) {
-                val tm = testMethods.item(it)
-                failedMethods.add(tm.attributes.getNamedItem("signature").textContent)
+    private fun xmlResults(project: Project, exitCode: Int)
+            = File(defaultOutput(project), "testng-results.xml").let {
+                if (it.exists()) readResults(it, exitCode) else ForkResult(exitCode)
             }
-            repeat(root.attributes.length) {
-                val attribute = root.attributes.item(it)
-                if (attribute is Attr) when (attribute.name) {
-                    "failed" -> failed = Integer.parseInt(attribute.value)
-                    "skipped" -> skipped = Integer.parseInt(attribute.value)
-                    "passed" -> passed = Integer.parseInt(attribute.value)
+
+    /**
+     * Read the counts, the failed methods and the duration of each class from testng-results.xml. The file
+     * is streamed since it can be very large.
+     */
+    private fun readResults(file: File, exitCode: Int) : ForkResult {
+        var failed = 0
+        var skipped = 0
+        var passed = 0
+        val failedMethods = arrayListOf<String>()
+        val failedClasses = hashSetOf<String>()
+        val durations = hashMapOf<String, Long>()
+        var currentClass: String? = null
+
+        SAXParserFactory.newInstance().newSAXParser().parse(file, object : DefaultHandler() {
+            override fun startElement(uri: String?, localName: String?, qName: String, attributes: Attributes) {
+                when (qName) {
+                    "testng-results" -> {
+                        failed = attributes.getValue("failed")?.toInt() ?: 0
+                        skipped = attributes.getValue("skipped")?.toInt() ?: 0
+                        passed = attributes.getValue("passed")?.toInt() ?: 0
+                    }
+                    "class" -> currentClass = attributes.getValue("name")
+                    "test-method" -> {
+                        if (attributes.getValue("status") == "FAIL") {
+                            failedMethods.add(attributes.getValue("signature"))
+                            currentClass?.let { failedClasses.add(it) }
+                        }
+                        // The duration of each class is the sum of the durations of its methods
+                        currentClass?.let {
+                            durations[it] = (durations[it] ?: 0L) +
+                                    (attributes.getValue("duration-ms")?.toLongOrNull() ?: 0L)
+                        }
+                    }
                 }
             }
 
-            if (failed == 0) {
-                shortMessage = "$passed tests"
-            } else if (failed > 0) {
-                shortMessage = "$failed failed" + (if (skipped > 0) ", $skipped skipped" else "") + " tests"
-                longMessage = "Failed tests:\n  " + failedMethods.joinToString("\n  ")
+            override fun endElement(uri: String?, localName: String?, qName: String) {
+                if (qName == "class") currentClass = null
             }
-        }
+        })
+
+        return ForkResult(exitCode, passed, failed, skipped, failedMethods, durations, failedClasses)
     }
 
     val VERSION_6_10 = StringVersion("6.10")
 
-    fun _runTests(project: Project, context: KobaltContext, classpath: List<IClasspathDependency>,
-//    override fun runTests(project: Project, context: KobaltContext, classpath: List<IClasspathDependency>,
-            configName: String): TestResult {
+    /**
+     * Run the tests with the remote runner of TestNG, which reports the result of each test method over a
+     * socket as soon as it's known: the failures are displayed right away along with the progress of the run,
+     * and the JVM is stopped at the first failure with --failFast. Use the regular runner if there is no
+     * remote runner for this version of TestNG or if it couldn't be resolved.
+     *
+     * @return the results received from the remote runner or, if it couldn't be used, the ones in
+     * testng-results.xml.
+     */
+    override fun launch(project: Project, context: KobaltContext, testConfig: TestConfig,
+            classpath: List<IClasspathDependency>, args: List<String>) : ForkResult {
+        val remote = remoteClasspath(project, context, classpath)
+                ?: return xmlResults(project, super.launch(project, context, testConfig, classpath, args).exitCode)
+        val (testngVersion, remoteClasspath) = remote
+
+        val reserved = reservePort()
+        val port = reserved.localPort
+        try {
+            return launchRemote(project, context, testConfig, args, testngVersion, remoteClasspath, reserved)
+        } finally {
+            reserved.close()
+            releasePort(port)
+        }
+    }
 
-        val testConfig = project.testConfigs.firstOrNull { it.name == configName }
+    private fun launchRemote(project: Project, context: KobaltContext, testConfig: TestConfig, args: List<String>,
+            testngVersion: String, remoteClasspath: List<IClasspathDependency>, reserved: ServerSocket)
+            : ForkResult {
+        val port = reserved.localPort
+        val listener = RemoteListener(project, context)
+        val hub = MessageHub(JsonMessageSender("localhost", port, true))
+        val receiver = Thread {
+            try {
+                // The hub binds the port itself: only free it right before that
+                reserved.close()
+                hub.initReceiver()
+                var message = hub.receiveMessage()
+                while (message != null) {
+                    if (message is TestResultMessage) listener.onResult(message)
+                    message = hub.receiveMessage()
+                }
+            } catch(ex: IOException) {
+                context.logger.log(project.name, 2, "  Connection with the remote TestNG runner closed: "
+                        + ex.message)
+            }
+        }.apply {
+            isDaemon = true
+            start()
+        }
 
-        if (testConfig != null) {
-            context.logger.log(project.name, 1, "Running enhanced TestNG runner")
+        val remoteArgs = listOf("-serport", port.toString(), "-version", testngVersion, RemoteArgs.PROTOCOL, "json")
+        val process = startTests(project, context, testConfig, remoteClasspath, REMOTE_MAIN_CLASS,
+                remoteArgs + args)
+        while (! process.waitFor(100, TimeUnit.MILLISECONDS)) {
+            if (context.args.failFast && listener.failed.any()) {
+                context.logger.log(project.name, 1, "  Stopping the tests after the first failure (--failFast)")
+                process.destroy()
+                process.waitFor()
+                break
+            }
+        }
+        val exitCode = process.exitValue()
+
+        // The remote runner closes the connection when it's done, give it a chance to deliver the last messages
+        receiver.join(RECEIVER_TIMEOUT_MS)
+        if (receiver.isAlive) hub.shutDown()
+        if (listener.received == 0) {
+            context.logger.log(project.name, 1, "  Didn't receive any result from the remote TestNG runner")
+            return xmlResults(project, exitCode)
+        }
+        return ForkResult(exitCode, listener.passed, listener.failed.size, listener.skipped,
+                listener.failed, listener.classDurations, listener.failedClasses.toSet())
+    }
 
-            val testngDependency = (project.testDependencies.filter { it.id.contains("testng") }
-                    .firstOrNull() as AetherDependency).version
-            val versions = findRemoteRunnerVersion(testngDependency)
-            val useOldRunner = System.getProperty("testng.oldRunner") != null
-            val result =
-                if (versions != null && ! useOldRunner) {
-                    context.logger.log(project.name, 1, "Modern TestNG, displaying colors")
-                    displayPrettyColors(project, context, classpath, testConfig, versions)
-                } else {
-                    context.logger.log(project.name, 1, "Older TestNG ($testngDependency), using the old runner")
-                    super.runTests(project, context, classpath, configName)
+    /**
+     * Receives the results of the test methods from the receiver thread and displays them.
+     */
+    private class RemoteListener(val project: Project, val context: KobaltContext) {
+        @Volatile var received = 0
+        @Volatile var passed = 0
+        @Volatile var skipped = 0
+        val failed: MutableList<String> = java.util.Collections.synchronizedList(arrayListOf<String>())
+        val failedClasses: MutableSet<String> = java.util.Collections.synchronizedSet(hashSetOf<String>())
+        /** The time taken by the test methods of each class */
+        val classDurations = ConcurrentHashMap<String, Long>()
+        private var lastProgress = System.currentTimeMillis()
+
+        fun onResult(message: TestResultMessage) {
+            received++
+            val name = message.testClass + "." + message.method
+            classDurations.merge(message.testClass, Math.max(message.endMillis - message.startMillis, 0L),
+                    { a, b -> a + b })
+            when (message.result) {
+                MessageHelper.PASSED_TEST -> {
+                    passed++
+                    context.logger.log(project.name, 2, "  " + AsciiArt.wrap("PASSED", AsciiArt.GREEN) + " $name")
                 }
-            return result
-        } else {
-            return TestResult(true)
+                MessageHelper.FAILED_TEST -> {
+                    failed.add(name)
+                    failedClasses.add(message.testClass)
+                    val top = message.stackTrace?.lineSequence()?.firstOrNull() ?: ""
+                    context.logger.log(project.name, 1, "  " + AsciiArt.wrap("FAILED", AsciiArt.RED)
+                            + " $name\n    $top")
+                }
+                MessageHelper.SKIPPED_TEST -> {
+                    skipped++
+                    context.logger.log(project.name, 2, "  " + AsciiArt.wrap("SKIPPED", AsciiArt.YELLOW)
+                            + " $name")
+                }
+            }
+            val now = System.currentTimeMillis()
+            if (now - lastProgress >= PROGRESS_INTERVAL_MS) {
+                lastProgress = now
+                context.logger.log(project.name, 1, "  Tests: $passed passed, ${failed.size} failed, "
+                        + "$skipped skipped")
+            }
+        }
+    }
+
+    /**
+     * @return the version of TestNG to pass to the remote runner and the classpath of the tests with the
+     * remote runner added, or null if the remote runner can't be used.
+     */
+    private fun remoteClasspath(project: Project, context: KobaltContext, classpath: List<IClasspathDependency>)
+            : Pair<String, List<IClasspathDependency>>? {
+        if (System.getProperty("testng.oldRunner") != null) return null
+        val testngDependency = project.testDependencies.firstOrNull { it.id.contains("testng") }
+                as? AetherDependency ?: return null
+        val versions = findRemoteRunnerVersion(testngDependency.version)
+        if (versions == null) {
+            context.logger.log(project.name, 2, "  No remote runner for TestNG ${testngDependency.version}")
+            return null
+        }
+        try {
+            val remoteDependencies = with(context.dependencyManager) {
+                transitiveClosure(listOf(create("org.testng.testng-remote:testng-remote:$REMOTE_VERSION"),
+                        create("org.testng.testng-remote:${versions.second}:$REMOTE_VERSION")))
+            }
+            // The TestNG of the project comes first
+            return Pair(versions.first, (classpath + remoteDependencies).distinct())
+        } catch(ex: KobaltException) {
+            context.logger.log(project.name, 2, "  Couldn't resolve the remote TestNG runner, using the regular "
+                    + "one: ${ex.message}")
+            return null
         }
     }
 
@@ -153,103 +308,32 @@ class TestNgRunner : GenericTestRunner() {
         return result
     }
 
-    private fun displayPrettyColors(project: Project, context: KobaltContext,
-            classpath: List<IClasspathDependency>, testConfig: TestConfig, versions: Pair<String, String>)
-            : TestResult {
-        val port = 2345
-//        launchRemoteServer(project, context, classpath, testConfig, versions, port)
-
-        val mh = MessageHub(JsonMessageSender("localhost", port, true))
-        mh.setDebug(true)
-        mh.initReceiver()
-        val passed = arrayListOf<String>()
-
-        data class FailedTest(val method: String, val cls: String, val stackTrace: String)
-
-        val failed = arrayListOf<FailedTest>()
-        val skipped = arrayListOf<String>()
-
-        fun d(n: Int, color: String)
-                = AsciiArt.wrap(String.format("%4d", n), color)
-
-        fun red(s: String) = AsciiArt.wrap(s, AsciiArt.RED)
-        fun green(s: String) = AsciiArt.wrap(s, AsciiArt.GREEN)
-        fun yellow(s: String) = AsciiArt.wrap(s, AsciiArt.YELLOW)
-
-        try {
-            var message = mh.receiveMessage()
-            kobaltLog(1, "")
-            kobaltLog(1, green("PASSED") + " | " + red("FAILED") + " | " + yellow("SKIPPED"))
-            while (message != null) {
-                message = mh.receiveMessage()
-                if (message is TestResultMessage) {
-                    when (message.result) {
-                        MessageHelper.PASSED_TEST -> passed.add(message.name)
-                        MessageHelper.FAILED_TEST -> failed.add(FailedTest(message.testClass,
-                                message.method, message.stackTrace))
-                        MessageHelper.SKIPPED_TEST -> skipped.add(message.name)
-                    }
-                }
-                if (!KobaltLogger.isQuiet) {
-                    print("\r  " + d(passed.size, AsciiArt.GREEN)
-                            + " |   " + d(failed.size, AsciiArt.RED)
-                            + " |   " + d(skipped.size, AsciiArt.YELLOW))
-                }
+    companion object {
+        private const val REMOTE_MAIN_CLASS = "org.testng.remote.RemoteTestNG"
+        private const val REMOTE_VERSION = "1.3.0"
+        private const val RECEIVER_TIMEOUT_MS = 5000L
+        private const val PROGRESS_INTERVAL_MS = 2000L
+
+        /** The ports of the remote runners of this build, so that projects tested in parallel never share one */
+        private val usedPorts = hashSetOf<Int>()
+
+        /**
+         * @return a server socket bound to a free port that no other remote runner of this build uses. Keeping
+         * it open until the receiver binds that port prevents other processes from taking it in the meantime.
+         */
+        private fun reservePort() : ServerSocket = synchronized(usedPorts) {
+            // Keep the rejected sockets open until a port is found so they can't be returned again
+            val rejected = arrayListOf<ServerSocket>()
+            var result = ServerSocket(0)
+            while (! usedPorts.add(result.localPort)) {
+                rejected.add(result)
+                result = ServerSocket(0)
             }
-        } catch(ex: IOException) {
-             kobaltLog(1, "Exception: ${ex.message}")
-        }
-        kobaltLog(1, "\nPassed: " + passed.size + ", Failed: " + failed.size + ", Skipped: " + skipped.size)
-        failed.forEach {
-            val top = it.stackTrace.substring(0, it.stackTrace.indexOf("\n"))
-             kobaltLog(1, "  " + it.cls + "." + it.method + "\n    " + top)
-        }
-        return TestResult(failed.isEmpty() && skipped.isEmpty())
-    }
-
-    fun launchRemoteServer(project: Project, context: KobaltContext, classpath: List<IClasspathDependency>,
-            testConfig: TestConfig, versions: Pair<String, String>, port: Int) {
-        val testngVersion = versions.first
-        val remoteRunnerVersion = versions.second
-        val dep = with(context.dependencyManager) {
-            val jf = create("org.testng.testng-remote:testng-remote:1.3.0")
-            val tr = create("org.testng.testng-remote:$remoteRunnerVersion:1.3.0")
-            val testng = create("org.testng:testng:6.11")
-            transitiveClosure(kotlin.collections.listOf(jf, tr /*, testng */))
+            rejected.forEach { it.close() }
+            result
         }
 
-        val cp = (classpath + dep).distinct().map { it.jarFile.get() }
-                .joinToString(File.pathSeparator)
-        val calculatedArgs = args(project, context, classpath, testConfig)
-
-        val jvmArgs = arrayListOf("-classpath", cp)
-        if (testConfig.jvmArgs.any()) {
-            jvmArgs.addAll(testConfig.jvmArgs)
-        }
-        val remoteArgs = listOf(
-                "org.testng.remote.RemoteTestNG",
-                "-serport", port.toString(),
-                "-version", testngVersion,
-                "-dontexit",
-                RemoteArgs.PROTOCOL,
-                "json")
-
-        val passedArgs = jvmArgs +  remoteArgs + calculatedArgs
-
-        Thread {
-            runCommand {
-                command = "java"
-                directory = File(project.directory)
-                args = passedArgs
-            }
-        }.start()
-
-//        Thread {
-//            val args2 = arrayOf("-serport", port.toString(), "-dontexit", RemoteArgs.PROTOCOL, "json",
-//                    "-version", "6.10",
-//                    "src/test/resources/testng.xml")
-//            RemoteTestNG.main(args2)
-//        }.start()
+        private fun releasePort(port: Int) = synchronized(usedPorts) { usedPorts.remove(port) }
     }
 }
 
@@ -0,0 +1,141 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.TestConfig
+import com.beust.kobalt.api.IClasspathDependency
+import com.beust.kobalt.api.KobaltContext
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.maven.Md5
+import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.kobaltLog
+import com.google.gson.Gson
+import com.google.gson.JsonSyntaxException
+import java.io.File
+import java.io.FileReader
+import java.util.*
+
+/**
+ * Select the test classes affected by the changes made since the previous run of a test task (see
+ * TestConfig.selectTests). A test class is affected if it references, directly or through other classes,
+ * a class of the project (or of the projects it depends on) that was added, modified or removed. The
+ * references are read from the class files.
+ *
+ * All the tests are run if there is no previous run, if a dependency jar file or a resource changed, or every
+ * TestConfig.fullRunEvery runs.
+ */
+class TestSelector(val project: Project, val context: KobaltContext, val testConfig: TestConfig,
+        classpath: List<IClasspathDependency>) {
+
+    /**
+     * The state of the previous run, saved in kobaltBuild/test-results/<task>-selection.json.
+     */
+    class State(val classHashes: Map<String, String>, val environment: String?, val failedClasses: List<String>,
+            val runsSinceFullRun: Int)
+
+    private val file = File(KFiles.joinDir(project.directory, project.buildDirectory, TestCache.TEST_RESULTS_DIR,
+            JvmCompilerPlugin.TASK_TEST + testConfig.name + "-selection.json"))
+
+    private val classDirectories = (listOf(File(project.directory, KFiles.joinDir(project.buildDirectory,
+            KFiles.TEST_CLASSES_DIR))) + allProjects(project).map {
+                File(it.directory, KFiles.joinDir(it.buildDirectory, KFiles.CLASSES_DIR))
+            }).map { it.absoluteFile.normalize() }.distinct()
+
+    /** Class name -> class file */
+    private val classFiles = linkedMapOf<String, File>().apply {
+        classDirectories.filter { it.isDirectory }.forEach { dir ->
+            KFiles.findRecursively(dir).filter { it.endsWith(".class") }.forEach {
+                putIfAbsent(it.removeSuffix(".class").replace('/', '.').replace('\\', '.'), File(dir, it))
+            }
+        }
+    }
+
+    private val classHashes = classFiles.mapValues { Md5.toMd5(it.value) }
+
+    /**
+     * Everything else the tests depend on: the jar files and other directories of the classpath, the
+     * resources and the JVM flags.
+     */
+    private val environment = Md5.toMd5Directories(classpath.map { it.jarFile.get() }
+            .filter { ! classDirectories.contains(it.absoluteFile.normalize()) }
+            + allProjects(project).flatMap { p ->
+                (context.variant.resourceDirectories(p, SourceSet.MAIN)
+                        + context.variant.resourceDirectories(p, SourceSet.TEST)).map { File(p.directory, it.path) }
+            }) + " " + testConfig.jvmArgs.joinToString(" ")
+
+    private var isFullRun = true
+
+    private fun allProjects(project: Project) : Set<Project> = linkedSetOf(project).apply {
+        project.allProjectDependedOn().forEach { addAll(allProjects(it)) }
+    }
+
+    /**
+     * @return the classes among [testClasses] that need to run.
+     */
+    fun select(testClasses: List<String>) : List<String> {
+        val previous = readState()
+        val reason =
+            if (previous == null) "no previous run"
+            else if (previous.environment != environment) "the classpath or the resources changed"
+            else if (testConfig.fullRunEvery > 0 && previous.runsSinceFullRun + 1 >= testConfig.fullRunEvery)
+                "full run every ${testConfig.fullRunEvery} runs"
+            else null
+        if (previous == null || reason != null) {
+            context.logger.log(project.name, 1, "  Running all the tests: $reason")
+            isFullRun = true
+            return testClasses
+        }
+
+        isFullRun = false
+        val changed = classHashes.filter { previous.classHashes[it.key] != it.value }.keys +
+                (previous.classHashes.keys - classHashes.keys)
+        val affected = affectedClasses(changed)
+        val result = testClasses.filter { affected.contains(it) || previous.failedClasses.contains(it) }
+        context.logger.log(project.name, 1, "  ${changed.size} classes changed, running ${result.size} of "
+                + "${testClasses.size} test classes")
+        context.logger.log(project.name, 2, "  Changed classes: $changed")
+        return result
+    }
+
+    /**
+     * Save the state of this run: the hashes of the classes and, if it failed, the classes that ran (the
+     * runners don't always report which class a failed test belongs to).
+     */
+    fun save(success: Boolean, ranClasses: List<String>) {
+        val previous = readState()
+        val failedClasses = if (success) emptyList() else ranClasses + (previous?.failedClasses ?: emptyList())
+        val runs = if (isFullRun) 0 else (previous?.runsSinceFullRun ?: 0) + 1
+        KFiles.saveFile(file, Gson().toJson(State(classHashes, environment, failedClasses.distinct(), runs)))
+    }
+
+    /**
+     * @return the classes that reference one of the [changed] classes, directly or not, including them.
+     */
+    private fun affectedClasses(changed: Set<String>) : Set<String> {
+        // For each class, the classes that reference it
+        val referencedBy = hashMapOf<String, ArrayList<String>>()
+        classFiles.forEach { (name, file) ->
+            ClassFileInfo.read(file).references.forEach {
+                referencedBy.getOrPut(it) { arrayListOf() }.add(name)
+            }
+        }
+
+        val result = hashSetOf<String>()
+        val toProcess = ArrayDeque(changed)
+        while (toProcess.isNotEmpty()) {
+            val name = toProcess.removeFirst()
+            if (result.add(name)) {
+                referencedBy[name]?.let { toProcess.addAll(it) }
+            }
+        }
+        return result
+    }
+
+    private fun readState() : State? {
+        if (! file.exists()) return null
+        try {
+            return FileReader(file).use { Gson().fromJson(it, State::class.java) }
+        } catch(ex: JsonSyntaxException) {
+            kobaltLog(2, "  Ignoring corrupted test selection state $file: ${ex.message}")
+            return null
+        }
+    }
+}
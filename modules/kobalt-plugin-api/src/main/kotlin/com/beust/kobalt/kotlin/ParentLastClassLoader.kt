@@ -1,16 +1,20 @@
 package com.beust.kobalt.kotlin
 
+import java.io.Closeable
 import java.net.URL
 import java.net.URLClassLoader
+import java.util.*
 
 /**
  * A parent-last classloader that will try the child classloader first and then the parent.
- * Used by the wrapper to launch a new Kobalt with not interferences from its own classes.
+ * Used by the wrapper to launch a new Kobalt with not interferences from its own classes
+ * and to run JUnit 5 tests inside Kobalt's JVM, with the test framework in the parent.
  * Will probably be made obsolete by making the wrapper a standalone module instead of
  * being inside Kobalt itself.
+ * Closing it closes the jar files of [classpath].
  */
-class ParentLastClassLoader(val classpath: List<URL>)
-        : ClassLoader(Thread.currentThread().contextClassLoader) {
+class ParentLastClassLoader(val classpath: List<URL>, parent: ClassLoader = Thread.currentThread().contextClassLoader)
+        : ClassLoader(parent), Closeable {
     private val childClassLoader: ChildURLClassLoader
 
     init {
@@ -32,17 +36,35 @@ class ParentLastClassLoader(val classpath: List<URL>)
     private class ChildURLClassLoader(urls: Array<URL>, val realParent: FindClassClassLoader)
             : URLClassLoader(urls, null) {
 
-        override public fun findClass(name: String) : Class<*> {
-            try {
+        override public fun findClass(name: String) : Class<*> = synchronized(getClassLoadingLock(name)) {
+            // a class can only be defined once, so reuse it if it was already loaded
+            findLoadedClass(name) ?: try {
                 // first try to use the URLClassLoader findClass
-                return super.findClass(name)
+                super.findClass(name)
             } catch(e: ClassNotFoundException) {
                 // if that fails, we ask our real parent classloader to load the class (we give up)
-                return realParent.loadClass(name)
+                realParent.loadClass(name)
             }
         }
     }
 
+    /**
+     * Resources are still looked up in the parent first, these are only called when it doesn't have them.
+     */
+    override fun findResource(name: String) : URL? = childClassLoader.findResource(name)
+
+    override fun findResources(name: String) : Enumeration<URL> = childClassLoader.findResources(name)
+
+    /**
+     * The classes of [classpath] are defined by the child classloader, so it's the one that needs the status.
+     */
+    override fun setDefaultAssertionStatus(enabled: Boolean) {
+        super.setDefaultAssertionStatus(enabled)
+        childClassLoader.setDefaultAssertionStatus(enabled)
+    }
+
+    override fun close() = childClassLoader.close()
+
     override @Synchronized fun loadClass(name: String, resolve: Boolean) : Class<*> {
         try {
             // first we try to find a class inside the child classloader
@@ -0,0 +1,154 @@
+package com.beust.kobalt.maven
+
+import com.beust.kobalt.Args
+import com.beust.kobalt.api.IClasspathDependency
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.maven.aether.AetherDependency
+import com.beust.kobalt.maven.aether.DescribedDependencyFilter
+import com.beust.kobalt.maven.aether.Filters
+import com.beust.kobalt.maven.aether.Scope
+import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.kobaltLog
+import com.beust.kobalt.misc.warn
+import com.google.gson.Gson
+import com.google.gson.GsonBuilder
+import com.google.gson.JsonSyntaxException
+import com.google.inject.Inject
+import com.google.inject.Singleton
+import org.eclipse.aether.artifact.DefaultArtifact
+import org.eclipse.aether.graph.DependencyFilter
+import java.io.File
+import java.io.FileReader
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Manage the dependency lock files, kobalt/locks/<project>.json.
+ *
+ * A lock file records, for each set of dependencies declared by a project and each dependency filter (identified
+ * by its description), the fully resolved transitive closure (id, scope, sha1 and path in the local repository).
+ * When a lock file is present, DependencyManager builds the classpath straight from it and the local repository
+ * without asking Aether to collect the graph. Artifacts that are missing from the local repository or whose sha1
+ * changed are deleted and downloaded again individually, and the build fails if the sha1 of the new file doesn't
+ * match either. Dependency sets that are not in the lock file are resolved normally.
+ *
+ * `kobaltw --writeLocks <targets>` ignores the existing lock files, resolves everything and writes the lock files
+ * of all the projects at the end of the build.
+ */
+@Singleton
+class DependencyLocks @Inject constructor(val args: Args, val localRepo: LocalRepo) {
+    class LockedArtifact(val id: String, val sha1: String, val path: String)
+
+    class LockedClosure(val dependencies: List<String>, val scope: String, val artifacts: List<LockedArtifact>,
+            val filter: String? = null)
+
+    class LockFile(val project: String, val closures: List<LockedClosure>)
+
+    companion object {
+        fun lockFile(project: Project) = File(KFiles.joinDir(project.directory, KFiles.KOBALT_DIR, "locks",
+                project.name + ".json"))
+    }
+
+    private val lockFiles = ConcurrentHashMap<String, Map<String, LockedClosure>>()
+    private val recorded = ConcurrentHashMap<String, ConcurrentHashMap<String, LockedClosure>>()
+    private val sha1s = ConcurrentHashMap<File, String>()
+
+    private fun key(ids: List<String>, scope: String, filter: String?)
+            = scope + " " + ids.sorted().joinToString(",") + " " + filter
+
+    private fun key(dependencies: List<IClasspathDependency>, scopes: List<Scope>, filter: String)
+            = key(dependencies.map { it.id }, scopeName(scopes), filter)
+
+    /**
+     * @return what identifies [filter] in the lock files, or null if it can't be identified, in which case the
+     * closures it filters are neither read from nor written to the lock files.
+     */
+    private fun filterKey(filter: DependencyFilter) = when(filter) {
+        Filters.EXCLUDE_OPTIONAL_FILTER, is DescribedDependencyFilter -> filter.toString()
+        else -> null
+    }
+
+    private fun scopeName(scopes: List<Scope>) = scopes.joinToString("+") { it.scope }
+
+    private fun closuresFor(project: Project) = lockFiles.getOrPut(project.name) {
+        val file = lockFile(project)
+        if (file.exists()) {
+            try {
+                val lock = FileReader(file).use { Gson().fromJson(it, LockFile::class.java) }
+                lock.closures.associateBy({ key(it.dependencies, it.scope, it.filter) }, { it })
+            } catch(ex: JsonSyntaxException) {
+                warn("Ignoring corrupted lock file $file: ${ex.message}")
+                emptyMap<String, LockedClosure>()
+            }
+        } else {
+            emptyMap<String, LockedClosure>()
+        }
+    }
+
+    /**
+     * @return the locked transitive closure of these dependencies with this filter, or null if it's not locked
+     * (or if we're writing new locks).
+     */
+    fun lockedClosure(project: Project, dependencies: List<IClasspathDependency>, scopes: List<Scope>,
+            filter: DependencyFilter = Filters.EXCLUDE_OPTIONAL_FILTER) : List<IClasspathDependency>? {
+        if (args.writeLocks) return null
+
+        val filterKey = filterKey(filter) ?: return null
+        val closure = closuresFor(project)[key(dependencies, scopes, filterKey)] ?: return null
+        var stale = 0
+        val result = dependencies.filter { ! it.isMaven } + closure.artifacts.map { locked ->
+            val file = File(localRepo.localRepo, locked.path)
+            val artifact = DefaultArtifact(locked.id)
+            if (file.exists() && sha1(file) == locked.sha1) {
+                AetherDependency(artifact.setFile(file), args = args)
+            } else {
+                // Missing or modified: delete it so that Aether downloads this single artifact again when its jar
+                // file is needed, and check the sha1 of what it downloads
+                stale++
+                if (file.exists()) {
+                    warn("The sha1 of $file doesn't match the lock file, deleting it")
+                    file.delete()
+                    sha1s.remove(file)
+                }
+                AetherDependency(artifact, args = args, sha1 = locked.sha1)
+            }
+        }
+        kobaltLog(2, "  Using the locked dependencies of ${project.name} for " + scopeName(scopes)
+                + (if (stale > 0) " ($stale artifacts need to be resolved again)" else ""))
+        return result
+    }
+
+    /**
+     * Remember a closure that was just resolved so it can be saved with save().
+     */
+    fun record(project: Project, dependencies: List<IClasspathDependency>, scopes: List<Scope>,
+            closure: List<IClasspathDependency>, filter: DependencyFilter = Filters.EXCLUDE_OPTIONAL_FILTER) {
+        if (! args.writeLocks) return
+        val filterKey = filterKey(filter) ?: return
+
+        val artifacts = closure.filter { it.isMaven }.map { dependency ->
+            val file = dependency.jarFile.get()
+            val path = file.absoluteFile.relativeTo(localRepo.localRepo.absoluteFile).path
+            LockedArtifact(dependency.id, sha1(file), KFiles.fixSlashes(path))
+        }
+        recorded.getOrPut(project.name, { ConcurrentHashMap() })
+                .put(key(dependencies, scopes, filterKey), LockedClosure(dependencies.map { it.id }.sorted(),
+                        scopeName(scopes), artifacts, filterKey))
+    }
+
+    /**
+     * Write the lock files of all the projects whose dependencies were resolved during this build.
+     */
+    fun save(projects: List<Project>) {
+        projects.forEach { project ->
+            recorded[project.name]?.let { closures ->
+                val file = lockFile(project)
+                val lock = LockFile(project.name,
+                        closures.values.sortedBy { key(it.dependencies, it.scope, it.filter) })
+                KFiles.saveFile(file, GsonBuilder().setPrettyPrinting().create().toJson(lock))
+                kobaltLog(1, "Wrote ${closures.size} locked dependency sets for ${project.name} in $file")
+            }
+        }
+    }
+
+    private fun sha1(file: File) = sha1s.getOrPut(file) { Md5.toSha1(file) }
+}
@@ -6,6 +6,7 @@ import com.beust.kobalt.maven.aether.Filters
 import com.beust.kobalt.maven.aether.KobaltMavenResolver
 import com.beust.kobalt.maven.aether.Scope
 import com.beust.kobalt.maven.dependency.FileDependency
+import com.beust.kobalt.misc.BuildTrace
 import com.beust.kobalt.misc.KFiles
 import com.beust.kobalt.misc.KobaltExecutors
 import com.google.common.collect.ArrayListMultimap
@@ -18,7 +19,7 @@ import javax.inject.Singleton
 
 @Singleton
 class DependencyManager @Inject constructor(val executors: KobaltExecutors,
-        val resolver: KobaltMavenResolver) : IDependencyManager {
+        val resolver: KobaltMavenResolver, val dependencyLocks: DependencyLocks) : IDependencyManager {
 
     companion object {
         fun create(id: String, optional: Boolean = false, projectDirectory: String? = null) =
@@ -94,6 +95,16 @@ class DependencyManager @Inject constructor(val executors: KobaltExecutors,
      * are passed, they are calculated from the scope filters.
      */
     override fun calculateDependencies(project: Project?, context: KobaltContext,
+            dependencyFilter: DependencyFilter,
+            scopes: List<Scope>,
+            passedDependencies: List<IClasspathDependency>): List<IClasspathDependency>
+        = BuildTrace.trace("classpath ${project?.name ?: ""} $scopes", "dependencies") { span ->
+            doCalculateDependencies(project, context, dependencyFilter, scopes, passedDependencies).apply {
+                span.attribute("classpath", size)
+            }
+        }
+
+    private fun doCalculateDependencies(project: Project?, context: KobaltContext,
             dependencyFilter: DependencyFilter,
             scopes: List<Scope>,
             passedDependencies: List<IClasspathDependency>): List<IClasspathDependency> {
@@ -133,7 +144,7 @@ class DependencyManager @Inject constructor(val executors: KobaltExecutors,
         }
 
         allDependencies.forEach { dependencies ->
-            result.addAll(transitiveClosure(dependencies, dependencyFilter, project?.name))
+            result.addAll(lockedTransitiveClosure(project, dependencies, dependencyFilter, scopes))
         }
         result.addAll(runClasspathContributors(project, context))
         result.addAll(dependentProjectDependencies(project, context, dependencyFilter, scopes))
@@ -174,6 +185,22 @@ class DependencyManager @Inject constructor(val executors: KobaltExecutors,
         return result
     }
 
+    /**
+     * Use the project's lock file for this transitive closure if it has one, otherwise resolve it with Aether
+     * (and record it if we're writing lock files).
+     */
+    private fun lockedTransitiveClosure(project: Project?, dependencies: List<IClasspathDependency>,
+            filter: DependencyFilter, scopes: List<Scope>) : List<IClasspathDependency> {
+        if (project == null || dependencies.none { it.isMaven }) {
+            return transitiveClosure(dependencies, filter, project?.name)
+        } else {
+            return dependencyLocks.lockedClosure(project, dependencies, scopes, filter)
+                ?: transitiveClosure(dependencies, filter, project.name).apply {
+                    dependencyLocks.record(project, dependencies, scopes, this, filter)
+                }
+        }
+    }
+
     /**
      * Return the transitive closure of the dependencies *without* running the classpath contributors.
      * TODO: This should be private, everyone should be calling calculateDependencies().
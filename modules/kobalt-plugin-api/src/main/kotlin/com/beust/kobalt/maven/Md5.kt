@@ -70,6 +70,13 @@ class Md5 {
                 }
                 DatatypeConverter.printHexBinary(md5.digest()).toLowerCase()
             }
+
+        fun toSha1(file: File) = MessageDigest.getInstance("SHA-1").let { sha1 ->
+                file.forEachBlock { bytes, size ->
+                    sha1.update(bytes, 0, size)
+                }
+                DatatypeConverter.printHexBinary(sha1.digest()).toLowerCase()
+            }
     }
 }
 
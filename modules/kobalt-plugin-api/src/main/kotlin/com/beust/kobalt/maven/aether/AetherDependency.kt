@@ -1,10 +1,12 @@
 package com.beust.kobalt.maven.aether
 
 import com.beust.kobalt.Args
+import com.beust.kobalt.KobaltException
 import com.beust.kobalt.api.Dependencies
 import com.beust.kobalt.api.IClasspathDependency
 import com.beust.kobalt.api.Kobalt
 import com.beust.kobalt.maven.CompletedFuture
+import com.beust.kobalt.maven.Md5
 import com.beust.kobalt.misc.StringVersion
 import com.beust.kobalt.misc.warn
 import org.eclipse.aether.artifact.Artifact
@@ -13,8 +15,11 @@ import org.eclipse.aether.resolution.DependencyResolutionException
 import java.io.File
 import java.util.concurrent.Future
 
-class AetherDependency(val artifact: Artifact, override val optional: Boolean = false, val args: Args? = null)
-        : IClasspathDependency, Comparable<AetherDependency> {
+/**
+ * @param sha1 If specified, the sha1 the jar file must have once it's resolved (used for the locked dependencies).
+ */
+class AetherDependency(val artifact: Artifact, override val optional: Boolean = false, val args: Args? = null,
+        val sha1: String? = null) : IClasspathDependency, Comparable<AetherDependency> {
     val aether: KobaltMavenResolver get() = Kobalt.INJECTOR.getInstance(KobaltMavenResolver::class.java)
 
     override val id: String = toId(artifact)
@@ -32,7 +37,12 @@ class AetherDependency(val artifact: Artifact, override val optional: Boolean =
                     CompletedFuture(artifact.file)
                 } else {
                     val td = aether.resolve(artifact)
-                    CompletedFuture(td.root.artifact.file)
+                    val file = td.root.artifact.file
+                    if (sha1 != null && file != null && Md5.toSha1(file) != sha1) {
+                        throw KobaltException("The sha1 of $file doesn't match the lock file, run"
+                                + " kobaltw --writeLocks to update it")
+                    }
+                    CompletedFuture(file)
                 }
         }
 
@@ -0,0 +1,24 @@
+package com.beust.kobalt.maven.aether
+
+import org.eclipse.aether.internal.impl.DefaultFileProcessor
+import java.io.File
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Downloads are written to a temporary file next to their destination and then moved into the local
+ * repository. The default implementation falls back to copying when the rename fails (e.g. the destination
+ * already exists on Windows), which lets other processes read a truncated file. This one replaces the
+ * destination with an atomic rename instead.
+ */
+class AtomicFileProcessor : DefaultFileProcessor() {
+    override fun move(source: File, target: File) {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING)
+        } catch(ex: AtomicMoveNotSupportedException) {
+            super.move(source, target)
+        }
+    }
+}
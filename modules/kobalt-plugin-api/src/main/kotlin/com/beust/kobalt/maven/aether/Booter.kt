@@ -5,7 +5,9 @@ import com.google.common.eventbus.EventBus
 import com.beust.kobalt.Args
 import org.eclipse.aether.DefaultRepositorySystemSession
 import org.eclipse.aether.RepositorySystem
+import org.eclipse.aether.DefaultRepositoryCache
 import org.eclipse.aether.repository.LocalRepository
+import org.eclipse.aether.repository.RepositoryPolicy
 import java.io.File
 
 object Booter {
@@ -37,6 +39,14 @@ object Booter {
         val session = MavenRepositorySystemUtils.newSession(settings)
         session.isOffline = args.offline
 
+        // Share the version and metadata lookups between all the resolutions performed by this session
+        session.cache = DefaultRepositoryCache()
+
+        // --updateMetadata: ignore the update policies of the repositories and check them all again
+        if (args.updateMetadata) {
+            session.updatePolicy = RepositoryPolicy.UPDATE_POLICY_ALWAYS
+        }
+
         val localRepo = LocalRepository(repo.absolutePath)
         session.localRepositoryManager = system.newLocalRepositoryManager(session, localRepo)
 
@@ -23,3 +23,11 @@ object Filters {
         override fun toString() = "EXCLUDE_OPTIONAL_FILTER"
     }
 }
+
+/**
+ * A DependencyFilter whose [description] identifies what it accepts, so that the closures it filtered can be
+ * recognized later, e.g. in the lock files.
+ */
+class DescribedDependencyFilter(val description: String, val filter: DependencyFilter) : DependencyFilter by filter {
+    override fun toString() = description
+}
@@ -9,6 +9,7 @@ import com.beust.kobalt.internal.getProxy
 import com.beust.kobalt.maven.Kurl
 import com.beust.kobalt.maven.LocalRepo
 import com.beust.kobalt.maven.MavenId
+import com.beust.kobalt.misc.BuildTrace
 import com.beust.kobalt.misc.LocalProperties
 import com.google.common.eventbus.EventBus
 import com.google.inject.Inject
@@ -20,6 +21,7 @@ import org.eclipse.aether.graph.DefaultDependencyNode
 import org.eclipse.aether.graph.Dependency
 import org.eclipse.aether.graph.DependencyFilter
 import org.eclipse.aether.repository.RemoteRepository
+import org.eclipse.aether.repository.RepositoryPolicy
 import org.eclipse.aether.resolution.DependencyRequest
 import org.eclipse.aether.resolution.DependencyResult
 import org.eclipse.aether.resolution.VersionRangeRequest
@@ -69,7 +71,11 @@ class KobaltMavenResolver @Inject constructor(val settings: KobaltSettings,
 
     fun resolve(passedId: String, scope: Scope? = null,
             filter: DependencyFilter = Filters.EXCLUDE_OPTIONAL_FILTER,
-            repos: List<String> = emptyList()): DependencyResult {
+            repos: List<String> = emptyList()): DependencyResult
+        = BuildTrace.trace(passedId, "resolve") { doResolve(passedId, scope, filter, repos) }
+
+    private fun doResolve(passedId: String, scope: Scope?, filter: DependencyFilter, repos: List<String>)
+            : DependencyResult {
         val mavenId = MavenId.toMavenId(passedId)
         val id =
             if (isRangeVersion(mavenId)) {
@@ -145,6 +151,8 @@ class KobaltMavenResolver @Inject constructor(val settings: KobaltSettings,
 
     private fun createRepo(hostConfig: HostConfig) : RemoteRepository {
         val builder = RemoteRepository.Builder(hostConfig.name, "default", hostConfig.url)
+        builder.setPolicy(RepositoryPolicy(true, settings.metadataUpdatePolicy(hostConfig.url),
+                RepositoryPolicy.CHECKSUM_POLICY_WARN))
         if (hostConfig.hasAuth()) {
             val auth = AuthenticationBuilder()
                     .addUsername(hostConfig.username)
@@ -3,8 +3,11 @@ package com.beust.kobalt.maven.aether
 import org.eclipse.aether.RepositorySystem
 import org.eclipse.aether.connector.basic.BasicRepositoryConnectorFactory
 import org.eclipse.aether.impl.DefaultServiceLocator
+import org.eclipse.aether.impl.SyncContextFactory
 import org.eclipse.aether.spi.connector.RepositoryConnectorFactory
+import org.eclipse.aether.spi.connector.checksum.ChecksumPolicyProvider
 import org.eclipse.aether.spi.connector.transport.TransporterFactory
+import org.eclipse.aether.spi.io.FileProcessor
 import org.eclipse.aether.transport.file.FileTransporterFactory
 import org.eclipse.aether.transport.http.HttpTransporterFactory
 
@@ -25,6 +28,12 @@ object ManualRepositorySystemFactory {
         locator.addService(TransporterFactory::class.java, FileTransporterFactory::class.java)
         locator.addService(TransporterFactory::class.java, HttpTransporterFactory::class.java)
 
+        // Several Kobalt processes can share the same local repository: lock the artifacts while they're being
+        // resolved, publish the downloads atomically and never publish a download whose checksum doesn't match
+        locator.setService(SyncContextFactory::class.java, StripedSyncContextFactory::class.java)
+        locator.setService(FileProcessor::class.java, AtomicFileProcessor::class.java)
+        locator.setService(ChecksumPolicyProvider::class.java, VerifyingChecksumPolicyProvider::class.java)
+
         locator.setErrorHandler(object : DefaultServiceLocator.ErrorHandler() {
             override fun serviceCreationFailed(type: Class<*>, impl: Class<*>, exception: Throwable) {
                 Exceptions.printStackTrace(exception)
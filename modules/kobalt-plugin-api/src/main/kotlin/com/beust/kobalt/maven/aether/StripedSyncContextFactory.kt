@@ -0,0 +1,111 @@
+package com.beust.kobalt.maven.aether
+
+import com.beust.kobalt.misc.kobaltLog
+import org.eclipse.aether.RepositorySystemSession
+import org.eclipse.aether.SyncContext
+import org.eclipse.aether.artifact.Artifact
+import org.eclipse.aether.impl.SyncContextFactory
+import org.eclipse.aether.metadata.Metadata
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Serialize the accesses to the same artifacts of the local repository, between the threads of this process
+ * and between all the Kobalt processes that share this local repository.
+ *
+ * The paths of the artifacts are hashed into a fixed number of stripes, each of them protected by an
+ * in-process lock and a file lock on `<localRepo>/.locks/<stripe>.lock`. A process that waited for a stripe
+ * finds the artifacts downloaded by the previous owner in the local repository and doesn't download them again.
+ *
+ * Only artifacts are locked: metadata is resolved while the artifact locks are held, so locking it too
+ * could deadlock two processes.
+ */
+class StripedSyncContextFactory : SyncContextFactory {
+    companion object {
+        const val STRIPES = 64
+        const val LOCK_DIR = ".locks"
+
+        /** Shared by all the repository systems of this process, keyed by lock file */
+        private val stripes = ConcurrentHashMap<File, Stripe>()
+
+        fun stripeIndex(path: String) = (path.hashCode() and Int.MAX_VALUE) % STRIPES
+
+        private fun stripe(localRepo: File, index: Int) = File(File(localRepo, LOCK_DIR), "$index.lock").let {
+            stripes.getOrPut(it.absoluteFile, { Stripe(it.absoluteFile) })
+        }
+    }
+
+    /**
+     * A stripe is owned by at most one thread at a time. The file lock is taken when that thread first
+     * acquires the stripe and released when it releases it for the last time.
+     */
+    private class Stripe(val file: File) {
+        private val lock = ReentrantLock()
+        private var channel: FileChannel? = null
+        private var fileLock: FileLock? = null
+
+        fun acquire() {
+            lock.lock()
+            if (lock.holdCount == 1) {
+                var newChannel: FileChannel? = null
+                try {
+                    file.parentFile.mkdirs()
+                    newChannel = RandomAccessFile(file, "rw").channel
+                    fileLock = newChannel.lock()
+                    channel = newChannel
+                } catch(ex: IOException) {
+                    // Read-only repository or file system without locks: only protect against this process
+                    kobaltLog(2, "  Couldn't lock $file, only using in-process locking: ${ex.message}")
+                    newChannel?.close()
+                }
+            }
+        }
+
+        fun release() {
+            if (lock.holdCount == 1) {
+                try {
+                    fileLock?.release()
+                    channel?.close()
+                } finally {
+                    fileLock = null
+                    channel = null
+                }
+            }
+            lock.unlock()
+        }
+    }
+
+    private class StripedSyncContext(val session: RepositorySystemSession) : SyncContext {
+        private val held = arrayListOf<Stripe>()
+
+        override fun acquire(artifacts: Collection<Artifact>?, metadatas: Collection<Metadata>?) {
+            if (artifacts == null || artifacts.isEmpty()) return
+
+            val lrm = session.localRepositoryManager
+            // Always acquire the stripes in the same order so that two contexts can't deadlock
+            artifacts.map { stripeIndex(lrm.getPathForLocalArtifact(it)) }.toSortedSet().forEach {
+                stripe(lrm.repository.basedir, it).let { stripe ->
+                    stripe.acquire()
+                    held.add(stripe)
+                }
+            }
+        }
+
+        override fun close() {
+            held.asReversed().forEach { it.release() }
+            held.clear()
+        }
+    }
+
+    /**
+     * Shared contexts are treated as exclusive: they're only held for the time it takes to look
+     * up or download a few files.
+     */
+    override fun newInstance(session: RepositorySystemSession, shared: Boolean): SyncContext
+            = StripedSyncContext(session)
+}
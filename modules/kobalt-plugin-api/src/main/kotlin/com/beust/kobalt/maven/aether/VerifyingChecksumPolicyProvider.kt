@@ -0,0 +1,40 @@
+package com.beust.kobalt.maven.aether
+
+import org.eclipse.aether.RepositorySystemSession
+import org.eclipse.aether.internal.impl.DefaultChecksumPolicyProvider
+import org.eclipse.aether.repository.RemoteRepository
+import org.eclipse.aether.repository.RepositoryPolicy
+import org.eclipse.aether.spi.connector.checksum.ChecksumPolicy
+import org.eclipse.aether.spi.connector.checksum.ChecksumPolicyProvider
+import org.eclipse.aether.spi.locator.Service
+import org.eclipse.aether.spi.locator.ServiceLocator
+import org.eclipse.aether.transfer.ChecksumFailureException
+import org.eclipse.aether.transfer.TransferResource
+
+/**
+ * With the "warn" checksum policy, Aether publishes a download in the local repository even if its checksum
+ * still doesn't match after a retry. This provider keeps accepting repositories that don't publish checksums
+ * but refuses such mismatches, so a truncated or corrupted file is never moved into the local repository.
+ */
+class VerifyingChecksumPolicyProvider : ChecksumPolicyProvider, Service {
+    private val provider = DefaultChecksumPolicyProvider()
+
+    override fun initService(locator: ServiceLocator) = provider.initService(locator)
+
+    override fun getEffectiveChecksumPolicy(session: RepositorySystemSession, policy1: String, policy2: String)
+            : String = provider.getEffectiveChecksumPolicy(session, policy1, policy2)
+
+    override fun newChecksumPolicy(session: RepositorySystemSession, repository: RemoteRepository,
+            resource: TransferResource, policy: String): ChecksumPolicy? {
+        val result = provider.newChecksumPolicy(session, repository, resource, policy)
+        return if (result != null && policy == RepositoryPolicy.CHECKSUM_POLICY_WARN) {
+            object : ChecksumPolicy by result {
+                // Mismatches are retry worthy, missing or unreadable checksums are not
+                override fun onTransferChecksumFailure(exception: ChecksumFailureException)
+                        = ! exception.isRetryWorthy && result.onTransferChecksumFailure(exception)
+            }
+        } else {
+            result
+        }
+    }
+}
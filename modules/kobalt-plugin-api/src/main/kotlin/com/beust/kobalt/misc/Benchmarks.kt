@@ -1,5 +1,10 @@
 package com.beust.kobalt.misc
 
+import java.io.Closeable
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+
 fun <T> benchmarkMillis(run: () -> T) : Pair<Long, T> {
     val start = System.currentTimeMillis()
     val result = run()
@@ -11,5 +16,156 @@ fun <T> benchmarkSeconds(run: () -> T) : Pair<Long, T> {
     return Pair(result.first / 1000, result.second)
 }
 
+/**
+ * A timed operation of the build, created by BuildTrace.startSpan() or BuildTrace.trace(). A span is nested in
+ * the span that was current on its thread when it started, unless a parent was passed explicitly (e.g. to
+ * attach the work of a thread pool to the span that submitted it). Times are in nanoseconds since the start of
+ * Kobalt.
+ */
+class Span internal constructor(val id: Long, val parent: Span?, val name: String, val category: String,
+        attributes: Map<String, Any?>, private val previous: Span?) : Closeable {
+    val threadId: Long
+    val threadName: String
+    val startNanos = System.nanoTime() - BuildTrace.origin
+
+    @Volatile
+    var durationNanos = -1L
+        private set
+
+    private val attributeMap = LinkedHashMap(attributes)
+
+    init {
+        val thread = Thread.currentThread()
+        threadId = thread.id
+        threadName = thread.name
+    }
+
+    val isStopped get() = durationNanos >= 0
+
+    /** A copy of the attributes of this span */
+    val attributes: Map<String, Any?> get() = synchronized(attributeMap) { LinkedHashMap(attributeMap) }
+
+    fun attribute(key: String, value: Any?) : Span {
+        if (this !== NONE) synchronized(attributeMap) { attributeMap[key] = value }
+        return this
+    }
+
+    /**
+     * Stop this span and pass it to the exporters. Only the first call has an effect.
+     */
+    fun stop() {
+        if (this === NONE || isStopped) return
+        durationNanos = System.nanoTime() - BuildTrace.origin - startNanos
+        BuildTrace.onStop(this, previous)
+    }
+
+    override fun close() = stop()
+
+    override fun toString() = "[Span $category $name]"
+
+    companion object {
+        /** What BuildTrace returns when no exporter is installed: it records nothing */
+        val NONE = Span(0, null, "", "", emptyMap(), null)
+    }
+}
+
+/**
+ * Receive the spans of the build as they start and stop, see BuildTrace.addExporter().
+ */
+interface ISpanExporter {
+    /** Called on the thread that started the span, before it becomes the current span of that thread */
+    fun onSpanStart(span: Span) {}
 
+    /** Called on the thread that stopped the span, possibly from several threads at the same time */
+    fun onSpanEnd(span: Span)
 
+    /** Called at the end of the build */
+    fun close() {}
+}
+
+/**
+ * Record what the build spends its time on as a tree of spans and pass them to exporters. Kobalt traces its
+ * projects, tasks, dependency resolution, compilations, archives and tests, and plug-ins can trace their own
+ * work the same way:
+ *
+ * ```
+ * BuildTrace.trace("generate", "myPlugin", mapOf("project" to project.name)) { span ->
+ *     ...
+ *     span.attribute("files", files.size)
+ * }
+ * ```
+ *
+ * Nothing is recorded until an exporter is installed (--trace, --profiling, --jfr or addExporter()), and spans
+ * then cost a volatile read and a call.
+ */
+object BuildTrace {
+    val origin = System.nanoTime()
+
+    private val exporters = CopyOnWriteArrayList<ISpanExporter>()
+    private val ids = AtomicLong()
+    private val current = ThreadLocal<Span?>()
+
+    @Volatile
+    var isEnabled = false
+        private set
+
+    fun addExporter(exporter: ISpanExporter) {
+        exporters.add(exporter)
+        isEnabled = true
+    }
+
+    fun removeExporter(exporter: ISpanExporter) {
+        exporters.remove(exporter)
+        isEnabled = exporters.any()
+    }
+
+    /**
+     * Close all the exporters and remove them, which stops the recording.
+     */
+    fun close() {
+        val all = ArrayList(exporters)
+        exporters.clear()
+        isEnabled = false
+        all.forEach { it.close() }
+    }
+
+    /** The innermost span running on this thread, if any */
+    fun currentSpan() : Span? = if (isEnabled) current.get() else null
+
+    /**
+     * Start a span on this thread, which becomes the current one until it's stopped.
+     */
+    fun startSpan(name: String, category: String, attributes: Map<String, Any?> = emptyMap(),
+            parent: Span? = currentSpan()) : Span {
+        if (! isEnabled) return Span.NONE
+        val previous = current.get()
+        return Span(ids.incrementAndGet(), parent?.takeIf { it !== Span.NONE }, name, category, attributes,
+                previous).apply {
+            exporters.forEach { it.onSpanStart(this) }
+            current.set(this)
+        }
+    }
+
+    /**
+     * Run [f] in a span of [category] named [name]. If [f] throws, the exception is recorded in the "error"
+     * attribute of the span.
+     */
+    inline fun <T> trace(name: String, category: String, attributes: Map<String, Any?> = emptyMap(),
+            parent: Span? = currentSpan(), f: (Span) -> T) : T {
+        if (! isEnabled) return f(Span.NONE)
+        val span = startSpan(name, category, attributes, parent)
+        try {
+            return f(span)
+        } catch(ex: Throwable) {
+            span.attribute("error", ex.toString())
+            throw ex
+        } finally {
+            span.stop()
+        }
+    }
+
+    internal fun onStop(span: Span, previous: Span?) {
+        if (current.get() === span) current.set(previous)
+        exporters.forEach { it.onSpanEnd(span) }
+    }
+}
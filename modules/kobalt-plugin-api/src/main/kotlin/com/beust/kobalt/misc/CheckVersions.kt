@@ -1,53 +1,97 @@
 package com.beust.kobalt.misc
 
 import com.beust.kobalt.KobaltException
+import com.beust.kobalt.api.IClasspathDependency
 import com.beust.kobalt.api.Project
 import com.beust.kobalt.maven.DependencyManager
 import com.beust.kobalt.maven.MavenId
 import com.beust.kobalt.maven.aether.AetherDependency
 import com.beust.kobalt.maven.aether.KobaltMavenResolver
+import org.eclipse.aether.resolution.VersionRangeResolutionException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorCompletionService
 import javax.inject.Inject
 
 /**
  * Find out if any newer versions of the dependencies are available.
+ *
+ * Each coordinate is only queried once even if several projects depend on it, the queries are sent
+ * concurrently and the new versions are displayed as they are found, followed by a summary for each project.
  */
 class CheckVersions @Inject constructor(val depManager: DependencyManager,
         val executors : KobaltExecutors, val resolver: KobaltMavenResolver) {
 
-    fun run(projects: List<Project>) = projects.forEach { run(it) }
-
-    fun run(project: Project) {
-        val executor = executors.newExecutor("CheckVersions", 5)
-
-        val newVersions = hashSetOf<String>()
-        listOf(project.compileDependencies, project.testDependencies).forEach { cds ->
-            cds.forEach { dep ->
-                if (MavenId.isMavenId(dep.id)) {
-                    try {
-                        val latestDep = depManager.create(dep.shortId, false, project.directory)
-                        val artifact = (latestDep as AetherDependency).artifact
-                        val rangeResult = resolver.resolveRange(artifact)
-
-                        if (rangeResult != null) {
-                            val highest = rangeResult.highestVersion?.toString()
-                            if (highest != null && highest != dep.id
-                                    && StringVersion(highest) > StringVersion(dep.version)) {
-                                newVersions.add(artifact.groupId + ":" + artifact.artifactId + ":" + highest)
-                            }
-                        }
-                    } catch(e: KobaltException) {
-                        kobaltLog(1, "  Cannot resolve ${dep.shortId}. ignoring")
+    companion object {
+        /** How many repository queries can be in flight at the same time */
+        const val THREAD_COUNT = 10
+    }
+
+    private class Usage(val project: Project, val dependency: IClasspathDependency)
+
+    private class Result(val shortId: String, val highest: String?)
+
+    fun run(project: Project) = run(listOf(project))
+
+    fun run(projects: List<Project>) {
+        // groupId:artifactId:classifier -> all the projects and versions that use it
+        val usages = linkedMapOf<String, ArrayList<Usage>>()
+        projects.forEach { project ->
+            (project.compileDependencies + project.testDependencies).filter { MavenId.isMavenId(it.id) }.forEach {
+                usages.getOrPut(it.shortId, { arrayListOf() }).add(Usage(project, it))
+            }
+        }
+        kobaltLog(2, "  Checking ${usages.size} distinct dependencies in ${projects.size} projects")
+
+        val executor = executors.newExecutor("CheckVersions", THREAD_COUNT)
+        val completionService = ExecutorCompletionService<Result>(executor)
+        usages.forEach { shortId, users ->
+            completionService.submit(Callable { Result(shortId, highestVersion(shortId, users[0].project)) })
+        }
+
+        // Project name -> new versions for that project
+        val newVersions = sortedMapOf<String, MutableSet<String>>()
+        try {
+            repeat(usages.size) {
+                val result = completionService.take().get()
+                val highest = result.highest ?: return@repeat
+                usages[result.shortId]!!.filter {
+                    highest != it.dependency.id && StringVersion(highest) > StringVersion(it.dependency.version)
+                }.forEach {
+                    val id = it.dependency.shortId.substringBeforeLast(":") + ":" + highest
+                    if (newVersions.getOrPut(it.project.name, { sortedSetOf() }).add(id)) {
+                        kobaltLog(1, "  ${it.project.name}: $id (currently ${it.dependency.version})")
                     }
                 }
             }
+        } finally {
+            executor.shutdownNow()
         }
 
         if (newVersions.size > 0) {
             kobaltLog(1, "  New versions found:")
-            newVersions.forEach { kobaltLog(1, "    $it") }
+            newVersions.forEach { project, ids ->
+                kobaltLog(1, "    $project")
+                ids.forEach { kobaltLog(1, "      $it") }
+            }
         } else {
             kobaltLog(1, "  All dependencies up to date")
         }
-        executor.shutdown()
+    }
+
+    /**
+     * @return the highest version available for this groupId:artifactId:classifier, or null if it
+     * couldn't be found.
+     */
+    private fun highestVersion(shortId: String, project: Project) : String? {
+        try {
+            val latestDep = depManager.create(shortId, false, project.directory)
+            val artifact = (latestDep as AetherDependency).artifact
+            return resolver.resolveRange(artifact)?.highestVersion?.toString()
+        } catch(e: KobaltException) {
+            kobaltLog(1, "  Cannot resolve $shortId. ignoring")
+        } catch(e: VersionRangeResolutionException) {
+            kobaltLog(1, "  Cannot resolve $shortId. ignoring")
+        }
+        return null
     }
 }
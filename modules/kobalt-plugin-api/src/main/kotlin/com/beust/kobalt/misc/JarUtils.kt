@@ -3,13 +3,23 @@ package com.beust.kobalt.misc
 import com.beust.kobalt.From
 import com.beust.kobalt.IFileSpec
 import com.beust.kobalt.IncludedFile
+import com.beust.kobalt.KobaltException
 import com.beust.kobalt.To
+import com.beust.kobalt.archive.DependencyLayer
 import com.beust.kobalt.archive.MetaArchive
 import com.google.common.io.CharStreams
 import java.io.File
-import java.io.FileOutputStream
 import java.io.InputStreamReader
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.ExecutionException
 import java.util.jar.JarFile
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
 import java.util.zip.ZipFile
 
 class JarUtils {
@@ -21,14 +31,38 @@ class JarUtils {
             }
         }
 
+        /**
+         * If a dependency layer is passed, the jar files to expand are merged in that layer, which is
+         * added after all the other files.
+         */
         fun addFiles(directory: String, files: List<IncludedFile>, metaArchive: MetaArchive,
                 expandJarFiles: Boolean,
-                onError: (Exception) -> Unit = DEFAULT_HANDLER) {
-            files.forEach {
+                onError: (Exception) -> Unit = DEFAULT_HANDLER,
+                dependencyLayer: DependencyLayer? = null) {
+            val (layered, others) =
+                if (dependencyLayer != null) files.partition { isExpandedJar(directory, it) }
+                else Pair(emptyList<IncludedFile>(), files)
+            others.forEach {
                 addSingleFile(directory, it, metaArchive, expandJarFiles, onError)
             }
+            if (layered.isNotEmpty()) {
+                val jarFiles = layered.flatMap { it.allFromFiles(directory) }
+                try {
+                    metaArchive.addArchive(dependencyLayer!!.layer(jarFiles))
+                } catch(ex: Exception) {
+                    onError(ex)
+                }
+            }
         }
 
+        /**
+         * @return true if this included file only contains jar files that are expanded in the archive, e.g.
+         * the dependencies of a fat jar.
+         */
+        private fun isExpandedJar(directory: String, file: IncludedFile) = file.expandJarFiles
+                && ! file.from.contains("resources")
+                && file.allFromFiles(directory).all { it.isAbsolute && it.isFile && it.name.endsWith(".jar") }
+
         fun addSingleFile(directory: String, file: IncludedFile, metaArchive: MetaArchive,
                 expandJarFiles: Boolean, onError: (Exception) -> Unit = DEFAULT_HANDLER) {
             val foundFiles = file.allFromFiles(directory)
@@ -66,6 +100,31 @@ class JarUtils {
             }
         }
 
+        /**
+         * @return the path in the archive and the local file of each of the files that addFiles() would add,
+         * without expanding jar files.
+         */
+        fun archiveEntries(directory: String, files: List<IncludedFile>) : List<Pair<String, File>> {
+            val result = arrayListOf<Pair<String, File>>()
+            files.forEach { file ->
+                file.allFromFiles(directory).forEach { foundFile ->
+                    val fromFile = file.from(foundFile.path)
+                    val localFile = if (fromFile.isAbsolute) fromFile
+                        else File(directory, fromFile.path)
+
+                    if (localFile.isDirectory) {
+                        val includedFile = IncludedFile(From(""), To(""), listOf(IFileSpec.GlobSpec("**")))
+                        result.addAll(archiveEntries(localFile.path, listOf(includedFile)))
+                    } else if (localFile.exists()) {
+                        val toPath = File(file.to).normalize().path
+                        val path = if (toPath.isEmpty()) foundFile.path else File(toPath, foundFile.path).path
+                        result.add(Pair(KFiles.fixSlashes(path), localFile))
+                    }
+                }
+            }
+            return result
+        }
+
         fun extractTextFile(zip : ZipFile, fileName: String) : String? {
             val enumEntries = zip.entries()
             while (enumEntries.hasMoreElements()) {
@@ -80,27 +139,91 @@ class JarUtils {
             return null
         }
 
-        fun extractJarFile(file: File, destDir: File) = extractZipFile(JarFile(file), destDir)
+        /** Archives with fewer entries than this are extracted by the calling thread */
+        private const val PARALLEL_THRESHOLD = 200
+
+        private const val TRANSFER_SIZE = 1L shl 20
 
+        fun extractJarFile(file: File, destDir: File) = JarFile(file).use { extractZipFile(it, destDir) }
+
+        /**
+         * Extract all the entries of this zip file in [destDir]. Large archives are extracted by one thread per
+         * core, the timestamps of the entries are preserved and entries that would end up outside of [destDir]
+         * are rejected. Files that already exist with the same size and crc as their entry are not written again.
+         */
         fun extractZipFile(zipFile: ZipFile, destDir: File) {
-            val enumEntries = zipFile.entries()
-            while (enumEntries.hasMoreElements()) {
-                val file = enumEntries.nextElement()
-                val f = File(destDir.path + File.separator + file.name)
-                if (file.isDirectory) {
-                    f.mkdir()
-                    continue
+            val destPath = destDir.toPath().toAbsolutePath().normalize()
+            val entries = zipFile.entries().toList()
+            val threadCount = Runtime.getRuntime().availableProcessors()
+            if (entries.size < PARALLEL_THRESHOLD || threadCount == 1) {
+                entries.forEach { extractEntry(zipFile, it, destPath) }
+            } else {
+                val executor = KobaltExecutor("Extract", threadCount)
+                try {
+                    entries.chunked(entries.size / (threadCount * 4) + 1).map { chunk ->
+                        executor.submit { chunk.forEach { extractEntry(zipFile, it, destPath) } }
+                    }.forEach {
+                        try {
+                            it.get()
+                        } catch(ex: ExecutionException) {
+                            throw ex.cause ?: ex
+                        }
+                    }
+                } finally {
+                    executor.shutdownNow()
                 }
+            }
 
-                zipFile.getInputStream(file).use { ins ->
-                    f.parentFile.mkdirs()
-                    FileOutputStream(f).use { fos ->
-                        while (ins.available() > 0) {
-                            fos.write(ins.read())
-                        }
+            // Extracting the files modified the directories, restore their timestamps last
+            entries.filter { it.isDirectory && it.time != -1L }.forEach {
+                Files.setLastModifiedTime(destPath.resolve(it.name), FileTime.fromMillis(it.time))
+            }
+        }
+
+        private fun extractEntry(zipFile: ZipFile, entry: ZipEntry, destPath: Path) {
+            val target = destPath.resolve(entry.name).normalize()
+            if (! target.startsWith(destPath)) {
+                throw KobaltException("Entry ${entry.name} of ${zipFile.name} is outside of the target directory")
+            }
+
+            if (entry.isDirectory) {
+                Files.createDirectories(target)
+                return
+            }
+
+            Files.createDirectories(target.parent)
+            if (isUnchanged(target, entry)) return
+
+            zipFile.getInputStream(entry).use { ins ->
+                Channels.newChannel(ins).use { source ->
+                    FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING).use { destination ->
+                        var position = 0L
+                        do {
+                            val count = destination.transferFrom(source, position, TRANSFER_SIZE)
+                            position += count
+                        } while (count > 0)
                     }
                 }
             }
+            if (entry.time != -1L) {
+                Files.setLastModifiedTime(target, FileTime.fromMillis(entry.time))
+            }
+        }
+
+        private fun isUnchanged(target: Path, entry: ZipEntry) : Boolean {
+            if (! Files.isRegularFile(target) || entry.crc == -1L || Files.size(target) != entry.size) return false
+
+            val crc = CRC32()
+            Files.newInputStream(target).use { ins ->
+                val buffer = ByteArray(64 * 1024)
+                var n = ins.read(buffer)
+                while (n >= 0) {
+                    crc.update(buffer, 0, n)
+                    n = ins.read(buffer)
+                }
+            }
+            return crc.value == entry.crc
         }
     }
 }
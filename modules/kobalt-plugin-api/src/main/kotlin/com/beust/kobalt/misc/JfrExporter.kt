@@ -0,0 +1,136 @@
+package com.beust.kobalt.misc
+
+import java.io.File
+import java.lang.reflect.Method
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Turn the spans of the build into Java Flight Recorder events, so recordings show what Kobalt was doing: one
+ * event type per category of span (com.beust.kobalt.Task, com.beust.kobalt.Resolve, ...) listed under "Kobalt"
+ * in JDK Mission Control, with the name, the id and the parent id of the span and its attributes (e.g. the
+ * incremental decision of a task).
+ *
+ * jdk.jfr only exists on JDK 11+ and 8u262+ while Kobalt runs on any Java 8, so it's only used through
+ * reflection and event types are created with jdk.jfr.EventFactory. If [file] is passed, a recording with the
+ * default settings is started and dumped to that file when the build is over (--jfr), otherwise the events go to
+ * the recordings started by other means (-XX:StartFlightRecording, jcmd).
+ */
+class JfrExporter(val file: File? = null) : ISpanExporter {
+    companion object {
+        private val jfr: Jfr? by lazy {
+            try {
+                Jfr()
+            } catch(ex: ReflectiveOperationException) {
+                null
+            } catch(ex: LinkageError) {
+                null
+            }
+        }
+
+        /** true if this JVM has the jdk.jfr API */
+        val isAvailable: Boolean get() = jfr != null
+
+        /** true if a recording was started outside of Kobalt, e.g. with -XX:StartFlightRecording */
+        val isRecording: Boolean get() = jfr?.isRecording() ?: false
+    }
+
+    /**
+     * The reflective access to jdk.jfr.
+     */
+    private class Jfr {
+        private fun type(name: String) = Class.forName("jdk.jfr.$name")
+
+        private val annotationElement = type("AnnotationElement")
+        private val annotationConstructor = annotationElement.getConstructor(Class::class.java, Any::class.java)
+        private val valueDescriptorConstructor = type("ValueDescriptor").getConstructor(Class::class.java,
+                String::class.java, java.util.List::class.java)
+        private val create = type("EventFactory").getMethod("create", java.util.List::class.java,
+                java.util.List::class.java)
+        private val newEvent = type("EventFactory").getMethod("newEvent")
+        private val event = type("Event")
+        val begin: Method = event.getMethod("begin")
+        val end: Method = event.getMethod("end")
+        val commit: Method = event.getMethod("commit")
+        val set: Method = event.getMethod("set", Int::class.java, Any::class.java)
+
+        private val configuration = type("Configuration")
+        private val recording = type("Recording")
+        private val flightRecorder = type("FlightRecorder")
+
+        private fun annotation(name: String, value: Any) = annotationConstructor.newInstance(type(name), value)
+
+        private fun field(type: Class<*>, name: String, label: String) = valueDescriptorConstructor.newInstance(type,
+                name, listOf(annotation("Label", label)))
+
+        /** @return an EventFactory for the spans of [category] */
+        fun eventType(category: String) : Any {
+            val name = category.replace(Regex("\\W"), "_")
+            val annotations = listOf(
+                    annotation("Name", "com.beust.kobalt." + name.capitalize()),
+                    annotation("Label", "Kobalt " + category),
+                    annotation("Category", arrayOf("Kobalt")),
+                    annotation("Description", "A span of category $category of the Kobalt build"),
+                    annotation("StackTrace", false))
+            val fields = listOf(
+                    field(String::class.java, "name", "Name"),
+                    field(Long::class.java, "spanId", "Span Id"),
+                    field(Long::class.java, "parentId", "Parent Id"),
+                    field(String::class.java, "attributes", "Attributes"))
+            return create.invoke(null, annotations, fields)
+        }
+
+        fun newEvent(eventType: Any) : Any = newEvent.invoke(eventType)
+
+        fun startRecording() : Any {
+            val settings = configuration.getMethod("getConfiguration", String::class.java).invoke(null, "default")
+            return recording.getConstructor(configuration).newInstance(settings).apply {
+                recording.getMethod("setName", String::class.java).invoke(this, "Kobalt")
+                recording.getMethod("start").invoke(this)
+            }
+        }
+
+        fun dump(recording: Any, file: File) {
+            this.recording.getMethod("dump", java.nio.file.Path::class.java).invoke(recording, file.toPath())
+            this.recording.getMethod("close").invoke(recording)
+        }
+
+        fun isRecording() : Boolean {
+            if (flightRecorder.getMethod("isInitialized").invoke(null) != true) return false
+            val recorder = flightRecorder.getMethod("getFlightRecorder").invoke(null)
+            val recordings = flightRecorder.getMethod("getRecordings").invoke(recorder) as List<*>
+            return recordings.any { recording.getMethod("getState").invoke(it).toString() == "RUNNING" }
+        }
+    }
+
+    private val jfr = JfrExporter.jfr ?: throw UnsupportedOperationException(
+            "Java Flight Recorder isn't available in this JVM")
+
+    private val eventTypes = ConcurrentHashMap<String, Any>()
+    private val events = ConcurrentHashMap<Span, Any>()
+    private val recording = file?.let { jfr.startRecording() }
+
+    override fun onSpanStart(span: Span) {
+        val event = jfr.newEvent(eventTypes.computeIfAbsent(span.category) { jfr.eventType(it) })
+        jfr.begin.invoke(event)
+        events.put(span, event)
+    }
+
+    override fun onSpanEnd(span: Span) {
+        events.remove(span)?.let { event ->
+            jfr.end.invoke(event)
+            jfr.set.invoke(event, 0, span.name)
+            jfr.set.invoke(event, 1, span.id)
+            jfr.set.invoke(event, 2, span.parent?.id ?: 0L)
+            jfr.set.invoke(event, 3, span.attributes.entries.joinToString(", ") { it.key + "=" + it.value })
+            jfr.commit.invoke(event)
+        }
+    }
+
+    override fun close() {
+        if (recording != null && file != null) {
+            file.absoluteFile.parentFile.mkdirs()
+            jfr.dump(recording, file)
+            kobaltLog(1, "Flight recording written to ${file.absolutePath}")
+        }
+    }
+}
@@ -11,6 +11,7 @@ import java.nio.file.Path
 import java.nio.file.Paths
 import java.nio.file.StandardCopyOption
 import java.util.*
+import java.util.concurrent.ExecutionException
 import java.util.jar.JarInputStream
 import java.util.regex.Pattern
 
@@ -370,6 +371,125 @@ class KFiles {
             else FileUtils.copyDirectory(from, to)
         }
 
+        /** Trees with fewer files than this are copied by the calling thread */
+        private const val PARALLEL_COPY_THRESHOLD = 256
+
+        class CopyStats(val copied: Int, val linked: Int, val skipped: Int, val deleted: Int) {
+            override fun toString() = "$copied copied, $linked linked, $skipped unchanged, $deleted deleted"
+        }
+
+        private enum class CopyResult { COPIED, LINKED, SKIPPED }
+
+        /**
+         * Make [to] identical to [from]. Nothing is written if [to] already has the same size and timestamp,
+         * or the same size and md5 (in which case only its timestamp is updated). Otherwise, [to] becomes a copy
+         * of [from] that keeps its timestamp, or a hard link to it if [link] is true and both files are on the
+         * same file system.
+         *
+         * Only link files that are replaced (and not modified in place) when they change, such as the archives
+         * generated by Kobalt or the jar files of the local repository, since modifying either file modifies
+         * the other one.
+         */
+        fun copyFile(from: File, to: File, link: Boolean = false) = copyFile2(from, to, link) != CopyResult.SKIPPED
+
+        /** The archives generated by Kobalt, which can be linked by copyFile() */
+        fun isArchive(file: File) = listOf(".jar", ".war", ".zip").any { file.name.endsWith(it) }
+
+        private fun copyFile2(from: File, to: File, link: Boolean) : CopyResult {
+            val size = from.length()
+            val lastModified = from.lastModified()
+            if (to.isFile && to.length() == size) {
+                if (to.lastModified() == lastModified) return CopyResult.SKIPPED
+                if (Md5.toMd5(from) == Md5.toMd5(to)) {
+                    to.setLastModified(lastModified)
+                    return CopyResult.SKIPPED
+                }
+            }
+
+            val toPath = to.toPath()
+            Files.createDirectories(toPath.parent)
+            Files.deleteIfExists(toPath)
+            if (link) {
+                try {
+                    Files.createLink(toPath, from.toPath())
+                    kobaltLog(3, "  Linked $from to $to")
+                    return CopyResult.LINKED
+                } catch(ex: IOException) {
+                    // Different file systems or no support for hard links: fall back to a copy
+                } catch(ex: UnsupportedOperationException) {
+                }
+            }
+            kobaltLog(3, "  Copying $from to $to")
+            Files.copy(from.toPath(), toPath, StandardCopyOption.COPY_ATTRIBUTES)
+            return CopyResult.COPIED
+        }
+
+        /**
+         * Copy the files of the directory [from] to [toDir] with copyFile(), see syncFiles().
+         */
+        fun syncDirectory(from: File, toDir: File, deleteStale: Boolean = false,
+                link: (File) -> Boolean = { false }) : CopyStats
+            = syncFiles(toDir, findRecursively(from).map { Pair(it, File(from, it)) }, deleteStale, link)
+
+        /**
+         * Make each of the paths in [entries] (relative to [toDir]) identical to its file with copyFile(). If
+         * several entries have the same path, the first one wins. Large trees are copied by one thread per core.
+         *
+         * @param deleteStale if true, also delete the files of [toDir] that are not part of [entries], and the
+         * directories that become empty.
+         * @param link whether a file can be linked instead of copied, see copyFile().
+         */
+        fun syncFiles(toDir: File, entries: List<Pair<String, File>>, deleteStale: Boolean = false,
+                link: (File) -> Boolean = { false }) : CopyStats {
+            val files = linkedMapOf<String, File>()
+            entries.forEach { (path, file) ->
+                val key = fixSlashes(path)
+                if (! files.containsKey(key)) files.put(key, file)
+            }
+
+            val results = Collections.synchronizedList(arrayListOf<CopyResult>())
+            val threadCount = Runtime.getRuntime().availableProcessors()
+            if (files.size < PARALLEL_COPY_THRESHOLD || threadCount == 1) {
+                files.forEach { (path, file) -> results.add(copyFile2(file, File(toDir, path), link(file))) }
+            } else {
+                val executor = KobaltExecutor("Copy", threadCount)
+                try {
+                    files.entries.chunked(files.size / (threadCount * 4) + 1).map { chunk ->
+                        executor.submit {
+                            chunk.forEach { (path, file) ->
+                                results.add(copyFile2(file, File(toDir, path), link(file)))
+                            }
+                        }
+                    }.forEach {
+                        try {
+                            it.get()
+                        } catch(ex: ExecutionException) {
+                            throw ex.cause ?: ex
+                        }
+                    }
+                } finally {
+                    executor.shutdownNow()
+                }
+            }
+
+            var deleted = 0
+            if (deleteStale && toDir.isDirectory) {
+                toDir.walkBottomUp().forEach { file ->
+                    if (file.isFile) {
+                        if (! files.containsKey(fixSlashes(file.relativeTo(toDir).path)) && file.delete()) {
+                            kobaltLog(3, "  Deleted stale file $file")
+                            deleted++
+                        }
+                    } else if (file != toDir && file.list()?.isEmpty() == true) {
+                        file.delete()
+                    }
+                }
+            }
+
+            return CopyStats(results.count { it == CopyResult.COPIED }, results.count { it == CopyResult.LINKED },
+                    results.count { it == CopyResult.SKIPPED }, deleted)
+        }
+
     }
 
     fun findRecursively(directory: File, function: Function1<String, Boolean>): List<String> {
@@ -0,0 +1,145 @@
+package com.beust.kobalt.misc
+
+import com.beust.kobalt.AsciiArt
+import com.google.gson.stream.JsonWriter
+import java.io.File
+import java.io.Writer
+import java.util.concurrent.ConcurrentLinkedQueue
+
+private fun JsonWriter.attributes(name: String, span: Span) {
+    val attributes = span.attributes
+    if (attributes.any()) {
+        name(name).beginObject()
+        attributes.forEach { (key, value) ->
+            when (value) {
+                is Number -> name(key).value(value)
+                is Boolean -> name(key).value(value)
+                else -> name(key).value(value?.toString())
+            }
+        }
+        endObject()
+    }
+}
+
+/**
+ * Write the spans in the trace event format of chrome://tracing and ui.perfetto.dev when the build is over.
+ * Times are in microseconds with three decimals.
+ */
+class ChromeTraceExporter(val file: File) : ISpanExporter {
+    private val spans = ConcurrentLinkedQueue<Span>()
+
+    override fun onSpanEnd(span: Span) {
+        spans.add(span)
+    }
+
+    override fun close() {
+        fun micros(nanos: Long) = nanos / 1000.0
+        file.absoluteFile.parentFile.mkdirs()
+        JsonWriter(file.bufferedWriter()).use { writer ->
+            with(writer) {
+                beginObject()
+                name("displayTimeUnit").value("ns")
+                name("traceEvents").beginArray()
+                metadata(writer, "process_name", null, "Kobalt")
+                val threads = hashMapOf<Long, String>()
+                spans.sortedBy { it.startNanos }.forEach { span ->
+                    threads[span.threadId] = span.threadName
+                    beginObject()
+                    name("name").value(span.name)
+                    name("cat").value(span.category)
+                    name("ph").value("X")
+                    name("ts").value(micros(span.startNanos))
+                    name("dur").value(micros(span.durationNanos))
+                    name("pid").value(1)
+                    name("tid").value(span.threadId)
+                    attributes("args", span)
+                    endObject()
+                }
+                threads.forEach { (id, threadName) -> metadata(writer, "thread_name", id, threadName) }
+                endArray()
+                endObject()
+            }
+        }
+        kobaltLog(1, "Trace written to ${file.absolutePath}")
+    }
+
+    private fun metadata(writer: JsonWriter, type: String, threadId: Long?, value: String) {
+        with(writer) {
+            beginObject()
+            name("name").value(type)
+            name("ph").value("M")
+            name("pid").value(1)
+            threadId?.let { name("tid").value(it) }
+            name("args").beginObject().name("name").value(value).endObject()
+            endObject()
+        }
+    }
+}
+
+/**
+ * Write one JSON object per span to [file] as soon as it stops, with its id and the id of its parent so the
+ * tree can be rebuilt.
+ */
+class JsonLinesExporter(val file: File) : ISpanExporter {
+    private val writer: Writer = file.apply { absoluteFile.parentFile.mkdirs() }.bufferedWriter()
+
+    override fun onSpanEnd(span: Span) {
+        synchronized(writer) {
+            JsonWriter(writer).let {
+                it.beginObject()
+                it.name("id").value(span.id)
+                span.parent?.let { parent -> it.name("parent").value(parent.id) }
+                it.name("name").value(span.name)
+                it.name("category").value(span.category)
+                it.name("thread").value(span.threadName)
+                it.name("startNanos").value(span.startNanos)
+                it.name("durationNanos").value(span.durationNanos)
+                it.attributes("attributes", span)
+                it.endObject()
+                it.flush()
+            }
+            writer.write("\n")
+        }
+    }
+
+    override fun close() {
+        synchronized(writer) {
+            writer.close()
+        }
+        kobaltLog(1, "Trace written to ${file.absolutePath}")
+    }
+}
+
+/**
+ * Display, at the end of the build, the total time spent in each category of spans and the longest spans.
+ */
+class ConsoleSummaryExporter(val longest: Int = 10) : ISpanExporter {
+    private class Total(var count: Int = 0, var nanos: Long = 0)
+
+    private val totals = hashMapOf<String, Total>()
+    private val spans = ConcurrentLinkedQueue<Span>()
+
+    override fun onSpanEnd(span: Span) {
+        synchronized(totals) {
+            totals.getOrPut(span.category) { Total() }.let {
+                it.count++
+                it.nanos += span.durationNanos
+            }
+        }
+        spans.add(span)
+    }
+
+    override fun close() {
+        fun seconds(nanos: Long) = String.format("%10.2f", nanos / 1_000_000_000.0)
+        kobaltLog(1, "\n" + AsciiArt.horizontalSingleLine + " Spans by category (in seconds, nested spans"
+                + " are counted in each of their categories)")
+        totals.entries.sortedByDescending { it.value.nanos }.forEach { (category, total) ->
+            kobaltLog(1, seconds(total.nanos) + " " + category + " (" + total.count + ")")
+        }
+        kobaltLog(1, "\n" + AsciiArt.horizontalSingleLine + " Longest spans (in seconds)")
+        spans.sortedByDescending { it.durationNanos }.take(longest).forEach {
+            kobaltLog(1, seconds(it.durationNanos) + " " + it.category + " " + it.name)
+        }
+        kobaltLog(1, "")
+    }
+}
@@ -109,11 +109,26 @@ class Main @Inject constructor(
 
         val latestVersionFuture = github.latestKobaltVersion
 
+        // --trace and --profiling
+        args.trace?.let {
+            val file = File(it)
+            BuildTrace.addExporter(if (it.endsWith(".jsonl")) JsonLinesExporter(file) else ChromeTraceExporter(file))
+        }
+        if (args.profiling) BuildTrace.addExporter(ConsoleSummaryExporter())
+        // --jfr, or a flight recording started with -XX:StartFlightRecording
+        if (args.jfr != null && ! JfrExporter.isAvailable) {
+            kobaltWarn("Java Flight Recorder isn't available in this JVM, ignoring --jfr")
+        } else if (args.jfr != null || JfrExporter.isRecording) {
+            BuildTrace.addExporter(JfrExporter(args.jfr?.let(::File)))
+        }
         try {
-            result = runWithArgs(jc, args, argv)
+            result = BuildTrace.trace("kobalt " + argv.joinToString(" "), "build") {
+                runWithArgs(jc, args, argv)
+            }
         } catch(ex: Throwable) {
             error("", ex.cause ?: ex)
         }
+        BuildTrace.close()
 
         if (!args.update) {
             updateKobalt.checkForNewVersion(latestVersionFuture)
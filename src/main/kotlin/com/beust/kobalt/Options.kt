@@ -9,11 +9,13 @@ import com.beust.kobalt.app.ProjectFinder
 import com.beust.kobalt.app.ProjectGenerator
 import com.beust.kobalt.app.Templates
 import com.beust.kobalt.app.UpdateKobalt
+import com.beust.kobalt.app.remote.BuildCacheServer
 import com.beust.kobalt.app.remote.KobaltServer
 import com.beust.kobalt.internal.PluginInfo
 import com.beust.kobalt.internal.TaskManager
 import com.beust.kobalt.internal.build.BuildSources
 import com.beust.kobalt.internal.build.SingleFileBuildSources
+import com.beust.kobalt.maven.DependencyLocks
 import com.beust.kobalt.misc.CheckVersions
 import com.beust.kobalt.misc.kobaltLog
 import com.beust.kobalt.wrapper.Main
@@ -36,10 +38,12 @@ class Options @Inject constructor(
         val projectGenerator: ProjectGenerator,
         val pluginInfo: PluginInfo,
         val serverFactory: KobaltServer.IFactory,
+        val buildCacheServer: BuildCacheServer,
         val updateKobalt: UpdateKobalt,
         val projectFinder: ProjectFinder,
         val taskManager: TaskManager,
-        val resolveDependency: ResolveDependency
+        val resolveDependency: ResolveDependency,
+        val dependencyLocks: DependencyLocks
         ) {
 
     fun run(jc: JCommander, args: Args, argv: Array<String>): Int {
@@ -89,6 +93,10 @@ class Options @Inject constructor(
                     // --server
                     val port = serverFactory.create(args.force, args.port, { cleanUp() }).call()
                 }),
+                OptionalBuildOption( { -> args.buildCacheServer }, {
+                    // --buildCacheServer
+                    buildCacheServer.run(args.port)
+                }),
                 OptionalBuildOption( { -> args.listTemplates}, {
                     // --listTemplates
                     Templates().displayTemplates(pluginInfo)
@@ -151,6 +159,11 @@ class Options @Inject constructor(
                     result = if (runTargetResult.taskResult.success) 0 else 1
                 }
 
+                // --writeLocks
+                if (args.writeLocks && runTargetResult.taskResult.success) {
+                    dependencyLocks.save(allProjects)
+                }
+
                 // Shutdown all plug-ins
                 plugins.shutdownPlugins()
 
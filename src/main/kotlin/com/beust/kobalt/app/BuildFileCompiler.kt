@@ -16,6 +16,7 @@ import com.beust.kobalt.internal.build.VersionFile
 import com.beust.kobalt.maven.DependencyManager
 import com.beust.kobalt.maven.PomGenerator
 import com.beust.kobalt.maven.aether.KobaltMavenResolver
+import com.beust.kobalt.misc.BuildTrace
 import com.beust.kobalt.misc.KFiles
 import com.beust.kobalt.misc.KobaltExecutors
 import com.beust.kobalt.misc.kobaltLog
@@ -70,7 +71,7 @@ class BuildFileCompiler @Inject constructor(@Assisted("buildSources") val buildS
         //
         // Find all the projects in the build file, possibly compiling them
         //
-        val projectResult = findProjects(context)
+        val projectResult = BuildTrace.trace(buildSources.toString(), "buildFile") { findProjects(context) }
 
         return projectResult
     }
@@ -155,14 +156,16 @@ class BuildFileCompiler @Inject constructor(@Assisted("buildSources") val buildS
 
             buildScriptJarFile.deleteRecursively()
             val buildFileClasspath = Kobalt.buildFileClasspath.map { it.jarFile.get() }.map { it.absolutePath }
-            val result = kotlinCompilePrivate {
-                classpath(files.kobaltJar)
-                classpath(pluginUrls.map { it.file })
-                classpath(buildFileClasspath)
-                sourceFiles(sourceFiles)
-                output = buildScriptJarFile
-                noIncrementalKotlin = true
-            }.compile(context = context)
+            val result = BuildTrace.trace("compile $buildScriptJarFile", "buildFile") {
+                kotlinCompilePrivate {
+                    classpath(files.kobaltJar)
+                    classpath(pluginUrls.map { it.file })
+                    classpath(buildFileClasspath)
+                    sourceFiles(sourceFiles)
+                    output = buildScriptJarFile
+                    noIncrementalKotlin = true
+                }.compile(context = context)
+            }
 
             //
             // Generate the file that contains the list of active profiles for this build file
@@ -0,0 +1,68 @@
+package com.beust.kobalt.app.remote
+
+import com.beust.kobalt.internal.BuildCacheXml
+import com.beust.kobalt.internal.KobaltSettings
+import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.kobaltLog
+import com.google.inject.Inject
+import spark.Spark
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * A reference implementation of the remote build cache protocol (see BuildCache), launched with
+ * `kobaltw --buildCacheServer [--port n]`. Entries are stored as files in the <serverDirectory> of the
+ * <buildCache> settings. Good enough for tests and small teams, larger setups will probably want
+ * an HTTP server or an object store that understands GET and PUT.
+ */
+class BuildCacheServer @Inject constructor(val settings: KobaltSettings) {
+    companion object {
+        const val DEFAULT_PORT = 8181
+        private val KEY_REGEXP = Regex("[0-9a-f]+")
+    }
+
+    /** Only created when the server runs, this class is injected in every build */
+    private val directory: File by lazy {
+        KFiles.makeDir(settings.buildCache?.serverDirectory ?: BuildCacheXml().serverDirectory)
+    }
+
+    fun run(port: Int?) {
+        val actualPort = port ?: DEFAULT_PORT
+        Spark.port(actualPort)
+
+        Spark.get("/:key") { req, res ->
+            val file = entry(req.params("key"))
+            if (file != null && file.exists()) {
+                res.type("application/zip")
+                file.readBytes()
+            } else {
+                res.status(404)
+                ""
+            }
+        }
+
+        Spark.put("/:key") { req, res ->
+            val file = entry(req.params("key"))
+            if (file == null) {
+                res.status(400)
+                "Illegal key"
+            } else {
+                // Write to a temporary file first so that concurrent readers never see a partial entry
+                val tmp = File.createTempFile("entry", ".tmp", directory)
+                tmp.writeBytes(req.bodyAsBytes())
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE)
+                kobaltLog(2, "Stored build cache entry ${file.name} (${file.length()} bytes)")
+                res.status(201)
+                KobaltServer.OK
+            }
+        }
+
+        Spark.init()
+        Spark.awaitInitialization()
+        kobaltLog(1, "Build cache server listening on port $actualPort, storing entries in $directory")
+    }
+
+    private fun entry(key: String?) = if (key != null && KEY_REGEXP.matches(key)) File(directory, key) else null
+}
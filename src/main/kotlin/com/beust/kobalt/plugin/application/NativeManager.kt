@@ -21,16 +21,15 @@ class NativeManager @Inject constructor() : IJvmFlagContributor {
             else emptyList()
     }
 
+    /**
+     * Extracting is cheap when the libraries are already there: the files that didn't change are left alone.
+     */
     fun installLibraries(project: Project) {
         val buildDir = buildDir(project)
-        if (! buildDir.exists()) {
-            buildDir.mkdirs()
-            project.nativeDependencies.forEach { dep ->
-                kobaltLog(2, "Extracting $dep " + dep.jarFile.get() + " in $buildDir")
-                JarUtils.extractJarFile(dep.jarFile.get(), buildDir)
-            }
-        } else {
-            kobaltLog(2, "Native directory $buildDir already exists, not extracting the native jar files")
+        buildDir.mkdirs()
+        project.nativeDependencies.forEach { dep ->
+            kobaltLog(2, "Extracting $dep " + dep.jarFile.get() + " in $buildDir")
+            JarUtils.extractJarFile(dep.jarFile.get(), buildDir)
         }
     }
 }
@@ -99,11 +99,16 @@ class PackagingPlugin @Inject constructor(val dependencyManager : DependencyMana
                         }
                     }
 
-                    listOf(packageConfig.jars, packageConfig.wars, packageConfig.zips).forEach { archives ->
+                    listOf(Pair(packageConfig.jars, jarGenerator),
+                            Pair(packageConfig.wars, warGenerator),
+                            Pair(packageConfig.zips, zipGenerator)).forEach { (archives, generator) ->
                         archives.forEach {
-                            val files = jarGenerator.findIncludedFiles(packageConfig.project, context, it)
-                            val outputFile = jarGenerator.fullArchiveName(project, context, it.name)
-                            outputFiles.add(outputFile)
+                            val files = generator.findIncludedFiles(packageConfig.project, context, it)
+                            val outputFile = generator.fullArchiveName(project, context, it.name)
+                            if (it is War && it.exploded) {
+                                outputFiles.add(File(project.directory, WarGenerator.explodedDir(project, it)))
+                            }
+                            if (it !is War || it.archive) outputFiles.add(outputFile)
                             allIncludedFiles.addAll(files)
                             zipToFiles[outputFile.name] = files
                         }
@@ -121,15 +126,16 @@ class PackagingPlugin @Inject constructor(val dependencyManager : DependencyMana
 
                 val inMd5 = Md5.toMd5Directories(inputFiles)
                 val outMd5 = Md5.toMd5Directories(outputFiles)
-                Pair(inMd5, outMd5)
+                Triple(inMd5, outMd5, Pair(inputFiles, outputFiles))
             } else {
-                Pair(null, null)
+                Triple(null, null, Pair(emptyList<File>(), emptyList<File>()))
             }
         }
 
         context.logger.log(project.name, 2, "    Time to calculate packaging checksum: ${benchmark.first} ms")
 
-        val (inMd5, outMd5) = benchmark.second
+        val (inMd5, outMd5, files) = benchmark.second
+        val (inputFiles, outputFiles) = files
 
         return IncrementalTaskInfo(
                 { -> inMd5 },
@@ -161,7 +167,9 @@ class PackagingPlugin @Inject constructor(val dependencyManager : DependencyMana
                         TaskResult()
             } catch(ex: Exception) {
                 throw KobaltException(ex)
-            }}, context)
+            }}, context,
+                inputFiles = { -> inputFiles },
+                outputFiles = { -> outputFiles })
     }
 
     @Task(name = TASK_ASSEMBLE, description = "Package the artifacts", group = JvmCompilerPlugin.GROUP_BUILD,
@@ -202,24 +210,31 @@ class PackagingPlugin @Inject constructor(val dependencyManager : DependencyMana
             if (config.includedFiles.isEmpty()) {
                 context.logger.log(project.name, 1, "  Installing from $buildDir to ${config.target}")
                 val toDir = KFiles.makeDir(config.target)
-                File(buildDir).copyRecursively(toDir, overwrite = true)
+                val stats = KFiles.syncDirectory(buildDirFile, toDir, link = { KFiles.isArchive(it) })
+                context.logger.log(project.name, 2, "  Installed $buildDir: $stats")
             } else {
-                // Delete all target directories
-                config.includedFiles.map { File(it.to) }.distinct().forEach { targetFile ->
-                    val isFile = targetFile.isFile
-                    context.logger.log(project.name, 2, "  Deleting target dir $targetFile")
-                    targetFile.deleteRecursively()
-                    if (! isFile) targetFile.mkdirs()
-                }
-                // Perform the installations
+                // Each target directory ends up containing exactly the files installed to it: the files that
+                // didn't change are left alone and the ones that are not installed any more are deleted
+                val targets = linkedMapOf<File, ArrayList<Pair<String, File>>>()
                 config.includedFiles.forEach { inf ->
                     val targetFile = File(inf.to)
-                    val files = KFiles.materializeIncludedFiles(project, listOf(inf))
-                    files.forEach {
+                    val entries = targets.getOrPut(targetFile) { arrayListOf() }
+                    KFiles.materializeIncludedFiles(project, listOf(inf)).forEach {
                         context.logger.log(project.name, 1, "  Installing $it to $targetFile")
-                        KFiles.copyRecursively(it, targetFile, true)
+                        if (it.isDirectory) {
+                            entries.addAll(KFiles.findRecursively(it).map { path -> Pair(path, File(it, path)) })
+                        } else {
+                            entries.add(Pair(it.name, it))
+                        }
                     }
                 }
+                targets.forEach { targetFile, entries ->
+                    if (targetFile.isFile) targetFile.delete()
+                    val stats = KFiles.syncFiles(targetFile, entries, deleteStale = true, link = { file ->
+                        KFiles.isArchive(file) && file.absoluteFile.startsWith(buildDirFile.absoluteFile)
+                    })
+                    context.logger.log(project.name, 2, "  Installed to $targetFile: $stats")
+                }
             }
         }
 
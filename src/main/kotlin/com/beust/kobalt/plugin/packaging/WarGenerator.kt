@@ -5,13 +5,14 @@ import com.beust.kobalt.api.IClasspathDependency
 import com.beust.kobalt.api.KobaltContext
 import com.beust.kobalt.api.Project
 import com.beust.kobalt.archive.Archives
+import com.beust.kobalt.archive.War
 import com.beust.kobalt.archive.Zip
 import com.beust.kobalt.internal.ParallelLogger
 import com.beust.kobalt.maven.DependencyManager
+import com.beust.kobalt.misc.JarUtils
 import com.beust.kobalt.misc.KFiles
 import com.google.inject.Inject
 import java.io.File
-import java.nio.file.Paths
 
 class WarGenerator @Inject constructor(val dependencyManager: DependencyManager, val kobaltLog: ParallelLogger)
     : ArchiveGenerator {
@@ -20,6 +21,11 @@ class WarGenerator @Inject constructor(val dependencyManager: DependencyManager,
         val WEB_INF = "WEB-INF"
         val CLASSES = "$WEB_INF/classes"
         val LIB = "$WEB_INF/lib"
+        val EXPLODED_WAR = "exploded-war"
+
+        /** The exploded directory of this war, relative to the directory of the project */
+        fun explodedDir(project: Project, war: Zip) = KFiles.joinDir(project.buildDirectory, EXPLODED_WAR,
+                File(war.name).nameWithoutExtension)
     }
 
     override val suffix = ".war"
@@ -44,20 +50,17 @@ class WarGenerator @Inject constructor(val dependencyManager: DependencyManager,
         val fullDir = outDir + "/" + LIB
         File(fullDir).mkdirs()
 
-        // Run through all the classpath contributors and add their contributions to the libs/ directory
-        context.pluginInfo.classpathContributors.map {
-            it.classpathEntriesFor(project, context)
-        }.map { deps : Collection<IClasspathDependency> ->
-            deps.forEach { dep ->
-                val jar = dep.jarFile.get()
-                KFiles.copy(Paths.get(jar.path), Paths.get(fullDir, jar.name))
-            }
-        }
+        // The regular dependencies and the contributions of all the classpath contributors go to the libs/
+        // directory. The regular dependencies come first so they win if both have a jar file with the same name.
+        val libs = allDependencies.map { it.jarFile.get() } +
+                context.pluginInfo.classpathContributors.flatMap {
+                    it.classpathEntriesFor(project, context)
+                }.map { dep : IClasspathDependency ->
+                    dep.jarFile.get()
+                }
 
-        // Add the regular dependencies to the libs/ directory
-        allDependencies.map { it.jarFile.get() }.forEach {
-            KFiles.copy(Paths.get(it.absolutePath), Paths.get(fullDir, it.name))
-        }
+        // Only the jar files that changed are copied and the ones that are not dependencies any more are deleted
+        KFiles.syncFiles(File(fullDir), libs.map { Pair(it.name, it) }, deleteStale = true, link = { true })
 
         //
         // The resources
@@ -84,8 +87,22 @@ class WarGenerator @Inject constructor(val dependencyManager: DependencyManager,
             manifest.mainAttributes.putValue(attribute.first, attribute.second)
         }
 
-        return Archives.generateArchive(project, context, war.name, ".war", files,
-                false /* don't expand jar files */, manifest)
+        val exploded = war is War && war.exploded
+        val warFiles =
+            if (exploded) {
+                val explodedDir = explodedDir(project, war)
+                val stats = KFiles.syncFiles(File(project.directory, explodedDir),
+                        JarUtils.archiveEntries(project.directory, files), deleteStale = true,
+                        link = { KFiles.isArchive(it) })
+                kobaltLog.log(project.name, 2, "  Synced $explodedDir: $stats")
+                if (! (war as War).archive) return File(project.directory, explodedDir)
+                listOf(IncludedFile(From(explodedDir), To(""), listOf(IFileSpec.GlobSpec("**"))))
+            } else {
+                files
+            }
+
+        return Archives.generateArchive(project, context, war.name, ".war", warFiles,
+                false /* don't expand jar files */, manifest, war.isFastPackaging(context))
     }
 
 }
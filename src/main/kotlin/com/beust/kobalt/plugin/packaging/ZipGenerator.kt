@@ -21,5 +21,6 @@ class ZipGenerator @Inject constructor(val dependencyManager: DependencyManager,
     }
 
     override fun generateArchive(project: Project, context: KobaltContext, zip: Zip, files: List<IncludedFile>)
-        = Archives.generateArchive(project, context, zip.name, ".zip", files)
+        = Archives.generateArchive(project, context, zip.name, ".zip", files,
+                fastPackaging = zip.isFastPackaging(context))
 }
@@ -13,8 +13,6 @@ import com.beust.kobalt.maven.PomGenerator
 import com.beust.kobalt.misc.*
 import java.io.File
 import java.net.URL
-import java.nio.file.Paths
-import java.nio.file.StandardCopyOption
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -100,8 +98,8 @@ class PublishPlugin @Inject constructor(val files: KFiles, val factory: PomGener
                 project.artifactId!!, project.version!!))
         allFiles.forEach { file ->
             logk(project.name, 2, "    $file")
-            KFiles.copy(Paths.get(file.absolutePath), Paths.get(targetDir.path, file.name),
-                    StandardCopyOption.REPLACE_EXISTING)
+            // The archives are replaced (not modified) when they are generated again, so they can be linked
+            KFiles.copyFile(file, File(targetDir, file.name), link = KFiles.isArchive(file))
         }
         return TaskResult()
     }
@@ -0,0 +1,40 @@
+package com.beust.kobalt.archive
+
+import com.beust.kobalt.From
+import com.beust.kobalt.IFileSpec
+import com.beust.kobalt.IncludedFile
+import com.beust.kobalt.To
+import com.beust.kobalt.misc.KFiles
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.File
+import java.util.jar.Manifest
+
+@Test
+class ArchiveFingerprintTest {
+    fun fingerprintShouldOnlyDependOnContent() {
+        val directory = KFiles.createTempDirectory()
+        val file = File(directory, "classes/A.class").apply {
+            parentFile.mkdirs()
+            writeText("class A")
+        }
+        val includedFiles = listOf(IncludedFile(From("classes"), To(""), listOf(IFileSpec.GlobSpec("**"))))
+        fun fingerprint(previous: ArchiveFingerprint? = null, manifest: Manifest? = null)
+                = ArchiveFingerprint(previous?.hashes).let {
+                    Pair(it, it.compute(directory.path, includedFiles, manifest, "options"))
+                }
+
+        val (first, value) = fingerprint()
+        assertThat(first.hashes).hasSize(1)
+
+        // Only the timestamp changed, e.g. after a checkout
+        file.setLastModified(file.lastModified() - 10000)
+        assertThat(fingerprint(first).second).isEqualTo(value)
+
+        val manifest = Manifest().apply { mainAttributes.putValue("Main-Class", "A") }
+        assertThat(fingerprint(first, manifest).second).isNotEqualTo(value)
+
+        file.writeText("class A {}")
+        assertThat(fingerprint(first).second).isNotEqualTo(value)
+    }
+}
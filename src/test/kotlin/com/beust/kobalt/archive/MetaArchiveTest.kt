@@ -0,0 +1,186 @@
+package com.beust.kobalt.archive
+
+import com.beust.kobalt.IFileSpec
+import com.beust.kobalt.IncludedFile
+import com.beust.kobalt.misc.JarUtils
+import com.beust.kobalt.misc.KFiles
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.File
+import java.util.jar.JarFile
+import java.util.zip.ZipEntry
+
+@Test
+class MetaArchiveTest {
+    fun entriesShouldBeWrittenInOrder() {
+        val directory = KFiles.createTempDirectory()
+        val files = (1..200).map { i ->
+            File(directory, "com/example/p${i % 7}/C$i.class").apply {
+                parentFile.mkdirs()
+                writeText("class $i ".repeat(i * 10))
+            }
+        }
+        val other = File(directory, "other.jar")
+        MetaArchive(other, null).use {
+            it.addFile(files[0], File("com/example/Other.class"), null)
+        }
+
+        val jar = File(directory, "result.jar")
+        MetaArchive(jar, null).use { archive ->
+            files.forEach { archive.addFile(it, it.relativeTo(directory), null) }
+            archive.addArchive(other)
+            archive.addFile(files[1], files[1].relativeTo(directory), null)
+        }
+
+        JarFile(jar).use { jarFile ->
+            val names = jarFile.entries().toList().map { it.name }.filter { ! it.endsWith("/") }
+            val expected = listOf(MetaArchive.MANIFEST_MF) + files.map { it.relativeTo(directory).path } +
+                    "com/example/Other.class"
+            assertThat(names).containsExactlyElementsOf(expected)
+
+            files.forEach {
+                val content = jarFile.getInputStream(jarFile.getEntry(it.relativeTo(directory).path))
+                        .reader().readText()
+                assertThat(content).isEqualTo(it.readText())
+            }
+        }
+    }
+
+    fun incrementalArchiveShouldBeIdenticalToFullArchive() {
+        val directory = KFiles.createTempDirectory()
+        val files = (1..20).map { i ->
+            File(directory, "com/example/C$i.class").apply {
+                parentFile.mkdirs()
+                writeText("class $i ".repeat(i * 10))
+            }
+        }
+        fun create(jar: File, previous: File? = null, index: ArchiveIndex? = null) =
+            MetaArchive(jar, null, previous, index).use { archive ->
+                files.forEach { archive.addFile(it, it.relativeTo(directory), null) }
+                archive
+            }.index
+
+        val first = File(directory, "first.jar")
+        val index = create(first)
+        assertThat(index.entries).hasSize(files.size)
+
+        files[3].writeText("modified")
+        files[4].setLastModified(files[4].lastModified() - 10000)
+        val incremental = File(directory, "incremental.jar")
+        create(incremental, first, index)
+        val full = File(directory, "full.jar")
+        create(full)
+
+        assertThat(incremental.readBytes()).isEqualTo(full.readBytes())
+        assertThat(incremental.readBytes()).isNotEqualTo(first.readBytes())
+    }
+
+    fun incrementalArchiveWithLargeFilesShouldBeIdenticalToFullArchive() {
+        val directory = KFiles.createTempDirectory()
+        val files = (1..3).map { i ->
+            File(directory, "data/large$i.bin").apply {
+                parentFile.mkdirs()
+                writeBytes(ByteArray(MetaArchive.STREAM_THRESHOLD.toInt() + i * 1000) { (it % (250 + i)).toByte() })
+            }
+        }
+        listOf(true, false).forEach { compress ->
+            fun create(jar: File, previous: File? = null, index: ArchiveIndex? = null) =
+                MetaArchive(jar, null, previous, index, compress = compress).use { archive ->
+                    files.forEach { archive.addFile(it, it.relativeTo(directory), null) }
+                    archive
+                }.index
+
+            val first = File(directory, "first-$compress.jar")
+            val index = create(first)
+            files[1].apply {
+                val lastModified = lastModified()
+                writeBytes(readBytes().reversedArray())
+                setLastModified(lastModified + 10000)
+            }
+            val incremental = File(directory, "incremental-$compress.jar")
+            create(incremental, first, index)
+            val full = File(directory, "full-$compress.jar")
+            create(full)
+
+            assertThat(incremental.readBytes()).isEqualTo(full.readBytes())
+        }
+    }
+
+    fun dependencyLayerShouldBeReused() {
+        val directory = KFiles.createTempDirectory()
+        fun jar(name: String, vararg classes: String) = File(directory, name).apply {
+            MetaArchive(this, null).use { archive ->
+                classes.forEach {
+                    val file = File(directory, "src/$it").apply {
+                        parentFile.mkdirs()
+                        writeText("$name $it")
+                    }
+                    archive.addFile(file, File(it), null)
+                }
+            }
+        }
+        val jars = listOf(jar("a.jar", "a/A.class", "Common.class"), jar("b.jar", "b/B.class", "Common.class"))
+        val includedFiles = jars.map {
+            IncludedFile(specs = listOf(IFileSpec.FileSpec(it.absolutePath)), expandJarFiles = true)
+        }
+        fun fatJar(name: String, layer: DependencyLayer?) = File(directory, name).apply {
+            MetaArchive(this, null).use {
+                JarUtils.addFiles(directory.path, includedFiles, it, true, dependencyLayer = layer)
+            }
+        }
+
+        val layer = DependencyLayer(File(directory, "layers"))
+        val withLayer = fatJar("withLayer.jar", layer)
+        val layerFile = layer.layer(jars)
+        val lastModified = layerFile.lastModified()
+        fatJar("withLayerAgain.jar", layer)
+        assertThat(layerFile.lastModified()).isEqualTo(lastModified)
+
+        val withoutLayer = fatJar("withoutLayer.jar", null)
+        fun contents(jar: File) = JarFile(jar).use { jarFile ->
+            jarFile.entries().toList().filter { ! it.isDirectory }.map {
+                it.name + "=" + jarFile.getInputStream(it).reader().readText()
+            }
+        }
+        assertThat(contents(withLayer)).containsExactlyElementsOf(contents(withoutLayer))
+        assertThat(contents(withLayer)).contains("Common.class=a.jar Common.class")
+    }
+
+    fun fastPackagingShouldStoreEntries() {
+        val directory = KFiles.createTempDirectory()
+        val file = File(directory, "A.class").apply { writeText("class A ".repeat(100)) }
+        val jar = File(directory, "stored.jar")
+        MetaArchive(jar, null, compress = false).use { it.addFile(file, File("A.class"), null) }
+
+        JarFile(jar).use { jarFile ->
+            val entry = jarFile.getEntry("A.class")
+            assertThat(entry.method).isEqualTo(ZipEntry.STORED)
+            assertThat(jarFile.getInputStream(entry).reader().readText()).isEqualTo(file.readText())
+        }
+    }
+
+    fun largeFilesShouldBeStreamed() {
+        val directory = KFiles.createTempDirectory()
+        val small = File(directory, "Small.class").apply { writeText("small") }
+        val large = File(directory, "large.bin").apply {
+            writeBytes(ByteArray(MetaArchive.STREAM_THRESHOLD.toInt() * 2) { (it % 251).toByte() })
+        }
+        listOf(true, false).forEach { compress ->
+            val jar = File(directory, "large-$compress.jar")
+            val index = MetaArchive(jar, null, compress = compress).use { archive ->
+                archive.addFile(small, File("Small.class"), null)
+                archive.addFile(large, File("large.bin"), null)
+                archive
+            }.index
+            assertThat(index.entries.map { it.size }).containsExactly(small.length(), large.length())
+
+            JarFile(jar).use { jarFile ->
+                assertThat(jarFile.entries().toList().map { it.name }.filter { ! it.endsWith("/") })
+                        .containsExactly(MetaArchive.MANIFEST_MF, "Small.class", "large.bin")
+                val entry = jarFile.getEntry("large.bin")
+                assertThat(entry.method).isEqualTo(if (compress) ZipEntry.DEFLATED else ZipEntry.STORED)
+                assertThat(jarFile.getInputStream(entry).readBytes()).isEqualTo(large.readBytes())
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.Args
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.misc.KFiles
+import com.beust.kobalt.misc.KobaltExecutors
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.File
+
+@Test
+class BuildCacheTest {
+    private val buildCache = BuildCache(KobaltSettings(KobaltSettingsXml()), KobaltExecutors())
+
+    private fun createProject(content: String) : Pair<Project, File> {
+        val directory = KFiles.createTempDirectory()
+        File(directory, "src/main/java/A.java").apply {
+            parentFile.mkdirs()
+            writeText(content)
+        }
+        return Pair(Project(directory = directory.path), File(directory, "src"))
+    }
+
+    fun keyShouldOnlyDependOnContent() {
+        val (p1, src1) = createProject("class A {}")
+        val (p2, src2) = createProject("class A {}")
+        val (p3, src3) = createProject("class A { int a; }")
+
+        val key1 = buildCache.cacheKey(p1, "compile", listOf(src1))
+        assertThat(key1).isNotNull()
+        assertThat(buildCache.cacheKey(p2, "compile", listOf(src2))).isEqualTo(key1)
+        assertThat(buildCache.cacheKey(p3, "compile", listOf(src3))).isNotEqualTo(key1)
+        assertThat(buildCache.cacheKey(p1, "compileTest", listOf(src1))).isNotEqualTo(key1)
+    }
+
+    fun noInputsShouldMeanNoKey() {
+        val (p1, _) = createProject("class A {}")
+        assertThat(buildCache.cacheKey(p1, "compile", listOf(File("doesNotExist")))).isNull()
+    }
+
+    fun inputsWithTheSameNameShouldAllBePartOfTheKey() {
+        val (p1, src1) = createProject("class A {}")
+        val jar1 = File(KFiles.createTempDirectory(), "util.jar").apply { writeText("1") }
+        val jar2 = File(KFiles.createTempDirectory(), "util.jar").apply { writeText("2") }
+
+        val key = buildCache.cacheKey(p1, "compile", listOf(src1, jar1, jar2))
+        jar1.writeText("3")
+        assertThat(buildCache.cacheKey(p1, "compile", listOf(src1, jar1, jar2))).isNotEqualTo(key)
+        jar1.writeText("1")
+        jar2.writeText("3")
+        assertThat(buildCache.cacheKey(p1, "compile", listOf(src1, jar1, jar2))).isNotEqualTo(key)
+    }
+
+    /**
+     * Create a build with a project "a" that depends on the classes of its sibling project "b".
+     */
+    private fun createBuild(buildFile: String) : Triple<BuildCache, Project, List<File>> {
+        val root = KFiles.createTempDirectory()
+        File(root, "kobalt/src/Build.kt").apply {
+            parentFile.mkdirs()
+            writeText(buildFile)
+        }
+        val a = File(root, "a/src/main/java/A.java").apply {
+            parentFile.mkdirs()
+            writeText("class A {}")
+        }
+        val b = File(root, "b/kobaltBuild/classes/B.class").apply {
+            parentFile.mkdirs()
+            writeText("B")
+        }
+        val args = Args().apply { this.buildFile = File(root, "kobalt/src/Build.kt").path }
+        return Triple(BuildCache(KobaltSettings(KobaltSettingsXml()), KobaltExecutors(), args),
+                Project(directory = File(root, "a").path), listOf(File(root, "a/src"), b.parentFile))
+    }
+
+    fun otherProjectsOfTheBuildShouldBeRelativeToTheBuild() {
+        val (cache1, p1, inputs1) = createBuild("val a = 1")
+        val (cache2, p2, inputs2) = createBuild("val a = 1")
+        val key = cache1.cacheKey(p1, "compile", inputs1)
+        assertThat(cache2.cacheKey(p2, "compile", inputs2)).isEqualTo(key)
+    }
+
+    fun buildFileShouldBePartOfTheKey() {
+        val (cache1, p1, inputs1) = createBuild("val a = 1")
+        val (cache2, p2, inputs2) = createBuild("val a = 2")
+        assertThat(cache2.cacheKey(p2, "compile", inputs2)).isNotEqualTo(cache1.cacheKey(p1, "compile", inputs1))
+    }
+
+    fun keyInputsShouldBePartOfTheKey() {
+        val (p1, src1) = createProject("class A {}")
+        val key = buildCache.cacheKey(p1, "compile", listOf(src1), listOf("javac", "-g"))
+        assertThat(buildCache.cacheKey(p1, "compile", listOf(src1), listOf("javac", "-g"))).isEqualTo(key)
+        assertThat(buildCache.cacheKey(p1, "compile", listOf(src1), listOf("javac"))).isNotEqualTo(key)
+        assertThat(buildCache.cacheKey(p1, "compile", listOf(src1))).isNotEqualTo(key)
+    }
+}
@@ -0,0 +1,32 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.TestConfig
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.DataInputStream
+
+@Test
+class ClassFileInfoTest {
+    private fun read(c: Class<*>) = DataInputStream(c.getResourceAsStream("/" + c.name.replace('.', '/') + ".class"))
+            .use { ClassFileInfo.read(it) }
+
+    fun shouldReadNamesAndReferences() {
+        with(read(TestHistory::class.java)) {
+            assertThat(name).isEqualTo("com.beust.kobalt.internal.TestHistory")
+            assertThat(superName).isEqualTo("java.lang.Object")
+            assertThat(isAbstract).isFalse()
+            assertThat(references).contains("com.google.gson.Gson", "com.beust.kobalt.api.Project",
+                    "com.beust.kobalt.internal.TestHistory\$Companion")
+            assertThat(references).doesNotContain(name)
+        }
+        assertThat(read(GenericTestRunner::class.java).isAbstract).isTrue()
+    }
+
+    fun shouldReadAnnotations() {
+        assertThat(read(ClassFileInfoTest::class.java).annotations).contains("org.testng.annotations.Test")
+        // Method annotations
+        assertThat(read(TestConfig::class.java).annotations)
+                .contains("com.beust.kobalt.api.annotation.Directive")
+        assertThat(read(TestHistory::class.java).annotations).doesNotContain("org.testng.annotations.Test")
+    }
+}
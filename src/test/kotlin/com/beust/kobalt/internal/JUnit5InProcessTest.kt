@@ -0,0 +1,56 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.kotlin.ParentLastClassLoader
+import com.beust.kobalt.misc.KFiles
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.File
+
+class InProcessJupiterTests {
+    @org.junit.jupiter.api.Test
+    fun passes() {}
+
+    @org.junit.jupiter.api.Test
+    fun fails() {
+        throw AssertionError("boom")
+    }
+}
+
+@Test
+class JUnit5InProcessTest {
+    private fun jarOf(className: String) = File(Class.forName(className).protectionDomain.codeSource.location.toURI())
+
+    private fun testClasses() = KFiles.createTempDirectory().apply {
+        val c = InProcessJupiterTests::class.java
+        File(this, c.name.replace('.', '/') + ".class").apply {
+            parentFile.mkdirs()
+            writeBytes(c.getResourceAsStream("/" + c.name.replace('.', '/') + ".class").use { it.readBytes() })
+        }
+    }
+
+    fun testsShouldRunInProcess() {
+        val framework = listOf("org.junit.platform.launcher.Launcher", "org.junit.platform.engine.TestEngine",
+                "org.junit.platform.commons.util.Preconditions", "org.junit.jupiter.engine.JupiterTestEngine",
+                "org.junit.jupiter.api.Test", "org.opentest4j.AssertionFailedError", "org.apiguardian.api.API")
+                .map { jarOf(it) }
+        assertThat(framework).allMatch { JUnit5InProcess.isFrameworkJar(it) }
+        val classpath = framework + jarOf(KotlinVersion::class.java.name) + testClasses()
+
+        val output = File(KFiles.createTempDirectory(), "output.txt")
+        repeat(2) {
+            val result = JUnit5InProcess(output).run(classpath, listOf(InProcessJupiterTests::class.java.name))
+            assertThat(result.passed).isEqualTo(1)
+            assertThat(result.failed).hasSize(1)
+            assertThat(result.failed[0]).startsWith(InProcessJupiterTests::class.java.name + ".fails")
+            assertThat(result.classDurations.keys).containsExactly(InProcessJupiterTests::class.java.name)
+        }
+    }
+
+    fun classesShouldOnlyBeDefinedOnce() {
+        ParentLastClassLoader(listOf(testClasses().toURI().toURL()), javaClass.classLoader).use { classLoader ->
+            val c = classLoader.loadClass(InProcessJupiterTests::class.java.name)
+            assertThat(c).isNotSameAs(InProcessJupiterTests::class.java)
+            assertThat(classLoader.loadClass(InProcessJupiterTests::class.java.name)).isSameAs(c)
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.Args
+import com.beust.kobalt.TestConfig
+import com.beust.kobalt.Variant
+import com.beust.kobalt.api.KobaltContext
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.misc.KFiles
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.File
+
+class FooTests {
+    @org.junit.jupiter.api.Test
+    fun passes() {}
+}
+
+@Test
+class JUnit5RunnerTest {
+    private fun jarOf(className: String) = File(Class.forName(className).protectionDomain.codeSource.location.toURI())
+
+    private fun createProject() : Pair<Project, File> {
+        val directory = KFiles.createTempDirectory()
+        val project = Project(directory = directory.path)
+        val testClassDir = File(directory, KFiles.joinDir(project.buildDirectory, KFiles.TEST_CLASSES_DIR))
+        val c = FooTests::class.java
+        File(testClassDir, c.name.replace('.', '/') + ".class").apply {
+            parentFile.mkdirs()
+            writeBytes(c.getResourceAsStream("/" + c.name.replace('.', '/') + ".class").use { it.readBytes() })
+        }
+        return Pair(project, testClassDir)
+    }
+
+    private val context = KobaltContext(Args()).apply {
+        variant = Variant()
+        logger = object : ILogger {
+            override fun log(tag: CharSequence, level: Int, message: CharSequence, newLine: Boolean) {}
+        }
+    }
+
+    fun testClassesShouldOnlyBeListedWithCustomIncludes() {
+        val (project, _) = createProject()
+        val runner = JUnit5Runner(KFiles())
+
+        // JUnit 5 discovers FooTests itself even though it doesn't match the default includes
+        val args = runner.args(project, context, emptyList(), TestConfig(project))
+        assertThat(args).contains("--testClassDir").doesNotContain("--classes")
+
+        val custom = TestConfig(project).apply { include("**/*Tests.class") }
+        assertThat(runner.args(project, context, emptyList(), custom))
+                .containsSequence("--classes", FooTests::class.java.name)
+    }
+
+    fun testsShouldBeDiscoveredInProcess() {
+        val (_, testClassDir) = createProject()
+        val framework = listOf("org.junit.platform.launcher.Launcher", "org.junit.platform.engine.TestEngine",
+                "org.junit.platform.commons.util.Preconditions", "org.junit.jupiter.engine.JupiterTestEngine",
+                "org.junit.jupiter.api.Test", "org.opentest4j.AssertionFailedError", "org.apiguardian.api.API")
+                .map { jarOf(it) }
+        val classpath = framework + jarOf(KotlinVersion::class.java.name) + testClassDir
+
+        val output = File(KFiles.createTempDirectory(), "output.txt")
+        val result = JUnit5InProcess(output).run(classpath, emptyList(), listOf(testClassDir))
+        assertThat(result.passed).isEqualTo(1)
+        assertThat(result.classDurations.keys).containsExactly(FooTests::class.java.name)
+    }
+}
@@ -0,0 +1,27 @@
+package com.beust.kobalt.internal
+
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+
+@Test
+class KobaltSettingsTest {
+    fun updatePolicies() {
+        val xml = KobaltSettingsXml().apply {
+            metadataUpdatePolicy = "never"
+            repositoryPolicies = RepositoryPoliciesXml().apply {
+                repositoryPolicy = listOf(
+                        RepositoryPolicyXml().apply { url = "https://example.com/"; updatePolicy = "daily" },
+                        RepositoryPolicyXml().apply {
+                            url = "https://example.com/snapshots"; updatePolicy = "interval:10"
+                        },
+                        RepositoryPolicyXml().apply { url = "https://bogus.com"; updatePolicy = "sometimes" })
+            }
+        }
+        with(KobaltSettings(xml)) {
+            assertThat(metadataUpdatePolicy("https://repo1.maven.org/maven2/")).isEqualTo("never")
+            assertThat(metadataUpdatePolicy("https://example.com/releases/")).isEqualTo("daily")
+            assertThat(metadataUpdatePolicy("https://example.com/snapshots/")).isEqualTo("interval:10")
+            assertThat(metadataUpdatePolicy("https://bogus.com/")).isEqualTo("daily")
+        }
+    }
+}
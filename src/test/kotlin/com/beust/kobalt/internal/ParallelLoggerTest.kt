@@ -0,0 +1,31 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.Args
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.util.*
+
+@Test
+class ParallelLoggerTest {
+    fun linesShouldBeDisplayedOneProjectAtATime() {
+        val displayed = Collections.synchronizedList(arrayListOf<String>())
+        val logger = ParallelLogger(Args()).apply {
+            // Force the lines of the projects waiting for their turn to go to disk
+            maxBufferedChars = 10
+            output = { displayed.add("${it.name}:${it.message}") }
+        }
+        logger.onProjectStarted("a")
+        logger.onProjectStarted("b")
+        val threads = listOf("a", "b").map { name ->
+            Thread {
+                repeat(100) { logger.log(name, 1, "$name$it") }
+            }.apply { start() }
+        }
+        threads.forEach { it.join() }
+        logger.onProjectStopped("b")
+        logger.onProjectStopped("a")
+        logger.shutdown()
+
+        assertThat(displayed).isEqualTo((0..99).map { "a:a$it" } + (0..99).map { "b:b$it" })
+    }
+}
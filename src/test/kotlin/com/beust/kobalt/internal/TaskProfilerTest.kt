@@ -0,0 +1,30 @@
+package com.beust.kobalt.internal
+
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+
+@Test
+class TaskProfilerTest {
+    fun gcPausesShouldOnlyCountWhileTheTaskRuns() {
+        val pauses = listOf(Pair(0L, 10L), Pair(95L, 105L), Pair(150L, 160L), Pair(195L, 300L))
+        assertThat(TaskProfiler.gcOverlapMillis(100, 200, pauses)).isEqualTo(5 + 10 + 5)
+        assertThat(TaskProfiler.gcOverlapMillis(20, 90, pauses)).isEqualTo(0)
+    }
+
+    fun cpuAndAllocationsShouldBeMeasuredOnTheCurrentThread() {
+        val profiler = TaskProfiler()
+        val start = profiler.start()
+        var arrays = 0
+        val end = System.currentTimeMillis() + 50
+        while (System.currentTimeMillis() < end) {
+            arrays += ByteArray(64 * 1024).size
+        }
+        val usage = profiler.stop(start)
+
+        assertThat(usage.wallMillis).isGreaterThanOrEqualTo(50)
+        assertThat(usage.cpuMillis).isGreaterThan(0)
+        if (usage.allocatedBytes >= 0) assertThat(usage.allocatedBytes).isGreaterThanOrEqualTo(64 * 1024)
+        assertThat(usage.gcMillis).isBetween(0, usage.wallMillis)
+        assertThat(arrays).isGreaterThan(0)
+    }
+}
@@ -0,0 +1,37 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.Args
+import com.beust.kobalt.TestConfig
+import com.beust.kobalt.Variant
+import com.beust.kobalt.api.KobaltContext
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.misc.KFiles
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.File
+
+@Test
+class TestCacheTest {
+    fun configurationChangesShouldInvalidateTheCache() {
+        val directory = KFiles.createTempDirectory()
+        val project = Project(directory = directory.path)
+        File(directory, KFiles.joinDir(project.buildDirectory, KFiles.TEST_CLASSES_DIR, "ATest.class")).apply {
+            parentFile.mkdirs()
+            writeText("class ATest")
+        }
+        val context = KobaltContext(Args()).apply { variant = Variant() }
+        val testConfig = TestConfig(project)
+        fun fingerprint() = TestCache.fingerprint(project, context, "runner", testConfig, emptyList(), emptyList())
+
+        val cacheFile = TestCache.file(project, "test")
+        TestCache(fingerprint(), "1 tests", null).save(cacheFile)
+        assertThat(TestCache.read(cacheFile)?.fingerprint).isEqualTo(fingerprint())
+
+        testConfig.selectTests = true
+        val selected = fingerprint()
+        assertThat(TestCache.read(cacheFile)?.fingerprint).isNotEqualTo(selected)
+
+        testConfig.fullRunEvery = 3
+        assertThat(fingerprint()).isNotEqualTo(selected)
+    }
+}
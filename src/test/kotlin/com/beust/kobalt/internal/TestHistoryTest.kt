@@ -0,0 +1,48 @@
+package com.beust.kobalt.internal
+
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+
+@Test
+class TestHistoryTest {
+    fun partitionShouldBalanceDurations() {
+        val durations = mapOf("A" to 100L, "B" to 60L, "C" to 50L, "D" to 10L)
+        val shards = TestHistory.partition(listOf("D", "C", "B", "A", "E"), 2, durations)
+        assertThat(shards).hasSize(2)
+        assertThat(shards.flatten()).containsOnly("A", "B", "C", "D", "E")
+        // E never ran and is assumed to take the average (55 ms)
+        assertThat(shards.map { it.sumBy { (durations[it] ?: 55L).toInt() } }).containsOnly(150, 125)
+    }
+
+    fun orderShouldRunFailedClassesFirstThenLongestFirst() {
+        val history = TestHistory(mapOf("A" to 10L, "B" to 100L, "C" to 50L, "D" to 200L), listOf("C", "A"))
+        assertThat(history.order(listOf("A", "B", "C", "D"))).containsExactly("C", "A", "D", "B")
+    }
+
+    fun updateShouldForgetFailuresOfClassesThatPassed() {
+        val history = TestHistory(emptyMap(), listOf("A", "B")).update(mapOf("A" to 5L, "C" to 7L), failed = listOf("C"))
+        assertThat(history.failedClasses).containsOnly("B", "C")
+        assertThat(history.durations).containsOnlyKeys("A", "C")
+    }
+
+    fun partitionShouldNotCreateEmptyForks() {
+        assertThat(TestHistory.partition(listOf("A", "B"), 16, emptyMap())).hasSize(2)
+    }
+
+    fun runFailingWithoutNamingClassesShouldFailAllTheLaunchedClasses() {
+        val history = TestHistory(mapOf("A" to 5L), listOf("C"))
+        with(history.update(ForkResult(1), listOf("A", "B"))) {
+            assertThat(failedClasses).containsOnly("A", "B", "C")
+            assertThat(durations).containsOnlyKeys("A")
+        }
+        with(history.update(ForkResult(1, failedClasses = setOf("B"), classDurations = mapOf("B" to 3L)),
+                listOf("A", "B", "C"))) {
+            assertThat(failedClasses).containsOnly("B")
+            assertThat(durations).containsOnlyKeys("A", "B")
+        }
+        assertThat(history.update(ForkResult(0), listOf("A", "B")).failedClasses).containsOnly("C")
+        // Nothing known about the classes that ran
+        assertThat(history.update(ForkResult(1), emptyList())).isSameAs(history)
+        assertThat(history.update(ForkResult(0), emptyList()).failedClasses).isEmpty()
+    }
+}
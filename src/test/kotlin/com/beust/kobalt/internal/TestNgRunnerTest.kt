@@ -0,0 +1,33 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.misc.KFiles
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.File
+
+@Test
+class TestNgRunnerTest {
+    fun shouldReadTestNgResults() {
+        val dir = KFiles.createTempDirectory()
+        File(dir, "testng-results.xml").writeText("""
+            <testng-results skipped="1" failed="1" total="4" passed="2">
+              <suite name="s"><test name="t">
+                <class name="com.A">
+                  <test-method status="PASS" signature="a1()" name="a1" duration-ms="10"/>
+                  <test-method status="FAIL" signature="a2()" name="a2" duration-ms="5"/>
+                </class>
+                <class name="com.B">
+                  <test-method status="PASS" signature="b1()" name="b1" duration-ms="7"/>
+                  <test-method status="SKIP" signature="b2()" name="b2" duration-ms="0"/>
+                </class>
+              </test></suite>
+            </testng-results>""".trimIndent())
+
+        val result = TestNgRunner().forkResult(Project(), dir, File(dir, "output.txt"), 0)
+        assertThat(listOf(result.passed, result.failed, result.skipped)).isEqualTo(listOf(2, 1, 1))
+        assertThat(result.failedTests).containsExactly("a2()")
+        assertThat(result.classDurations).isEqualTo(mapOf("com.A" to 15L, "com.B" to 7L))
+        assertThat(result.success).isFalse()
+    }
+}
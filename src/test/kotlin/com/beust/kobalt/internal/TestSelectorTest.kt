@@ -0,0 +1,59 @@
+package com.beust.kobalt.internal
+
+import com.beust.kobalt.Args
+import com.beust.kobalt.TestConfig
+import com.beust.kobalt.Variant
+import com.beust.kobalt.api.KobaltContext
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.misc.KFiles
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.File
+
+class SelectorBase { fun f() = 1 }
+class SelectorMiddle { fun g() = SelectorBase().f() }
+class SelectorOther { fun h() = 2 }
+class SelectorDirectTest { fun t() = SelectorMiddle().g() }
+class SelectorOtherTest { fun t() = SelectorOther().h() }
+
+@Test
+class TestSelectorTest {
+    private fun copy(c: Class<*>, dir: File) = File(dir, c.name.replace('.', '/') + ".class").apply {
+        parentFile.mkdirs()
+        writeBytes(c.getResourceAsStream("/" + c.name.replace('.', '/') + ".class").use { it.readBytes() })
+    }
+
+    fun onlyTheTestsAffectedByAChangeShouldBeSelected() {
+        val directory = KFiles.createTempDirectory()
+        val project = Project(directory = directory.path)
+        fun buildDir(name: String) = File(directory, KFiles.joinDir(project.buildDirectory, name))
+        val base = copy(SelectorBase::class.java, buildDir(KFiles.CLASSES_DIR))
+        listOf(SelectorMiddle::class.java, SelectorOther::class.java).forEach { copy(it, buildDir(KFiles.CLASSES_DIR)) }
+        val tests = listOf(SelectorDirectTest::class.java, SelectorOtherTest::class.java)
+        tests.forEach { copy(it, buildDir(KFiles.TEST_CLASSES_DIR)) }
+        val testClasses = tests.map { it.name }
+
+        val context = KobaltContext(Args()).apply {
+            variant = Variant()
+            logger = object : ILogger {
+                override fun log(tag: CharSequence, level: Int, message: CharSequence, newLine: Boolean) {}
+            }
+        }
+        val testConfig = TestConfig(project)
+        fun selector() = TestSelector(project, context, testConfig, emptyList())
+
+        // No previous run: everything runs
+        with(selector()) {
+            assertThat(select(testClasses)).containsExactlyElementsOf(testClasses)
+            save(true, testClasses)
+        }
+        with(selector()) {
+            assertThat(select(testClasses)).isEmpty()
+            save(true, emptyList())
+        }
+
+        // SelectorDirectTest only depends on SelectorBase through SelectorMiddle
+        base.appendBytes(byteArrayOf(0))
+        assertThat(selector().select(testClasses)).containsExactly(SelectorDirectTest::class.java.name)
+    }
+}
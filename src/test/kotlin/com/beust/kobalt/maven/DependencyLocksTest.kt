@@ -0,0 +1,96 @@
+package com.beust.kobalt.maven
+
+import com.beust.kobalt.Args
+import com.beust.kobalt.api.Project
+import com.beust.kobalt.internal.KobaltSettings
+import com.beust.kobalt.internal.KobaltSettingsXml
+import com.beust.kobalt.maven.aether.AetherDependency
+import com.beust.kobalt.maven.aether.DescribedDependencyFilter
+import com.beust.kobalt.maven.aether.Filters
+import com.beust.kobalt.maven.aether.Scope
+import com.beust.kobalt.misc.KFiles
+import org.assertj.core.api.Assertions.assertThat
+import org.eclipse.aether.artifact.DefaultArtifact
+import org.eclipse.aether.graph.DependencyFilter
+import org.testng.annotations.Test
+import java.io.File
+
+@Test
+class DependencyLocksTest {
+    private val repoDir = KFiles.createTempDirectory()
+    private val localRepo = LocalRepo(KobaltSettings(KobaltSettingsXml()).apply { localCache = repoDir })
+
+    private fun artifact(id: String, path: String, content: String) : AetherDependency {
+        val file = File(repoDir, path).apply {
+            parentFile.mkdirs()
+            writeText(content)
+        }
+        return AetherDependency(DefaultArtifact(id).setFile(file))
+    }
+
+    fun lockShouldBeReadBack() {
+        val project = Project(name = "locked", directory = KFiles.createTempDirectory().path)
+        val declared = listOf(AetherDependency(DefaultArtifact("com.example:a:1.0")))
+        val a = artifact("com.example:a:1.0", "com/example/a/1.0/a-1.0.jar", "a")
+        val b = artifact("com.example:b:2.0", "com/example/b/2.0/b-2.0.jar", "b")
+
+        with(DependencyLocks(Args().apply { writeLocks = true }, localRepo)) {
+            assertThat(lockedClosure(project, declared, listOf(Scope.COMPILE))).isNull()
+            record(project, declared, listOf(Scope.COMPILE), listOf(a, b))
+            save(listOf(project))
+        }
+        assertThat(DependencyLocks.lockFile(project)).exists()
+
+        val locks = DependencyLocks(Args(), localRepo)
+        val closure = locks.lockedClosure(project, declared, listOf(Scope.COMPILE))!!
+        assertThat(closure.map { it.id }).containsExactly(a.id, b.id)
+        assertThat(closure.map { it.jarFile.get() }).containsExactly(a.jarFile.get(), b.jarFile.get())
+
+        // Different scopes are locked separately
+        assertThat(locks.lockedClosure(project, declared, listOf(Scope.TEST))).isNull()
+    }
+
+    fun modifiedArtifactShouldBeResolvedAgain() {
+        val project = Project(name = "modified", directory = KFiles.createTempDirectory().path)
+        val declared = listOf(AetherDependency(DefaultArtifact("com.example:c:1.0")))
+        val c = artifact("com.example:c:1.0", "com/example/c/1.0/c-1.0.jar", "c")
+
+        with(DependencyLocks(Args().apply { writeLocks = true }, localRepo)) {
+            record(project, declared, listOf(Scope.COMPILE), listOf(c))
+            save(listOf(project))
+        }
+        c.jarFile.get().writeText("modified")
+
+        val closure = DependencyLocks(Args(), localRepo).lockedClosure(project, declared, listOf(Scope.COMPILE))!!
+        assertThat((closure[0] as AetherDependency).artifact.file).isNull()
+        // The modified file is deleted so that it gets downloaded again, and checked against the lock file
+        assertThat(c.jarFile.get()).doesNotExist()
+        assertThat((closure[0] as AetherDependency).sha1).isEqualTo(Md5.toSha1(File(repoDir, "c.orig").apply {
+            writeText("c")
+        }))
+    }
+
+    fun closuresShouldBeLockedPerFilter() {
+        val project = Project(name = "filtered", directory = KFiles.createTempDirectory().path)
+        val declared = listOf(AetherDependency(DefaultArtifact("com.example:d:1.0")))
+        val d = artifact("com.example:d:1.0", "com/example/d/1.0/d-1.0.jar", "d")
+        val e = artifact("com.example:e:1.0", "com/example/e/1.0/e-1.0.jar", "e")
+        val excludeE = DescribedDependencyFilter("exclusions [com.example:e:1.0]", Filters.EXCLUDE_OPTIONAL_FILTER)
+        val anonymous = DependencyFilter { _, _ -> true }
+
+        with(DependencyLocks(Args().apply { writeLocks = true }, localRepo)) {
+            record(project, declared, listOf(Scope.COMPILE), listOf(d, e))
+            record(project, declared, listOf(Scope.COMPILE), listOf(d), excludeE)
+            record(project, declared, listOf(Scope.COMPILE), listOf(d), anonymous)
+            save(listOf(project))
+        }
+
+        val locks = DependencyLocks(Args(), localRepo)
+        assertThat(locks.lockedClosure(project, declared, listOf(Scope.COMPILE))!!.map { it.id })
+                .containsExactly(d.id, e.id)
+        assertThat(locks.lockedClosure(project, declared, listOf(Scope.COMPILE), excludeE)!!.map { it.id })
+                .containsExactly(d.id)
+        // Filters that can't be identified are never locked
+        assertThat(locks.lockedClosure(project, declared, listOf(Scope.COMPILE), anonymous)).isNull()
+    }
+}
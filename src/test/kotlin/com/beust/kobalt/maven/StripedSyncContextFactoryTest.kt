@@ -0,0 +1,45 @@
+package com.beust.kobalt.maven
+
+import com.beust.kobalt.maven.aether.Booter
+import com.beust.kobalt.maven.aether.StripedSyncContextFactory
+import com.beust.kobalt.misc.KFiles
+import org.assertj.core.api.Assertions.assertThat
+import org.eclipse.aether.DefaultRepositorySystemSession
+import org.eclipse.aether.artifact.DefaultArtifact
+import org.eclipse.aether.repository.LocalRepository
+import org.testng.annotations.Test
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+@Test
+class StripedSyncContextFactoryTest {
+    fun sameArtifactShouldBeLockedOnce() {
+        val repo = KFiles.createTempDirectory()
+        val session = DefaultRepositorySystemSession().apply {
+            localRepositoryManager = Booter.newRepositorySystem().newLocalRepositoryManager(this,
+                    LocalRepository(repo))
+        }
+        val artifact = DefaultArtifact("com.example:a:1.0")
+        val factory = StripedSyncContextFactory()
+
+        val context = factory.newInstance(session, false)
+        context.acquire(listOf(artifact), null)
+        assertThat(File(repo, StripedSyncContextFactory.LOCK_DIR).listFiles()).hasSize(1)
+
+        // Reentrant for the thread that owns the stripe
+        factory.newInstance(session, false).use { it.acquire(listOf(artifact), null) }
+
+        val acquired = CountDownLatch(1)
+        Thread {
+            factory.newInstance(session, false).use {
+                it.acquire(listOf(artifact), null)
+                acquired.countDown()
+            }
+        }.start()
+        assertThat(acquired.await(200, TimeUnit.MILLISECONDS)).isFalse()
+
+        context.close()
+        assertThat(acquired.await(5, TimeUnit.SECONDS)).isTrue()
+    }
+}
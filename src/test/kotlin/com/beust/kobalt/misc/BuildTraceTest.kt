@@ -0,0 +1,68 @@
+package com.beust.kobalt.misc
+
+import com.google.gson.JsonParser
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.File
+
+@Test
+class BuildTraceTest {
+    fun spansShouldBeWrittenInTheTraceEventFormat() {
+        val file = File.createTempFile("kobalt", ".json").apply { deleteOnExit() }
+        BuildTrace.addExporter(ChromeTraceExporter(file))
+        val result = BuildTrace.trace("project", "project") {
+            BuildTrace.trace("project:compile", "task", mapOf("files" to 3)) { 42 }
+        }
+        BuildTrace.close()
+        BuildTrace.trace("ignored", "task") {}
+
+        assertThat(result).isEqualTo(42)
+        val events = JsonParser().parse(file.readText()).asJsonObject.getAsJsonArray("traceEvents")
+                .map { it.asJsonObject }
+        val spans = events.filter { it["ph"].asString == "X" }
+        assertThat(spans.map { it["name"].asString }).containsExactly("project", "project:compile")
+        val (project, task) = spans
+        assertThat(task["args"].asJsonObject["files"].asInt).isEqualTo(3)
+        assertThat(task["ts"].asDouble).isGreaterThanOrEqualTo(project["ts"].asDouble)
+        assertThat(task["dur"].asDouble).isLessThanOrEqualTo(project["dur"].asDouble)
+        assertThat(events.filter { it["name"].asString == "thread_name" }).hasSize(1)
+    }
+
+    fun spansShouldBeNestedInTheCurrentSpanOrInTheirParent() {
+        val spans = arrayListOf<Span>()
+        val exporter = object : ISpanExporter {
+            override fun onSpanEnd(span: Span) {
+                synchronized(spans) { spans.add(span) }
+            }
+        }
+        BuildTrace.addExporter(exporter)
+        try {
+            BuildTrace.trace("build", "build") { build ->
+                BuildTrace.trace("resolve", "resolve") {}
+                val thread = Thread {
+                    BuildTrace.trace("fork", "test", parent = build) {}
+                    BuildTrace.trace("orphan", "test") {}
+                }
+                thread.start()
+                thread.join()
+                val open = BuildTrace.startSpan("open", "task")
+                open.attribute("success", true)
+                open.stop()
+                open.stop()
+            }
+        } finally {
+            BuildTrace.removeExporter(exporter)
+        }
+
+        val byName = spans.associateBy { it.name }
+        assertThat(spans).hasSize(5)
+        val build = byName["build"]!!
+        assertThat(build.parent).isNull()
+        assertThat(byName["resolve"]!!.parent).isSameAs(build)
+        assertThat(byName["fork"]!!.parent).isSameAs(build)
+        assertThat(byName["orphan"]!!.parent).isNull()
+        assertThat(byName["open"]!!.parent).isSameAs(build)
+        assertThat(byName["open"]!!.attributes).containsEntry("success", true)
+        assertThat(BuildTrace.currentSpan()).isNull()
+    }
+}
@@ -3,9 +3,14 @@ package com.beust.kobalt.misc
 import com.beust.kobalt.From
 import com.beust.kobalt.IFileSpec
 import com.beust.kobalt.IncludedFile
+import com.beust.kobalt.KobaltException
 import com.beust.kobalt.To
 import org.testng.Assert
 import org.testng.annotations.Test
+import java.io.File
+import java.io.FileOutputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
 import javax.inject.Inject
 
 @Test
@@ -20,4 +25,36 @@ class JarUtilsTest @Inject constructor() {
         Assert.assertEquals(actual,
                 "com/beust/kobalt/wrapper/Main.class")
     }
+
+    private fun createZip(vararg entries: Pair<String, String>) = File(KFiles.createTempDirectory(), "test.zip").apply {
+        ZipOutputStream(FileOutputStream(this)).use { zos ->
+            entries.forEach {
+                zos.putNextEntry(ZipEntry(it.first).apply { time = 1000000000000L })
+                zos.write(it.second.toByteArray())
+                zos.closeEntry()
+            }
+        }
+    }
+
+    fun extractZipFile() {
+        val entries = (1..300).map { Pair("dir${it % 3}/file$it.txt", "content $it") }.toTypedArray()
+        val zip = createZip(*entries)
+        val destDir = KFiles.createTempDirectory()
+        JarUtils.extractJarFile(zip, destDir)
+        entries.forEach {
+            val file = File(destDir, it.first)
+            Assert.assertEquals(file.readText(), it.second)
+            Assert.assertEquals(file.lastModified(), 1000000000000L)
+        }
+
+        // Modified files are extracted again
+        File(destDir, entries[0].first).writeText("modified")
+        JarUtils.extractJarFile(zip, destDir)
+        Assert.assertEquals(File(destDir, entries[0].first).readText(), entries[0].second)
+    }
+
+    @Test(expectedExceptions = arrayOf(KobaltException::class))
+    fun extractShouldRejectEntriesOutsideOfTheDirectory() {
+        JarUtils.extractJarFile(createZip(Pair("../evil.txt", "evil")), KFiles.createTempDirectory())
+    }
 }
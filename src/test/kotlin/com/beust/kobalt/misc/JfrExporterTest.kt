@@ -0,0 +1,39 @@
+package com.beust.kobalt.misc
+
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.SkipException
+import org.testng.annotations.Test
+import java.io.File
+
+@Test
+class JfrExporterTest {
+    fun spansShouldBeRecordedAsFlightRecorderEvents() {
+        if (! JfrExporter.isAvailable) throw SkipException("Java Flight Recorder isn't available in this JVM")
+
+        val file = File.createTempFile("kobalt", ".jfr").apply { deleteOnExit() }
+        BuildTrace.addExporter(JfrExporter(file))
+        try {
+            BuildTrace.trace("project", "project") {
+                BuildTrace.trace("project:compile", "task") { span ->
+                    span.attribute("incremental", "up to date")
+                }
+            }
+        } finally {
+            BuildTrace.close()
+        }
+
+        // Read the recording back with jdk.jfr.consumer, which doesn't exist in all the JVMs Kobalt runs on
+        val events = Class.forName("jdk.jfr.consumer.RecordingFile")
+                .getMethod("readAllEvents", java.nio.file.Path::class.java).invoke(null, file.toPath()) as List<*>
+        fun call(o: Any, method: String, vararg args: String) =
+                o.javaClass.getMethod(method, *args.map { String::class.java }.toTypedArray()).invoke(o, *args)
+        val kobaltEvents = events.filterNotNull().associateBy {
+            call(call(it, "getEventType"), "getName").toString()
+        }.filterKeys { it.startsWith("com.beust.kobalt.") }
+
+        assertThat(kobaltEvents.keys).containsOnly("com.beust.kobalt.Project", "com.beust.kobalt.Task")
+        val task = kobaltEvents["com.beust.kobalt.Task"]!!
+        assertThat(call(task, "getString", "name")).isEqualTo("project:compile")
+        assertThat(call(task, "getString", "attributes")).isEqualTo("incremental=up to date")
+    }
+}
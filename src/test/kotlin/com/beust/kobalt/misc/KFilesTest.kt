@@ -0,0 +1,53 @@
+package com.beust.kobalt.misc
+
+import org.assertj.core.api.Assertions.assertThat
+import org.testng.annotations.Test
+import java.io.File
+
+@Test
+class KFilesTest {
+    fun syncShouldOnlyCopyChangedFilesAndDeleteStaleOnes() {
+        val root = KFiles.createTempDirectory()
+        val from = File(root, "from")
+        val a = File(from, "a.txt").apply { parentFile.mkdirs(); writeText("a") }
+        File(from, "sub/b.txt").apply { parentFile.mkdirs(); writeText("b") }
+        val to = File(root, "to")
+        File(to, "stale/c.txt").apply { parentFile.mkdirs(); writeText("c") }
+
+        val first = KFiles.syncDirectory(from, to, deleteStale = true)
+        assertThat(first.copied).isEqualTo(2)
+        assertThat(first.deleted).isEqualTo(1)
+        assertThat(File(to, "stale")).doesNotExist()
+        assertThat(File(to, "sub/b.txt").readText()).isEqualTo("b")
+
+        val second = KFiles.syncDirectory(from, to, deleteStale = true)
+        assertThat(second.skipped).isEqualTo(2)
+
+        // Same content but a different timestamp: not copied again
+        a.setLastModified(a.lastModified() - 10000)
+        assertThat(KFiles.syncDirectory(from, to).skipped).isEqualTo(2)
+        assertThat(File(to, "a.txt").lastModified()).isEqualTo(a.lastModified())
+
+        a.delete()
+        a.writeText("aa")
+        val third = KFiles.syncDirectory(from, to)
+        assertThat(third.copied).isEqualTo(1)
+        assertThat(File(to, "a.txt").readText()).isEqualTo("aa")
+    }
+
+    fun onlyTheRequestedFilesShouldBeLinked() {
+        val root = KFiles.createTempDirectory()
+        val jar = File(root, "from/a.jar").apply { parentFile.mkdirs(); writeText("jar") }
+        val text = File(root, "from/b.txt").apply { writeText("b") }
+        val to = File(root, "to")
+
+        val stats = KFiles.syncFiles(to, listOf(Pair(jar.name, jar), Pair(text.name, text)),
+                link = { KFiles.isArchive(it) })
+        assertThat(stats.linked + stats.copied).isEqualTo(2)
+        assertThat(stats.copied).isGreaterThanOrEqualTo(1)
+
+        // The copy of a file that is not linked can be modified without modifying the original
+        File(to, text.name).writeText("modified")
+        assertThat(text.readText()).isEqualTo("b")
+    }
+}